@@ -0,0 +1,146 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+
+/**
+ * Counts and latencies of Compute API calls of a cloud, keyed by the Compute methods.
+ *
+ * The method of a call is derived from the HTTP method and the URL path,
+ * such as "instances.start" and "zoneOperations.get".
+ * Batch requests are recorded as "batch".
+ * Every HTTP exchange is counted, including retries and batch requests as a whole.
+ */
+class ApiMetrics {
+
+    /** Latencies per method. */
+    private final LatencyRecorder latencies = new LatencyRecorder();
+
+    /** # of error responses per method. */
+    private final ConcurrentMap<String, AtomicLong> errorCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Returns an initializer which measures the requests initialized by the delegate.
+     *
+     * The measurement starts after the interceptors of the delegate,
+     * so that waiting for the throttle is not counted as the latency.
+     */
+    HttpRequestInitializer wrap(final HttpRequestInitializer delegate) {
+        return new HttpRequestInitializer() {
+            @Override public void initialize(HttpRequest request) throws IOException {
+                delegate.initialize(request);
+                final long[] startNanos = new long[1];
+
+                final HttpExecuteInterceptor interceptor = request.getInterceptor();
+                request.setInterceptor(new HttpExecuteInterceptor() {
+                    @Override public void intercept(HttpRequest req) throws IOException {
+                        if (interceptor != null) {
+                            interceptor.intercept(req);
+                        }
+                        startNanos[0] = System.nanoTime();
+                    }
+                });
+
+                final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+                request.setResponseInterceptor(new HttpResponseInterceptor() {
+                    @Override public void interceptResponse(HttpResponse resp) throws IOException {
+                        record(methodOf(resp.getRequest()), resp.getStatusCode(),
+                                (System.nanoTime() - startNanos[0]) / 1000000);
+                        if (responseInterceptor != null) {
+                            responseInterceptor.interceptResponse(resp);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Records a call of the method.
+     */
+    void record(String method, int status, long millis) {
+        this.latencies.record(method, millis);
+        if (status >= 400) {
+            AtomicLong count = this.errorCounts.get(method);
+            if (count == null) {
+                AtomicLong newCount = new AtomicLong();
+                count = this.errorCounts.putIfAbsent(method, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the Compute method of the request.
+     *
+     * The path after the project and the location such as "zones/z" or "global"
+     * is a collection, optionally followed by a resource name and an action:
+     * such as "instances/i/start".
+     */
+    static String methodOf(HttpRequest request) {
+        List<String> segments = request.getUrl().getPathParts();
+        if (segments == null) {
+            return "unknown";
+        }
+        int projects = segments.indexOf("projects");
+        if (projects < 0 || segments.size() <= projects + 2) {
+            return segments.contains("batch") ? "batch" : "unknown";
+        }
+
+        List<String> rest = segments.subList(projects + 2, segments.size());
+        String location = "";
+        if (rest.size() >= 3 && ("zones".equals(rest.get(0)) || "regions".equals(rest.get(0)))) {
+            location = "zones".equals(rest.get(0)) ? "zone" : "region";
+            rest = rest.subList(2, rest.size());
+        } else if (rest.size() >= 2 && "global".equals(rest.get(0))) {
+            location = "global";
+            rest = rest.subList(1, rest.size());
+        }
+
+        String collection = rest.get(0);
+        if ("operations".equals(collection) && ! location.isEmpty()) {
+            collection = location + "Operations";
+        }
+        String verb = request.getRequestMethod();
+        switch (rest.size()) {
+            case 1: return collection + ("GET".equals(verb) ? ".list" : ".insert");
+            case 2: return collection + "." + ("GET".equals(verb) ? "get" : verb.toLowerCase());
+            default: return collection + "." + rest.get(rest.size() - 1);
+        }
+    }
+
+    /**
+     * Returns # of error responses per method, sorted by the methods.
+     */
+    Map<String, Long> getErrorCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : this.errorCounts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the latency stats per method, sorted by the methods.
+     */
+    Map<String, LatencyRecorder.Stats> getCallStats() {
+        return this.latencies.snapshot();
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,240 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+
+/**
+ * Quota-aware throttle of Compute API requests, shared by all the instances of a cloud.
+ *
+ * Each HTTP request takes a token from the read bucket (GET and operation waits)
+ * or the write bucket (other methods). Parts of batch requests are counted one by one.
+ * Rate-limited requests (429, or 403 with a rate limit reason) are retried with jittered exponential backoff.
+ * Rate-limited parts of batch requests are queued again by {@link Batches} with the same backoff.
+ */
+class ApiThrottle {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(ApiThrottle.class.getName());
+
+    /** The maximum time of retrying a rate-limited request. */
+    private static final int MAX_RETRY_MILLIS = 2 * 60 * 1000;
+
+    /** The first backoff interval of retries. */
+    private static final int FIRST_BACKOFF_MILLIS = 500;
+
+    /** The maximum backoff interval of retries. */
+    private static final int MAX_BACKOFF_MILLIS = 30 * 1000;
+
+    /** The bucket of read requests. */
+    private final TokenBucket readBucket;
+
+    /** The bucket of write requests. */
+    private final TokenBucket writeBucket;
+
+    /** # of requests which waited for a token. */
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /** # of retries of rate-limited requests. */
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    /**
+     * Makes a throttle with the rates per second; 0 means unlimited.
+     */
+    ApiThrottle(double readsPerSecond, double writesPerSecond) {
+        this.readBucket = new TokenBucket(readsPerSecond);
+        this.writeBucket = new TokenBucket(writesPerSecond);
+    }
+
+    /**
+     * Returns an initializer which throttles the requests initialized by the delegate.
+     */
+    HttpRequestInitializer wrap(final HttpRequestInitializer delegate) {
+        return new HttpRequestInitializer() {
+            @Override public void initialize(HttpRequest request) throws IOException {
+                delegate.initialize(request);
+
+                final HttpExecuteInterceptor interceptor = request.getInterceptor();
+                request.setInterceptor(new HttpExecuteInterceptor() {
+                    @Override public void intercept(HttpRequest req) throws IOException {
+                        acquire(isWrite(req));
+                        if (interceptor != null) {
+                            interceptor.intercept(req);
+                        }
+                    }
+                });
+
+                final HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+                final BackOff backOff = newBackOff();
+                request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+                    @Override public boolean handleResponse(
+                            HttpRequest req, HttpResponse resp, boolean supportsRetry) throws IOException {
+                        if (handler != null && handler.handleResponse(req, resp, supportsRetry)) {
+                            return true;
+                        }
+                        return supportsRetry && resp.getStatusCode() == 429 && backOffOnce(backOff);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Executes the request, retrying it while it is rejected by 403 with a rate limit reason.
+     *
+     * 429 responses are retried in the HTTP layer.
+     */
+    <T> T execute(AbstractGoogleClientRequest<T> request) throws IOException {
+        BackOff backOff = newBackOff();
+        while (true) {
+            try {
+                return request.execute();
+            } catch (GoogleJsonResponseException gjrex) {
+                if (! isRateLimitError(gjrex) || ! backOffOnce(backOff)) {
+                    throw gjrex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes the request built directly by the request factory, such as an instance action,
+     * retrying it while it is rejected by 403 with a rate limit reason.
+     *
+     * Error responses are thrown as GoogleJsonResponseException.
+     */
+    HttpResponse execute(HttpRequest request, JsonFactory jsonFactory) throws IOException {
+        request.setThrowExceptionOnExecuteError(false);
+        BackOff backOff = newBackOff();
+        while (true) {
+            HttpResponse response = request.execute();
+            if (response.isSuccessStatusCode()) {
+                return response;
+            }
+            GoogleJsonResponseException gjrex = GoogleJsonResponseException.from(jsonFactory, response);
+            if (! isRateLimitError(gjrex) || ! backOffOnce(backOff)) {
+                throw gjrex;
+            }
+        }
+    }
+
+    /**
+     * Takes a token of the bucket.
+     */
+    private void acquire(boolean write) throws IOException {
+        try {
+            if ((write ? this.writeBucket : this.readBucket).acquire()) {
+                this.throttledCount.incrementAndGet();
+            }
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the request quota");
+        }
+    }
+
+    /**
+     * Returns true if the request consumes the write quota.
+     */
+    private static boolean isWrite(HttpRequest req) {
+        return ! "GET".equals(req.getRequestMethod())
+            && ! req.getUrl().getRawPath().endsWith("/wait");
+    }
+
+    /**
+     * Returns true if the error is 403 caused by the rate limit.
+     */
+    private static boolean isRateLimitError(GoogleJsonResponseException gjrex) {
+        return gjrex.getStatusCode() == 403 && gjrex.getDetails() != null && isRateLimited(gjrex.getDetails());
+    }
+
+    /**
+     * Returns true if the error is caused by the rate limit: 429, or 403 with a rate limit reason.
+     *
+     * This classifies the errors of both single requests and parts of batch requests.
+     */
+    static boolean isRateLimited(GoogleJsonError error) {
+        if (error.getCode() == 429) {
+            return true;
+        }
+        if (error.getCode() != 403 || error.getErrors() == null) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+            String reason = info.getReason();
+            if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the request failed by the rate limit or a server error, so that it can be retried.
+     */
+    static boolean isRetryable(GoogleJsonError error) {
+        return isRateLimited(error) || error.getCode() >= 500;
+    }
+
+    /**
+     * Makes a backoff of retries, whose intervals are randomized by ±50%.
+     */
+    BackOff newBackOff() {
+        return new ExponentialBackOff.Builder()
+            .setInitialIntervalMillis(FIRST_BACKOFF_MILLIS)
+            .setMaxIntervalMillis(MAX_BACKOFF_MILLIS)
+            .setRandomizationFactor(0.5)
+            .setMultiplier(2)
+            .setMaxElapsedTimeMillis(MAX_RETRY_MILLIS)
+            .build();
+    }
+
+    /**
+     * Sleeps for the next backoff interval, and returns true if a retry should be made.
+     */
+    boolean backOffOnce(BackOff backOff) throws IOException {
+        long millis = backOff.nextBackOffMillis();
+        if (millis == BackOff.STOP) {
+            return false;
+        }
+
+        this.retriedCount.incrementAndGet();
+        LOGGER.fine("rate limited; retry after " + millis + " ms");
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while backing off");
+        }
+        return true;
+    }
+
+    /**
+     * Returns # of requests which waited for a token.
+     */
+    long getThrottledCount() {
+        return this.throttledCount.get();
+    }
+
+    /**
+     * Returns # of retries of rate-limited requests.
+     */
+    long getRetriedCount() {
+        return this.retriedCount.get();
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
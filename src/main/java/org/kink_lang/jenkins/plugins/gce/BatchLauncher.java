@@ -0,0 +1,437 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.Node;
+
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Metadata;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.Scheduling;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Sets up and launches slaves chosen in one provisioning pass,
+ * issuing one batch request per phase instead of independent calls per slave.
+ *
+ * The phases are: getting the instances, setting the metadata, switching the scheduling, and starting the instances.
+ * The start phase begins after all the metadata and scheduling operations finish.
+ * The scheduling is switched only for stopped instances whose capacity, preemptible or standard,
+ * differs from the slaves; a preemptible start failed by a stockout makes the instance fall back to standard capacity.
+ * Suspended instances are resumed instead of started.
+ * Instances whose metadata is known to be current, such as the ones prepared in the warm pool, skip the first two phases.
+ * The time of each batch request is recorded as "batch.{phase}",
+ * and the time until each instance is started as "launch.pooled" if the instance is taken from the warm pool,
+ * or "launch.unpooled" otherwise, so that the gain of the pool is measured.
+ */
+class BatchLauncher {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(BatchLauncher.class.getName());
+
+    /** The future of a metadata operation which is not needed. */
+    private static final ListenableFuture<Operation> DONE = Futures.immediateFuture(new Operation().setStatus("DONE"));
+
+    /** The client to manipulate the instances. */
+    private final ComputeClient client;
+
+    /** The watcher of the operations. */
+    private final OperationWatcher watcher;
+
+    /** The recorder of batch latencies. */
+    private final LatencyRecorder latencies;
+
+    /** The executor of the phases. */
+    private final Executor executor;
+
+    /** The pool of the instances whose metadata is prepared. */
+    private final WarmPool warmPool;
+
+    /** The placement engine which learns the start results of the zone. */
+    private final PlacementEngine placement;
+
+    /** The inventory which tells suspended instances. */
+    private final InstanceInventory inventory;
+
+    /** The updater of the metadata. */
+    private final MetadataUpdater metadataUpdater;
+
+    /** The tracker which learns the stockouts of preemptible capacity. */
+    private final PreemptionTracker preemption;
+
+    BatchLauncher(ComputeClient client, OperationWatcher watcher, LatencyRecorder latencies,
+            Executor executor, WarmPool warmPool, PlacementEngine placement, InstanceInventory inventory,
+            MetadataUpdater metadataUpdater, PreemptionTracker preemption) {
+        this.client = client;
+        this.watcher = watcher;
+        this.latencies = latencies;
+        this.executor = executor;
+        this.warmPool = warmPool;
+        this.placement = placement;
+        this.inventory = inventory;
+        this.metadataUpdater = metadataUpdater;
+        this.preemption = preemption;
+    }
+
+    /**
+     * Launches the slaves, and returns the futures of the nodes in the order of the slaves.
+     *
+     * A future fails with a LaunchFailedException if the instance cannot be set up or started.
+     */
+    List<ListenableFuture<Node>> launch(final List<PersistentSlave> slaves) {
+        final Map<String, SettableFuture<Node>> results = new LinkedHashMap<String, SettableFuture<Node>>();
+        final long startNanos = System.nanoTime();
+        for (PersistentSlave slave : slaves) {
+            final String name = slave.getNodeName();
+            final String kind = this.warmPool.take(name) ? "launch.pooled" : "launch.unpooled";
+            final SettableFuture<Node> result = SettableFuture.<Node>create();
+            result.addListener(new Runnable() {
+                @Override public void run() {
+                    if (getDoneNode(result) != null) {
+                        latencies.record(kind, (System.nanoTime() - startNanos) / 1000000);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            results.put(name, result);
+        }
+
+        this.executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    setUp(slaves, results);
+                } catch (Exception ex) {
+                    for (SettableFuture<Node> result : results.values()) {
+                        result.setException(ex);
+                    }
+                }
+            }
+        });
+        return new ArrayList<ListenableFuture<Node>>(results.values());
+    }
+
+    /**
+     * Gets the instances, sets the metadata and switches the scheduling, then schedules the start phase.
+     *
+     * The writes rejected by fingerprint conflicts are retried from getting the instances.
+     */
+    private void setUp(List<PersistentSlave> slaves, final Map<String, SettableFuture<Node>> results)
+            throws IOException {
+        final Map<String, PersistentSlave> slavesByName = new HashMap<String, PersistentSlave>();
+        for (PersistentSlave slave : slaves) {
+            slavesByName.put(slave.getNodeName(), slave);
+        }
+
+        final Map<String, ListenableFuture<Operation>> metadataDones
+            = new LinkedHashMap<String, ListenableFuture<Operation>>();
+        final Map<String, Map<String, String>> itemsByName = new LinkedHashMap<String, Map<String, String>>();
+        Map<String, Map<String, String>> pending = new LinkedHashMap<String, Map<String, String>>();
+        for (PersistentSlave slave : slaves) {
+            String name = slave.getNodeName();
+            Map<String, String> items = Collections.singletonMap(WarmPool.SECRET_KEY, slave.getComputer().getJnlpMac());
+            itemsByName.put(name, items);
+            if (this.metadataUpdater.isCurrent(name, items)) {
+                metadataDones.put(name, DONE);
+            } else {
+                pending.put(name, items);
+            }
+        }
+
+        for (int attempt = 1; ! pending.isEmpty(); ++ attempt) {
+            List<String> conflicts = setMetadata(pending, results, metadataDones);
+            Map<String, Map<String, String>> retried = new LinkedHashMap<String, Map<String, String>>();
+            for (String name : conflicts) {
+                this.metadataUpdater.onConflict(name);
+                if (attempt >= MetadataUpdater.MAX_ATTEMPTS) {
+                    giveUp(results, name, "failed to add metadata: fingerprint conflicts");
+                } else {
+                    retried.put(name, pending.get(name));
+                }
+            }
+            pending = retried;
+        }
+
+        final Map<String, ListenableFuture<Operation>> schedulingDones = setScheduling(slaves, results);
+        List<ListenableFuture<Operation>> dones = new ArrayList<ListenableFuture<Operation>>(metadataDones.values());
+        dones.addAll(schedulingDones.values());
+        Futures.successfulAsList(dones)
+            .addListener(new Runnable() {
+                @Override public void run() {
+                    try {
+                        startAll(slavesByName, itemsByName, metadataDones, schedulingDones, results);
+                    } catch (Exception ex) {
+                        for (String name : metadataDones.keySet()) {
+                            results.get(name).setException(ex);
+                        }
+                    }
+                }
+            }, this.executor);
+    }
+
+    /**
+     * Gets the instances and writes the changed metadata, putting the futures of the metadata to the dones.
+     *
+     * Returns the names of the instances whose writes are rejected by fingerprint conflicts.
+     */
+    private List<String> setMetadata(
+            final Map<String, Map<String, String>> pending,
+            final Map<String, SettableFuture<Node>> results,
+            Map<String, ListenableFuture<Operation>> metadataDones) throws IOException {
+        final Compute compute = this.client.getCompute();
+        final String project = this.client.getProject();
+        final String zone = this.client.getZone();
+
+        final Map<String, Instance> instances = new HashMap<String, Instance>();
+        Batches gets = new Batches(this.client, this.latencies);
+        for (final String name : pending.keySet()) {
+            gets.queue(compute.instances().get(project, zone, name), new JsonBatchCallback<Instance>() {
+                @Override public void onSuccess(Instance instance, HttpHeaders headers) {
+                    instances.put(name, instance);
+                }
+
+                @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                    giveUp(results, name, "failed to get the instance: " + error.getMessage());
+                }
+            });
+        }
+        gets.execute("get");
+
+        final Map<String, Operation> metadataOps = new LinkedHashMap<String, Operation>();
+        final List<String> conflicts = new ArrayList<String>();
+        Batches setMetadatas = new Batches(this.client, this.latencies);
+        for (Map.Entry<String, Map<String, String>> entry : pending.entrySet()) {
+            final String name = entry.getKey();
+            Instance instance = instances.get(name);
+            if (instance == null) {
+                continue;
+            }
+
+            Metadata metadata = MetadataUpdater.diff(instance.getMetadata(), entry.getValue());
+            if (metadata == null) {
+                this.metadataUpdater.onUnchanged(name, entry.getValue());
+                metadataDones.put(name, DONE);
+                continue;
+            }
+            setMetadatas.queue(compute.instances().setMetadata(project, zone, name, metadata),
+                    new JsonBatchCallback<Operation>() {
+                        @Override public void onSuccess(Operation op, HttpHeaders headers) {
+                            metadataOps.put(name, op);
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            if (MetadataUpdater.isConflict(error)) {
+                                conflicts.add(name);
+                            } else {
+                                giveUp(results, name, "failed to add metadata: " + error.getMessage());
+                            }
+                        }
+                    });
+        }
+        setMetadatas.execute("setMetadata");
+
+        for (Map.Entry<String, Operation> entry : metadataOps.entrySet()) {
+            metadataDones.put(entry.getKey(), this.watcher.watch(this.client, entry.getValue()));
+        }
+        return conflicts;
+    }
+
+    /**
+     * Switches the scheduling of the stopped instances whose capacity differs from the slaves,
+     * and returns the futures of the operations keyed by the instance names.
+     *
+     * Suspended instances keep their scheduling.
+     */
+    private Map<String, ListenableFuture<Operation>> setScheduling(
+            List<PersistentSlave> slaves, final Map<String, SettableFuture<Node>> results) throws IOException {
+        final Map<String, Operation> schedulingOps = new LinkedHashMap<String, Operation>();
+        Batches setSchedulings = new Batches(this.client, this.latencies);
+        for (PersistentSlave slave : slaves) {
+            final String name = slave.getNodeName();
+            Boolean preemptible = slave.getPreemptible();
+            if (preemptible == null
+                    || preemptible.equals(this.inventory.isPreemptible(name))
+                    || "SUSPENDED".equals(this.inventory.getState(name))) {
+                continue;
+            }
+            setSchedulings.queue(this.client.getCompute().instances()
+                    .setScheduling(this.client.getProject(), this.client.getZone(), name, scheduling(preemptible)),
+                    new JsonBatchCallback<Operation>() {
+                        @Override public void onSuccess(Operation op, HttpHeaders headers) {
+                            schedulingOps.put(name, op);
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            giveUp(results, name, "failed to set the scheduling: " + error.getMessage());
+                        }
+                    });
+        }
+        setSchedulings.execute("setScheduling");
+
+        Map<String, ListenableFuture<Operation>> result = new LinkedHashMap<String, ListenableFuture<Operation>>();
+        for (Map.Entry<String, Operation> entry : schedulingOps.entrySet()) {
+            result.put(entry.getKey(), this.watcher.watch(this.client, entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the scheduling of preemptible or standard capacity.
+     *
+     * Preemptible instances can be neither restarted automatically nor migrated.
+     */
+    static Scheduling scheduling(boolean preemptible) {
+        return new Scheduling()
+            .setPreemptible(preemptible)
+            .setAutomaticRestart(! preemptible)
+            .setOnHostMaintenance(preemptible ? "TERMINATE" : "MIGRATE");
+    }
+
+    /**
+     * Starts the instances whose metadata and scheduling operations succeeded.
+     */
+    private void startAll(
+            final Map<String, PersistentSlave> slaves,
+            Map<String, Map<String, String>> itemsByName,
+            Map<String, ListenableFuture<Operation>> metadataDones,
+            Map<String, ListenableFuture<Operation>> schedulingDones,
+            final Map<String, SettableFuture<Node>> results) throws IOException {
+        Compute compute = this.client.getCompute();
+        final String zone = this.client.getZone();
+        final Map<String, Operation> startOps = new LinkedHashMap<String, Operation>();
+        Batches starts = new Batches(this.client, this.latencies);
+        for (Map.Entry<String, ListenableFuture<Operation>> entry : metadataDones.entrySet()) {
+            final String name = entry.getKey();
+            Operation metadataOp = getDone(entry.getValue());
+            if (metadataOp == null || ! OperationTracker.isSuccessful(metadataOp)) {
+                this.metadataUpdater.invalidate(name);
+                giveUp(results, name, "failed to add metadata");
+                continue;
+            }
+            this.metadataUpdater.confirm(name, itemsByName.get(name));
+            if (results.get(name).isDone()) {
+                continue;
+            }
+            ListenableFuture<Operation> schedulingDone = schedulingDones.get(name);
+            if (schedulingDone != null) {
+                Operation schedulingOp = getDone(schedulingDone);
+                if (schedulingOp == null || ! OperationTracker.isSuccessful(schedulingOp)) {
+                    giveUp(results, name, "failed to set the scheduling");
+                    continue;
+                }
+                this.inventory.putPreemptible(name, slaves.get(name).getPreemptible());
+            }
+
+            JsonBatchCallback<Operation> callback = new JsonBatchCallback<Operation>() {
+                @Override public void onSuccess(Operation op, HttpHeaders headers) {
+                    startOps.put(name, op);
+                }
+
+                @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                    boolean stockout = PlacementEngine.isStockout(error);
+                    placement.onFailure(zone, stockout);
+                    onStartFailure(slaves.get(name), stockout);
+                    giveUp(results, name, "failed to start: " + error.getMessage(), stockout);
+                }
+            };
+            if ("SUSPENDED".equals(this.inventory.getState(name))) {
+                starts.queue(GceInstance.buildActionRequest(this.client, name, "resume"), Operation.class, callback);
+            } else {
+                starts.queue(compute.instances().start(this.client.getProject(), zone, name), callback);
+            }
+        }
+        final long startNanos = System.nanoTime();
+        starts.execute("start");
+
+        for (Map.Entry<String, Operation> entry : startOps.entrySet()) {
+            final String name = entry.getKey();
+            final ListenableFuture<Operation> startDone = this.watcher.watch(this.client, entry.getValue());
+            startDone.addListener(new Runnable() {
+                @Override public void run() {
+                    Operation op = getDone(startDone);
+                    if (op == null || ! OperationTracker.isSuccessful(op)) {
+                        boolean stockout = op != null && PlacementEngine.isStockout(op);
+                        placement.onFailure(zone, stockout);
+                        onStartFailure(slaves.get(name), stockout);
+                        giveUp(results, name, "failed to start", stockout);
+                    } else {
+                        placement.onStart(zone, true, (System.nanoTime() - startNanos) / 1000000);
+                        results.get(name).set(slaves.get(name));
+                    }
+                }
+            }, this.executor);
+        }
+    }
+
+    /**
+     * Makes the instance fall back to standard capacity if its preemptible start failed by a stockout.
+     */
+    private void onStartFailure(PersistentSlave slave, boolean stockout) {
+        if (stockout && Boolean.TRUE.equals(slave.getPreemptible())) {
+            this.preemption.onStockout(slave.getNodeName(), slave.getLabelString());
+        }
+    }
+
+    /**
+     * Returns the result of the done future; or null if the future failed.
+     */
+    private static Operation getDone(ListenableFuture<Operation> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException eex) {
+            LOGGER.log(Level.WARNING, "operation failed", eex.getCause());
+            return null;
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the node of the done future; or null if the future failed.
+     */
+    private static Node getDoneNode(ListenableFuture<Node> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException eex) {
+            return null;
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Gives up launching the slave, failing its future.
+     */
+    private static void giveUp(Map<String, SettableFuture<Node>> results, String name, String reason) {
+        giveUp(results, name, reason, false);
+    }
+
+    /**
+     * Gives up launching the slave, failing its future with the stockout flag.
+     */
+    private static void giveUp(Map<String, SettableFuture<Node>> results, String name, String reason,
+            boolean stockout) {
+        LOGGER.warning("provision: " + reason + " for " + name);
+        results.get(name).setException(new LaunchFailedException(reason + " for " + name, stockout));
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
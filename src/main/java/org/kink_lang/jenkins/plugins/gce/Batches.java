@@ -0,0 +1,175 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.util.BackOff;
+
+/**
+ * Batch requests of a phase, each of which contains at most MAX_BATCH_SIZE requests.
+ *
+ * Rate-limited parts are queued again into the next batch request after the backoff of the throttle,
+ * and fail with the last error when the backoff gives up.
+ */
+class Batches {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(Batches.class.getName());
+
+    /** The maximum # of requests in a batch request. */
+    static final int MAX_BATCH_SIZE = 100;
+
+    /** The client which makes the batch requests. */
+    private final ComputeClient client;
+
+    /** The recorder of batch latencies. */
+    private final LatencyRecorder latencies;
+
+    /** The batch requests not executed yet. */
+    private final List<BatchRequest> batches = new ArrayList<BatchRequest>();
+
+    /** The parts rate-limited in the batch requests being executed. */
+    private final List<Part<?>> rateLimited = new ArrayList<Part<?>>();
+
+    Batches(ComputeClient client, LatencyRecorder latencies) {
+        this.client = client;
+        this.latencies = latencies;
+    }
+
+    /**
+     * Queues the request made by the Compute API client.
+     */
+    <T> void queue(final AbstractGoogleJsonClientRequest<T> request, JsonBatchCallback<T> callback)
+            throws IOException {
+        new Part<T>(callback) {
+            @Override void queueTo(BatchRequest batch) throws IOException {
+                request.queue(batch, this);
+            }
+        }.queueTo(next());
+    }
+
+    /**
+     * Queues the request built by the request factory, such as an instance action.
+     */
+    <T> void queue(final HttpRequest request, final Class<T> dataClass, JsonBatchCallback<T> callback)
+            throws IOException {
+        new Part<T>(callback) {
+            @Override void queueTo(BatchRequest batch) throws IOException {
+                batch.queue(request, dataClass, GoogleJsonErrorContainer.class, this);
+            }
+        }.queueTo(next());
+    }
+
+    /**
+     * Returns the batch request to queue the next request.
+     */
+    private BatchRequest next() {
+        int last = this.batches.size() - 1;
+        if (last >= 0 && this.batches.get(last).size() < MAX_BATCH_SIZE) {
+            return this.batches.get(last);
+        }
+        BatchRequest batch = this.client.getCompute().batch();
+        this.batches.add(batch);
+        return batch;
+    }
+
+    /**
+     * Executes the batch requests, recording the time of each request as "batch.{phase}".
+     *
+     * Rate-limited parts are retried in new batch requests until the backoff gives up.
+     */
+    void execute(String phase) throws IOException {
+        BackOff backOff = null;
+        while (! this.batches.isEmpty()) {
+            List<BatchRequest> round = new ArrayList<BatchRequest>(this.batches);
+            this.batches.clear();
+            for (BatchRequest batch : round) {
+                int size = batch.size();
+                long startNanos = System.nanoTime();
+                batch.execute();
+                long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+                this.latencies.record("batch." + phase, elapsedMillis);
+                LOGGER.fine(String.format("batch %s of %d requests took %d ms", phase, size, elapsedMillis));
+            }
+
+            if (this.rateLimited.isEmpty()) {
+                return;
+            }
+            List<Part<?>> parts = new ArrayList<Part<?>>(this.rateLimited);
+            this.rateLimited.clear();
+            if (backOff == null) {
+                backOff = this.client.getThrottle().newBackOff();
+            }
+            if (! this.client.getThrottle().backOffOnce(backOff)) {
+                for (Part<?> part : parts) {
+                    part.giveUp();
+                }
+                return;
+            }
+            LOGGER.fine(String.format("batch %s: queue %d rate-limited requests again", phase, parts.size()));
+            for (Part<?> part : parts) {
+                part.queueTo(next());
+            }
+        }
+    }
+
+    /**
+     * A request queued in the batch requests, which keeps the rate-limited result for a retry.
+     */
+    private abstract class Part<T> extends JsonBatchCallback<T> {
+
+        /** The callback of the final result. */
+        private final JsonBatchCallback<T> callback;
+
+        /** The last rate limit error; or null. */
+        private GoogleJsonError error;
+
+        /** The headers of the last rate limit error; or null. */
+        private HttpHeaders headers;
+
+        Part(JsonBatchCallback<T> callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Queues the request to the batch request.
+         */
+        abstract void queueTo(BatchRequest batch) throws IOException;
+
+        @Override
+        public void onSuccess(T result, HttpHeaders responseHeaders) throws IOException {
+            this.callback.onSuccess(result, responseHeaders);
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+            if (ApiThrottle.isRateLimited(e)) {
+                this.error = e;
+                this.headers = responseHeaders;
+                rateLimited.add(this);
+            } else {
+                this.callback.onFailure(e, responseHeaders);
+            }
+        }
+
+        /**
+         * Fails the request with the last rate limit error.
+         */
+        void giveUp() throws IOException {
+            this.callback.onFailure(this.error, this.headers);
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,174 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import hudson.model.Label;
+import hudson.model.Node;
+
+/**
+ * Ledger of the executors of the slaves of a cloud which are planned but not online yet.
+ *
+ * An entry is added when a slave is provisioned, marked launched when its instance is started,
+ * and removed when the slave gets online, fails to launch, or is terminated.
+ * Jenkins counts the capacity of a planned node until its future is done, that is, until the slave gets online.
+ * The capacity of a slave provisioned ahead of predicted demand is not counted by Jenkins;
+ * the cloud subtracts it from the excess workload once launched, so that the same demand does not start more instances.
+ */
+class CapacityLedger {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(CapacityLedger.class.getName());
+
+    /** The key of the capacity planned for unlabeled tasks. */
+    static final String UNLABELED = "(unlabeled)";
+
+    /** The entries keyed by the node names. */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** The labels which capacity has ever been planned for. */
+    private final Set<String> labels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Records that the node is planned for the label; the label is null for unlabeled tasks.
+     *
+     * Awaited is true if Jenkins counts the capacity of the node as a planned node until it gets online.
+     */
+    void plan(Node node, Label label, boolean awaited) {
+        String key = label == null ? UNLABELED : label.getExpression();
+        this.labels.add(key);
+        this.entries.put(node.getNodeName(), new Entry(node, key, awaited));
+    }
+
+    /**
+     * Returns the labels which capacity has ever been planned for, sorted.
+     */
+    Set<String> getLabels() {
+        return new TreeSet<String>(this.labels);
+    }
+
+    /**
+     * Records that the instance of the node is started, and the agent is going to connect.
+     */
+    void onLaunched(String name) {
+        Entry entry = this.entries.get(name);
+        if (entry != null) {
+            entry.launched = true;
+        }
+    }
+
+    /**
+     * Returns true if the node is planned and not online yet.
+     */
+    boolean contains(String name) {
+        return this.entries.containsKey(name);
+    }
+
+    /**
+     * Removes the entry of the node, because it is online, failed or terminated.
+     */
+    void remove(String name) {
+        this.entries.remove(name);
+    }
+
+    /**
+     * Removes the entries planned before the time limit, and returns # of removed entries.
+     */
+    int expire(long maxAgeMillis) {
+        long limit = System.currentTimeMillis() - maxAgeMillis;
+        int count = 0;
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+            if (entry.getValue().plannedMillis < limit && this.entries.remove(entry.getKey(), entry.getValue())) {
+                LOGGER.fine("planned capacity of " + entry.getKey() + " expired");
+                ++ count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns # of executors of the launched nodes which can take the tasks of the label,
+     * and which Jenkins does not count as planned nodes.
+     *
+     * A null label matches all the nodes.
+     */
+    int countLaunchedExecutors(Label label) {
+        int count = 0;
+        for (Entry entry : this.entries.values()) {
+            if (entry.launched && ! entry.awaited && (label == null || label.contains(entry.node))) {
+                count += entry.executors;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns # of executors planned but not online, keyed by the labels which they are planned for.
+     */
+    Map<String, Integer> getPlannedExecutors() {
+        return sumByLabel(false);
+    }
+
+    /**
+     * Returns # of executors whose instances are started but not online, keyed by the labels.
+     */
+    Map<String, Integer> getLaunchedExecutors() {
+        return sumByLabel(true);
+    }
+
+    /**
+     * Returns the sums of the executors of the entries keyed by the labels.
+     */
+    private Map<String, Integer> sumByLabel(boolean launchedOnly) {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (Entry entry : this.entries.values()) {
+            if (launchedOnly && ! entry.launched) {
+                continue;
+            }
+            Integer sum = result.get(entry.label);
+            result.put(entry.label, (sum == null ? 0 : sum) + entry.executors);
+        }
+        return result;
+    }
+
+    /**
+     * Planned capacity of a node.
+     */
+    private static class Entry {
+
+        /** The planned node. */
+        final Node node;
+
+        /** The label which the node is planned for. */
+        final String label;
+
+        /** # of executors of the node. */
+        final int executors;
+
+        /** Whether Jenkins counts the capacity as a planned node. */
+        final boolean awaited;
+
+        /** When the node was planned. */
+        final long plannedMillis = System.currentTimeMillis();
+
+        /** Whether the instance is started. */
+        volatile boolean launched;
+
+        Entry(Node node, String label, boolean awaited) {
+            this.node = node;
+            this.label = label;
+            this.awaited = awaited;
+            this.executors = GoogleCloud.executorsOf(node);
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
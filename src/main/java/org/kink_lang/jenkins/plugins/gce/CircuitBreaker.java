@@ -0,0 +1,178 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker of the launches of a cloud, which stops provisioning while the Compute API keeps failing.
+ *
+ * The breaker opens after FAILURE_THRESHOLD consecutive launch failures.
+ * While it is open, the cloud provisions nothing.
+ * When the open window elapses, the breaker gets half-open and allows a single probe launch:
+ * the breaker closes if the probe succeeds, or opens again for a doubled window if it fails.
+ */
+class CircuitBreaker {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /** # of consecutive failures which open the breaker. */
+    static final int FAILURE_THRESHOLD = 5;
+
+    /** The first open window. */
+    private static final long MIN_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** The maximum open window. */
+    private static final long MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * States of a breaker.
+     */
+    enum State {
+
+        /** Launches are allowed. */
+        CLOSED,
+
+        /** Launches are rejected until the open window elapses. */
+        OPEN,
+
+        /** A single probe launch is in flight. */
+        HALF_OPEN
+
+    }
+
+    /** The name of the cloud. */
+    private final String cloudName;
+
+    /** The current state; guarded by this. */
+    private State state = State.CLOSED;
+
+    /** # of consecutive failures; guarded by this. */
+    private int failures;
+
+    /** The current open window; guarded by this. */
+    private long openMillis = MIN_OPEN_MILLIS;
+
+    /** When the breaker was opened last; guarded by this. */
+    private long openedMillis;
+
+    /** The message of the last failure; or null; guarded by this. */
+    private String lastFailure;
+
+    CircuitBreaker(String cloudName) {
+        this.cloudName = cloudName;
+    }
+
+    /**
+     * Returns true if the breaker allows a launch now, without changing the state.
+     */
+    synchronized boolean allowsLaunch() {
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return now() - this.openedMillis >= this.openMillis;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Begins a provisioning round, and returns the max # of slaves which can be launched in it;
+     * or -1 if there is no limit.
+     *
+     * If the open window has elapsed, the breaker gets half-open, and the round can launch a single probe.
+     */
+    synchronized int beginProvision() {
+        if (this.state == State.CLOSED) {
+            return -1;
+        }
+        if (this.state == State.OPEN && now() - this.openedMillis >= this.openMillis) {
+            LOGGER.info("circuit breaker of cloud " + this.cloudName + " is half-open; probing a launch");
+            this.state = State.HALF_OPEN;
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Ends the half-open state without a probe, when the round launched nothing.
+     */
+    synchronized void cancelProbe() {
+        if (this.state == State.HALF_OPEN) {
+            this.state = State.OPEN;
+        }
+    }
+
+    /**
+     * Records a successful launch, closing the breaker.
+     */
+    synchronized void onSuccess() {
+        if (this.state != State.CLOSED) {
+            LOGGER.info("circuit breaker of cloud " + this.cloudName + " is closed");
+        }
+        this.state = State.CLOSED;
+        this.failures = 0;
+        this.openMillis = MIN_OPEN_MILLIS;
+    }
+
+    /**
+     * Records a failed launch, opening the breaker if the failures reach the threshold,
+     * or if the probe of the half-open breaker fails.
+     */
+    synchronized void onFailure(String message) {
+        ++ this.failures;
+        this.lastFailure = message;
+        if (this.state == State.HALF_OPEN) {
+            this.openMillis = Math.min(this.openMillis * 2, MAX_OPEN_MILLIS);
+            open();
+        } else if (this.state == State.CLOSED && this.failures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    /**
+     * Opens the breaker for the current window.
+     */
+    private void open() {
+        LOGGER.warning(String.format("circuit breaker of cloud %s is open for %d seconds after %d failures: %s",
+                    this.cloudName, this.openMillis / 1000, this.failures, this.lastFailure));
+        this.state = State.OPEN;
+        this.openedMillis = now();
+    }
+
+    /**
+     * Returns the current time in millis; overridden by tests.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the current state.
+     */
+    synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * Returns the description of the state for the cloud page.
+     */
+    synchronized String describe() {
+        switch (this.state) {
+            case CLOSED:
+                return this.failures == 0
+                    ? "Closed"
+                    : String.format("Closed (%d consecutive failures)", this.failures);
+            case OPEN:
+                long remaining = Math.max(0, this.openedMillis + this.openMillis - now());
+                return String.format("Open for %d more seconds after %d consecutive failures; last failure: %s",
+                        remaining / 1000, this.failures, this.lastFailure);
+            default:
+                return "Half-open; probing a launch";
+        }
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,290 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Runtime state of a cloud, which survives the reconfiguration of the cloud.
+ *
+ * Saving the configuration replaces the GoogleCloud object by a new one,
+ * so the state kept in its transient fields, such as pending stops, planned capacity, the circuit breaker,
+ * agents being waited for and operations being watched, would be dropped.
+ * Such state is held here keyed by the cloud name instead, and the new object takes over it.
+ * The stats of the placement engine are kept as well, while its cooldown period follows the configuration.
+ * Components made only from the configuration, such as the API throttle and the spec index,
+ * are still made per GoogleCloud object.
+ *
+ * The runtime of a cloud removed from Jenkins is discarded by the periodic maintenance.
+ */
+class CloudRuntime {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(CloudRuntime.class.getName());
+
+    /** The runtimes keyed by the cloud names. */
+    private static final ConcurrentMap<String, CloudRuntime> RUNTIMES = new ConcurrentHashMap<String, CloudRuntime>();
+
+    /** The name of the cloud. */
+    private final String cloudName;
+
+    /** Latencies of operations and launches. */
+    private final LatencyRecorder latencies = new LatencyRecorder();
+
+    /** The tracker of zone operations. */
+    private final OperationTracker operationTracker = new OperationTracker(this.latencies);
+
+    /** The executor of GCE calls of the cloud. */
+    private final ThreadPoolExecutor executor;
+
+    /** The watcher of in-flight zone operations. */
+    private final OperationWatcher operationWatcher;
+
+    /** The streamer of the serial port output of booting instances. */
+    private final SerialPortStreamer serialPortStreamer;
+
+    /** The inventory of the states of spec instances. */
+    private final InstanceInventory inventory = new InstanceInventory();
+
+    /** The metrics of Compute API calls. */
+    private final ApiMetrics apiMetrics = new ApiMetrics();
+
+    /** The updater of instance metadata. */
+    private final MetadataUpdater metadataUpdater = new MetadataUpdater();
+
+    /** The pool of instances prepared for launching. */
+    private final WarmPool warmPool = new WarmPool(this.metadataUpdater);
+
+    /** Instances being stopped in the background. */
+    private final PendingStops pendingStops = new PendingStops();
+
+    /** The ledger of capacity planned but not online. */
+    private final CapacityLedger capacityLedger = new CapacityLedger();
+
+    /** The tracker of preemptions and fallbacks to standard capacity. */
+    private final PreemptionTracker preemptionTracker = new PreemptionTracker();
+
+    /** The waiter of agent connections. */
+    private final ConnectWaiter connectWaiter = new ConnectWaiter(this.latencies);
+
+    /** The circuit breaker of launches. */
+    private final CircuitBreaker circuitBreaker;
+
+    /** The engine which chooses zones; the cooldown is set from the configuration of the cloud. */
+    private final PlacementEngine placementEngine = new PlacementEngine(0);
+
+    /** The predictor of demand; lazily made; guarded by this. */
+    private DemandPredictor demandPredictor;
+
+    /** The detector of preemptions; made when the first cloud object is bound; guarded by this. */
+    private PreemptionDetector preemptionDetector;
+
+    /** The cache disks of the instances; made when the first cloud object is bound; guarded by this. */
+    private DiskCache diskCache;
+
+    private CloudRuntime(String cloudName) {
+        this.cloudName = cloudName;
+        this.executor = new ThreadPoolExecutor(
+                1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "GoogleCloud " + cloudName));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.operationWatcher = new OperationWatcher(this.latencies, this.executor);
+        this.serialPortStreamer = new SerialPortStreamer(this.latencies, this.executor);
+        this.circuitBreaker = new CircuitBreaker(cloudName);
+    }
+
+    /**
+     * Returns the runtime of the cloud, making it if missing,
+     * and binds the cloud object to the components which call back the cloud.
+     */
+    static CloudRuntime bind(GoogleCloud cloud) {
+        CloudRuntime runtime = RUNTIMES.get(cloud.name);
+        if (runtime == null) {
+            RUNTIMES.putIfAbsent(cloud.name, new CloudRuntime(cloud.name));
+            runtime = RUNTIMES.get(cloud.name);
+        }
+        runtime.setCloud(cloud);
+        return runtime;
+    }
+
+    /**
+     * Discards the runtimes of the clouds other than the named ones, shutting down their executors.
+     */
+    static void retain(Collection<String> cloudNames) {
+        for (Map.Entry<String, CloudRuntime> entry : RUNTIMES.entrySet()) {
+            if (! cloudNames.contains(entry.getKey()) && RUNTIMES.remove(entry.getKey(), entry.getValue())) {
+                LOGGER.info("discard the runtime state of the removed cloud " + entry.getKey());
+                entry.getValue().executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Makes the components which call back the cloud use the cloud object.
+     */
+    private synchronized void setCloud(GoogleCloud cloud) {
+        if (this.preemptionDetector == null) {
+            this.preemptionDetector = new PreemptionDetector(cloud);
+            this.diskCache = new DiskCache(cloud);
+        } else {
+            this.preemptionDetector.setCloud(cloud);
+            this.diskCache.setCloud(cloud);
+        }
+    }
+
+    /**
+     * Sets # of threads of the executor, which is changed by the configuration.
+     */
+    synchronized void setThreads(int threads) {
+        if (threads > this.executor.getMaximumPoolSize()) {
+            this.executor.setMaximumPoolSize(threads);
+            this.executor.setCorePoolSize(threads);
+        } else {
+            this.executor.setCorePoolSize(threads);
+            this.executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Returns the latencies of operations and launches.
+     */
+    LatencyRecorder getLatencies() {
+        return this.latencies;
+    }
+
+    /**
+     * Returns the tracker of zone operations.
+     */
+    OperationTracker getOperationTracker() {
+        return this.operationTracker;
+    }
+
+    /**
+     * Returns the executor of GCE calls of the cloud.
+     */
+    ThreadPoolExecutor getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Returns the watcher of in-flight zone operations.
+     */
+    OperationWatcher getOperationWatcher() {
+        return this.operationWatcher;
+    }
+
+    /**
+     * Returns the streamer of the serial port output of booting instances.
+     */
+    SerialPortStreamer getSerialPortStreamer() {
+        return this.serialPortStreamer;
+    }
+
+    /**
+     * Returns the inventory of the states of spec instances.
+     */
+    InstanceInventory getInventory() {
+        return this.inventory;
+    }
+
+    /**
+     * Returns the metrics of Compute API calls.
+     */
+    ApiMetrics getApiMetrics() {
+        return this.apiMetrics;
+    }
+
+    /**
+     * Returns the updater of instance metadata.
+     */
+    MetadataUpdater getMetadataUpdater() {
+        return this.metadataUpdater;
+    }
+
+    /**
+     * Returns the pool of instances prepared for launching.
+     */
+    WarmPool getWarmPool() {
+        return this.warmPool;
+    }
+
+    /**
+     * Returns the instances being stopped in the background.
+     */
+    PendingStops getPendingStops() {
+        return this.pendingStops;
+    }
+
+    /**
+     * Returns the ledger of capacity planned but not online.
+     */
+    CapacityLedger getCapacityLedger() {
+        return this.capacityLedger;
+    }
+
+    /**
+     * Returns the tracker of preemptions and fallbacks to standard capacity.
+     */
+    PreemptionTracker getPreemptionTracker() {
+        return this.preemptionTracker;
+    }
+
+    /**
+     * Returns the waiter of agent connections.
+     */
+    ConnectWaiter getConnectWaiter() {
+        return this.connectWaiter;
+    }
+
+    /**
+     * Returns the circuit breaker of launches.
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Returns the engine which chooses zones.
+     */
+    PlacementEngine getPlacementEngine() {
+        return this.placementEngine;
+    }
+
+    /**
+     * Returns the predictor of demand.
+     */
+    synchronized DemandPredictor getDemandPredictor() {
+        if (this.demandPredictor == null) {
+            this.demandPredictor = new DemandPredictor(Jenkins.getInstance().getRootDir(), this.cloudName);
+        }
+        return this.demandPredictor;
+    }
+
+    /**
+     * Returns the detector of preemptions.
+     */
+    synchronized PreemptionDetector getPreemptionDetector() {
+        return this.preemptionDetector;
+    }
+
+    /**
+     * Returns the cache disks of the instances.
+     */
+    synchronized DiskCache getDiskCache() {
+        return this.diskCache;
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,245 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.compute.Compute;
+
+/**
+ * Compute API client shared by all the instances of a cloud.
+ *
+ * The transport, the JSON factory and the Compute client are thread-safe,
+ * and the credential refreshes its access token by itself when it expires.
+ */
+class ComputeClient {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(ComputeClient.class.getName());
+
+    /**
+     * The system property of the root URL of the Compute API, such as the URL of a local stub server.
+     *
+     * When the property is set, clients call the API at the URL without credentials,
+     * so that the plugin can be exercised offline.
+     */
+    static final String ROOT_URL_PROPERTY = ComputeClient.class.getName() + ".rootUrl";
+
+    /**
+     * The transport of the clients calling the API at {@link #ROOT_URL_PROPERTY};
+     * or null to use a NetHttpTransport. Set by benchmarks which serve the API from memory.
+     */
+    static volatile HttpTransport stubTransport;
+
+    /** The GCP project ID. */
+    private final String project;
+
+    /** The GCE zone ID. */
+    private final String zone;
+
+    /** The HTTP transport. */
+    private final HttpTransport transport;
+
+    /** The JSON factory. */
+    private final JsonFactory jsonFactory;
+
+    /** The credential. */
+    private final GoogleCredential credential;
+
+    /** The throttle of the requests. */
+    private final ApiThrottle throttle;
+
+    /** The Compute API client. */
+    private final Compute compute;
+
+    /** Clients of the zones sharing the Compute API client, keyed by the zones. */
+    private final ConcurrentMap<String, ComputeClient> zoneClients;
+
+    private ComputeClient(
+            String project, String zone,
+            HttpTransport transport, JsonFactory jsonFactory, GoogleCredential credential,
+            String rootUrl, ApiThrottle throttle, ApiMetrics metrics) {
+        this(project, zone, transport, jsonFactory, credential, throttle,
+                buildCompute(transport, jsonFactory, credential, rootUrl, throttle, metrics),
+                new ConcurrentHashMap<String, ComputeClient>());
+        this.zoneClients.put(zone, this);
+    }
+
+    private ComputeClient(
+            String project, String zone,
+            HttpTransport transport, JsonFactory jsonFactory, GoogleCredential credential,
+            ApiThrottle throttle, Compute compute, ConcurrentMap<String, ComputeClient> zoneClients) {
+        this.project = project;
+        this.zone = zone;
+        this.transport = transport;
+        this.jsonFactory = jsonFactory;
+        this.credential = credential;
+        this.throttle = throttle;
+        this.compute = compute;
+        this.zoneClients = zoneClients;
+    }
+
+    /**
+     * Makes the Compute API client; the root URL is null for the default one.
+     */
+    private static Compute buildCompute(
+            HttpTransport transport, JsonFactory jsonFactory, GoogleCredential credential,
+            String rootUrl, ApiThrottle throttle, ApiMetrics metrics) {
+        Compute.Builder builder = new Compute.Builder(transport, jsonFactory, metrics.wrap(throttle.wrap(credential)))
+            .setApplicationName("Jenkins");
+        if (rootUrl != null) {
+            builder.setRootUrl(rootUrl);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Makes a client for the project and the zone, using the credentials file.
+     *
+     * If {@link #ROOT_URL_PROPERTY} is set, the client calls the API at the URL without credentials instead.
+     */
+    static ComputeClient create(
+            String project, String zone, String credentialsFilePath, ApiThrottle throttle, ApiMetrics metrics)
+            throws IOException, GeneralSecurityException {
+        String rootUrl = System.getProperty(ROOT_URL_PROPERTY);
+        if (rootUrl != null && ! rootUrl.trim().isEmpty()) {
+            LOGGER.info("use the Compute API at " + rootUrl);
+            HttpTransport transport = stubTransport == null ? new NetHttpTransport() : stubTransport;
+            return create(project, zone, transport, rootUrl.trim(), throttle, metrics);
+        }
+
+        HttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
+        JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+        GoogleCredential credential = makeCredential(transport, jsonFactory, credentialsFilePath);
+        credential.refreshToken();
+        return new ComputeClient(project, zone, transport, jsonFactory, credential, null, throttle, metrics);
+    }
+
+    /**
+     * Makes a client which calls the API at the root URL through the transport, without credentials.
+     *
+     * The transport can be a stub such as MockHttpTransport,
+     * so that the provisioning path can be measured without GCP.
+     * The root URL must end with a slash, like "http://localhost:8080/".
+     */
+    static ComputeClient create(
+            String project, String zone, HttpTransport transport, String rootUrl,
+            ApiThrottle throttle, ApiMetrics metrics) {
+        JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+        GoogleCredential credential = new GoogleCredential().setAccessToken("stub");
+        return new ComputeClient(project, zone, transport, jsonFactory, credential, rootUrl, throttle, metrics);
+    }
+
+    /**
+     * Makes a GoogleCredential instance to manipulate slave instances.
+     */
+    private static GoogleCredential makeCredential(
+            HttpTransport transport, JsonFactory jsonFactory, String credentialsFilePath)
+            throws IOException {
+        String path = credentialsFilePath == null ? "" : credentialsFilePath.trim();
+        if (path.isEmpty()) {
+            return GoogleCredential.getApplicationDefault(transport, jsonFactory);
+        }
+
+        LOGGER.info("use service account json file " + path);
+        try (FileInputStream fis = new FileInputStream(path)) {
+            return GoogleCredential.fromStream(fis, transport, jsonFactory)
+                .createScoped(Collections.singletonList("https://www.googleapis.com/auth/compute"));
+        }
+    }
+
+    /**
+     * Returns the GCP project ID.
+     */
+    String getProject() {
+        return this.project;
+    }
+
+    /**
+     * Returns the GCE zone ID.
+     */
+    String getZone() {
+        return this.zone;
+    }
+
+    /**
+     * Returns the client of the zone, which shares the Compute API client and the throttle with this.
+     */
+    ComputeClient withZone(String otherZone) {
+        ComputeClient client = this.zoneClients.get(otherZone);
+        if (client != null) {
+            return client;
+        }
+        ComputeClient newClient = new ComputeClient(
+                this.project, otherZone, this.transport, this.jsonFactory, this.credential,
+                this.throttle, this.compute, this.zoneClients);
+        client = this.zoneClients.putIfAbsent(otherZone, newClient);
+        return client == null ? newClient : client;
+    }
+
+    /**
+     * Returns the HTTP transport.
+     */
+    HttpTransport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Returns the JSON factory.
+     */
+    JsonFactory getJsonFactory() {
+        return this.jsonFactory;
+    }
+
+    /**
+     * Returns the credential.
+     */
+    GoogleCredential getCredential() {
+        return this.credential;
+    }
+
+    /**
+     * Returns the Compute API client.
+     */
+    Compute getCompute() {
+        return this.compute;
+    }
+
+    /**
+     * Returns the throttle of the requests.
+     */
+    ApiThrottle getThrottle() {
+        return this.throttle;
+    }
+
+    /**
+     * Executes the request made by the Compute API client, retrying it if it is rate-limited.
+     */
+    <T> T execute(AbstractGoogleClientRequest<T> request) throws IOException {
+        return this.throttle.execute(request);
+    }
+
+    /**
+     * Executes the request built by the request factory of the Compute API client,
+     * retrying it if it is rate-limited.
+     */
+    HttpResponse execute(HttpRequest request) throws IOException {
+        return this.throttle.execute(request, this.jsonFactory);
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,86 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Per-cloud cache of the Compute API client.
+ *
+ * The client is rebuilt only when the project, the zone or the credentials file path changes,
+ * or when the cache is invalidated explicitly.
+ */
+class ComputeClientCache {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(ComputeClientCache.class.getName());
+
+    /** The cached client; or null. */
+    private ComputeClient client;
+
+    /** The config which the cached client was made for; or null. */
+    private List<String> key;
+
+    /** The throttle which the cached client was made with; or null. */
+    private ApiThrottle throttle;
+
+    /** The metrics which the cached client was made with; or null. */
+    private ApiMetrics metrics;
+
+    /** # of lookups satisfied by the cached client. */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** # of lookups which made a new client. */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Returns the client for the config, making a new one if the cached one is not usable.
+     */
+    synchronized ComputeClient get(
+            String project, String zone, String credentialsFilePath, ApiThrottle throttle, ApiMetrics metrics)
+            throws IOException, GeneralSecurityException {
+        List<String> newKey = Arrays.asList(project, zone, credentialsFilePath);
+        if (this.client != null && newKey.equals(this.key) && throttle == this.throttle && metrics == this.metrics) {
+            this.hitCount.incrementAndGet();
+            return this.client;
+        }
+
+        this.missCount.incrementAndGet();
+        LOGGER.fine("making a new compute client for " + newKey);
+        this.client = ComputeClient.create(project, zone, credentialsFilePath, throttle, metrics);
+        this.key = newKey;
+        this.throttle = throttle;
+        this.metrics = metrics;
+        return this.client;
+    }
+
+    /**
+     * Discards the cached client.
+     */
+    synchronized void invalidate() {
+        this.client = null;
+        this.key = null;
+        this.throttle = null;
+        this.metrics = null;
+    }
+
+    /**
+     * Returns # of lookups satisfied by the cached client.
+     */
+    long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * Returns # of lookups which made a new client.
+     */
+    long getMissCount() {
+        return this.missCount.get();
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
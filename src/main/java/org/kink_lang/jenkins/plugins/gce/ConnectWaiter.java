@@ -0,0 +1,150 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Waits until the agents of launched slaves connect, so that planned nodes are done only when they are online.
+ *
+ * The wait begins when the instance is started, and ends when the computer gets online.
+ * The time between them, booting the OS and connecting the agent, is recorded as "phase.boot",
+ * separately from the latencies of the API calls.
+ * If the launch fails, the future fails with the same cause.
+ * If the agent does not connect within the timeout, the timeout action is run,
+ * and the future fails with LaunchFailedException.
+ */
+class ConnectWaiter {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(ConnectWaiter.class.getName());
+
+    /** The recorder of the boot latencies. */
+    private final LatencyRecorder latencies;
+
+    /** The slaves waiting for connection keyed by the names. */
+    private final ConcurrentMap<String, Waiting> waitings = new ConcurrentHashMap<String, Waiting>();
+
+    ConnectWaiter(LatencyRecorder latencies) {
+        this.latencies = latencies;
+    }
+
+    /**
+     * Returns the future which yields the slave when its computer gets online after the launch.
+     * The future fails if the launch fails, or if the agent does not connect within the timeout.
+     */
+    ListenableFuture<Node> waitOnline(final Node slave, final ListenableFuture<Node> launched,
+            final long timeoutMillis, final Runnable onTimeout) {
+        final SettableFuture<Node> result = SettableFuture.<Node>create();
+        launched.addListener(new Runnable() {
+            @Override public void run() {
+                Node node;
+                try {
+                    node = launched.get();
+                } catch (ExecutionException eex) {
+                    result.setException(eex.getCause() == null ? eex : eex.getCause());
+                    return;
+                } catch (InterruptedException iex) {
+                    result.setException(iex);
+                    return;
+                }
+                if (node == null) {
+                    result.setException(new LaunchFailedException(
+                                "the instance of " + slave.getNodeName() + " was not started", false));
+                } else {
+                    begin(slave, result, timeoutMillis, onTimeout);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    /**
+     * Begins waiting for the connection of the started slave.
+     */
+    private void begin(Node slave, SettableFuture<Node> result, final long timeoutMillis, final Runnable onTimeout) {
+        final String name = slave.getNodeName();
+        final Waiting waiting = new Waiting(slave, result);
+        this.waitings.put(name, waiting);
+        Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                if (waitings.remove(name, waiting)) {
+                    LOGGER.warning("the agent of " + name + " did not connect in time");
+                    try {
+                        onTimeout.run();
+                    } catch (RuntimeException rex) {
+                        LOGGER.log(Level.WARNING, "failed to give up " + name, rex);
+                    }
+                    waiting.result.setException(new LaunchFailedException(
+                                "agent of " + name + " did not connect in " + timeoutMillis + " ms", false));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        Computer computer = slave.toComputer();
+        if (computer != null && computer.isOnline()) {
+            onOnline(name);
+        }
+    }
+
+    /**
+     * Completes the wait of the slave, which got online.
+     */
+    void onOnline(String name) {
+        Waiting waiting = this.waitings.remove(name);
+        if (waiting != null) {
+            this.latencies.record("phase.boot", (System.nanoTime() - waiting.startedNanos) / 1000000);
+            waiting.result.set(waiting.slave);
+        }
+    }
+
+    /**
+     * Returns true if the slave is waiting for connection.
+     */
+    boolean isWaiting(String name) {
+        return this.waitings.containsKey(name);
+    }
+
+    /**
+     * Returns # of slaves waiting for connection.
+     */
+    int size() {
+        return this.waitings.size();
+    }
+
+    /**
+     * A slave waiting for connection.
+     */
+    private static class Waiting {
+
+        /** The started slave. */
+        final Node slave;
+
+        /** The future which yields the slave when it gets online. */
+        final SettableFuture<Node> result;
+
+        /** When the instance was started. */
+        final long startedNanos = System.nanoTime();
+
+        Waiting(Node slave, SettableFuture<Node> result) {
+            this.slave = slave;
+            this.result = result;
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
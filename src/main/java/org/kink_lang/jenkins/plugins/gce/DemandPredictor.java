@@ -0,0 +1,279 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Util;
+import hudson.XmlFile;
+
+/**
+ * Predicts demand of executors per label from the queue history.
+ *
+ * The history of each label is a ring buffer of 168 hourly slots of a week.
+ * Each slot holds the peak excess workload of the hour, smoothed over weeks.
+ * The history is persisted in JENKINS_HOME, and survives restarts.
+ *
+ * The executors provisioned ahead of the demand of the next hour are counted per label,
+ * so that the predicted capacity is provisioned once per slot,
+ * even if the pre-provisioned slaves are scaled down before the slot.
+ */
+class DemandPredictor {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(DemandPredictor.class.getName());
+
+    /** # of slots of a week. */
+    static final int SLOT_COUNT = 7 * 24;
+
+    /** The file to persist the history. */
+    private final XmlFile file;
+
+    /** The persisted history; guarded by this. */
+    private History history;
+
+    /** The slot being recorded; guarded by this. */
+    private int currentSlot = -1;
+
+    /** The peak excess workload of the current slot per label; guarded by this. */
+    private final Map<String, Integer> currentPeaks = new HashMap<String, Integer>();
+
+    /** Pre-provisioned nodes which have not been used nor terminated, with the times of provisioning; guarded by this. */
+    private final Map<String, Long> predictedNodes = new HashMap<String, Long>();
+
+    /** The slot for which the pre-provisioned executors are counted; guarded by this. */
+    private int provisionedSlot = -1;
+
+    /** # of executors provisioned ahead of the demand of provisionedSlot per label; guarded by this. */
+    private final Map<String, Integer> provisionedExecutors = new HashMap<String, Integer>();
+
+    /** Stats of predictions; guarded by this. */
+    private long predictedCount;
+
+    /** Stats of predictions; guarded by this. */
+    private long hitCount;
+
+    /** Stats of predictions; guarded by this. */
+    private long wastedMillis;
+
+    DemandPredictor(File rootDir, String cloudName) {
+        this.file = new XmlFile(new File(rootDir, "gce-demand-" + Util.rawEncode(cloudName) + ".xml"));
+    }
+
+    /**
+     * Records the excess workload of the label at the current time.
+     */
+    synchronized void record(String label, int excessWorkload) {
+        rollOverIfNeeded();
+        Integer peak = this.currentPeaks.get(label);
+        if (peak == null || peak < excessWorkload) {
+            this.currentPeaks.put(label, excessWorkload);
+        }
+    }
+
+    /**
+     * Returns the expected demand of executors per label in the next hour.
+     */
+    synchronized Map<String, Integer> predictNextHour() {
+        rollOverIfNeeded();
+        int nextSlot = (slotOf(now()) + 1) % SLOT_COUNT;
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (Map.Entry<String, short[]> entry : getHistory().slotsByLabel.entrySet()) {
+            int demand = entry.getValue()[nextSlot];
+            if (demand > 0) {
+                result.put(entry.getKey(), demand);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records that the node with the executors is provisioned ahead of the demand of the label in the next hour.
+     */
+    synchronized void onPredicted(String nodeName, String label, int executors) {
+        ++ this.predictedCount;
+        this.predictedNodes.put(nodeName, System.currentTimeMillis());
+        Map<String, Integer> provisioned = provisionedForNextHour();
+        Integer count = provisioned.get(label);
+        provisioned.put(label, (count == null ? 0 : count) + executors);
+    }
+
+    /**
+     * Returns # of executors already provisioned ahead of the demand of the label in the next hour.
+     */
+    synchronized int getProvisionedForNextHour(String label) {
+        Integer count = provisionedForNextHour().get(label);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the pre-provisioned executors per label for the next hour, clearing them when the slot rolls over.
+     */
+    private Map<String, Integer> provisionedForNextHour() {
+        int nextSlot = (slotOf(now()) + 1) % SLOT_COUNT;
+        if (nextSlot != this.provisionedSlot) {
+            this.provisionedExecutors.clear();
+            this.provisionedSlot = nextSlot;
+        }
+        return this.provisionedExecutors;
+    }
+
+    /**
+     * Records that a task is accepted by the node.
+     */
+    synchronized void onUsed(String nodeName) {
+        if (this.predictedNodes.remove(nodeName) != null) {
+            ++ this.hitCount;
+        }
+    }
+
+    /**
+     * Records that the node is terminated.
+     */
+    synchronized void onTerminated(String nodeName) {
+        Long provisionedMillis = this.predictedNodes.remove(nodeName);
+        if (provisionedMillis != null) {
+            this.wastedMillis += System.currentTimeMillis() - provisionedMillis;
+        }
+    }
+
+    /**
+     * Returns # of nodes provisioned ahead of the demand.
+     */
+    synchronized long getPredictedCount() {
+        return this.predictedCount;
+    }
+
+    /**
+     * Returns the ratio of pre-provisioned nodes which were used; or 0 if nothing is predicted.
+     */
+    synchronized double getHitRate() {
+        return this.predictedCount == 0 ? 0 : (double) this.hitCount / this.predictedCount;
+    }
+
+    /**
+     * Returns instance-minutes of pre-provisioned nodes terminated without being used.
+     */
+    synchronized long getWastedInstanceMinutes() {
+        return this.wastedMillis / 60000;
+    }
+
+    /**
+     * Commits the peaks of the last slot to the history when the hour changes.
+     */
+    private void rollOverIfNeeded() {
+        int slot = slotOf(now());
+        if (slot == this.currentSlot) {
+            return;
+        }
+
+        if (this.currentSlot >= 0) {
+            History hist = getHistory();
+            for (Map.Entry<String, Integer> entry : this.currentPeaks.entrySet()) {
+                short[] slots = hist.slotsByLabel.get(entry.getKey());
+                if (slots == null) {
+                    slots = new short[SLOT_COUNT];
+                    hist.slotsByLabel.put(entry.getKey(), slots);
+                }
+                int smoothed = (slots[this.currentSlot] + entry.getValue() + 1) / 2;
+                slots[this.currentSlot] = (short) Math.min(Short.MAX_VALUE, smoothed);
+            }
+            decayUnseen(hist);
+            save(hist);
+        }
+        this.currentPeaks.clear();
+        this.currentSlot = slot;
+    }
+
+    /**
+     * Halves the last slot of labels which had no demand in the hour.
+     */
+    private void decayUnseen(History hist) {
+        List<String> emptyLabels = new ArrayList<String>();
+        for (Map.Entry<String, short[]> entry : hist.slotsByLabel.entrySet()) {
+            if (! this.currentPeaks.containsKey(entry.getKey())) {
+                short[] slots = entry.getValue();
+                slots[this.currentSlot] = (short) (slots[this.currentSlot] / 2);
+                if (isEmpty(slots)) {
+                    emptyLabels.add(entry.getKey());
+                }
+            }
+        }
+        for (String label : emptyLabels) {
+            hist.slotsByLabel.remove(label);
+        }
+    }
+
+    /**
+     * Returns true if all the slots are zero.
+     */
+    private static boolean isEmpty(short[] slots) {
+        for (short slot : slots) {
+            if (slot != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current time; overridden by tests.
+     */
+    Calendar now() {
+        return Calendar.getInstance();
+    }
+
+    /**
+     * Returns the slot index of the time.
+     */
+    private static int slotOf(Calendar cal) {
+        return (cal.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * 24 + cal.get(Calendar.HOUR_OF_DAY);
+    }
+
+    /**
+     * Returns the history, loading it from the file at the first access.
+     */
+    private History getHistory() {
+        if (this.history == null) {
+            this.history = new History();
+            if (this.file.exists()) {
+                try {
+                    this.history = (History) this.file.read();
+                } catch (IOException | RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "failed to load the demand history from " + this.file, ex);
+                }
+            }
+        }
+        return this.history;
+    }
+
+    /**
+     * Saves the history to the file.
+     */
+    private void save(History hist) {
+        try {
+            this.file.write(hist);
+        } catch (IOException ioex) {
+            LOGGER.log(Level.WARNING, "failed to save the demand history to " + this.file, ioex);
+        }
+    }
+
+    /**
+     * Persisted demand history.
+     */
+    static class History {
+
+        /** Hourly slots of a week per label expression. */
+        Map<String, short[]> slotsByLabel = new HashMap<String, short[]>();
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
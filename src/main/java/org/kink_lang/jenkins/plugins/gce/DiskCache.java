@@ -0,0 +1,545 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.compute.model.AttachedDisk;
+import com.google.api.services.compute.model.Disk;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.Snapshot;
+import com.google.api.services.compute.model.SnapshotList;
+
+/**
+ * Read-only cache disks of the instances of persistent slaves, made from snapshots of a cache source disk.
+ *
+ * The source disk, which holds Maven/Gradle repositories and git mirrors, is snapshotted every refresh hours.
+ * The cache disk of a stopped instance is replaced by a disk of the latest snapshot
+ * when its snapshot is older than the max age hours;
+ * the instance is not provisioned while its cache disk is replaced.
+ * The names of the snapshots and the cache disks end with the snapshot time in "yyyyMMddHHmm" UTC,
+ * so the age of a cache disk is known from its name.
+ *
+ * The first build on each launched slave is timed,
+ * and the warm-up time saved by the cache is estimated per label
+ * as the difference of the mean first build durations without and with the cache.
+ */
+class DiskCache {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(DiskCache.class.getName());
+
+    /** The device name of cache disks; the disk is found at /dev/disk/by-id/google-jenkins-cache. */
+    static final String DEVICE_NAME = "jenkins-cache";
+
+    /** The maximum # of cache disks replaced in a maintenance pass. */
+    private static final int MAX_REFRESHES_PER_PASS = 10;
+
+    /** # of ready snapshots kept per source disk. */
+    private static final int KEPT_SNAPSHOTS = 2;
+
+    /** The HTTP status of inserting a disk which already exists. */
+    private static final int ALREADY_EXISTS_STATUS = 409;
+
+    /** The maximum length of resource names. */
+    private static final int MAX_NAME_LENGTH = 63;
+
+    /** The format of the snapshot times in the names. */
+    private static final String STAMP_FORMAT = "yyyyMMddHHmm";
+
+    /** Pattern of the names of cache disks. */
+    private static final Pattern DISK_NAME_PATTERN = Pattern.compile(".*-c([0-9]{12})");
+
+    /** The cloud whose instances have the cache disks; replaced when the cloud is reconfigured. */
+    private volatile GoogleCloud cloud;
+
+    /** The latest ready snapshot names keyed by the source disks. */
+    private final ConcurrentMap<String, String> latestSnapshots = new ConcurrentHashMap<String, String>();
+
+    /** The snapshot times of the cache disks attached to the instances, keyed by the instance names. */
+    private final ConcurrentMap<String, String> stamps = new ConcurrentHashMap<String, String>();
+
+    /** Names of the instances whose cache disks are being replaced. */
+    private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Whether the cache disks were attached at the launches, keyed by the slaves whose first builds are not done. */
+    private final ConcurrentMap<String, Boolean> firstBuilds = new ConcurrentHashMap<String, Boolean>();
+
+    /** The stats keyed by the labels. */
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    DiskCache(GoogleCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Replaces the cloud by the reconfigured one.
+     */
+    void setCloud(GoogleCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Takes the snapshots of the source disks if they are older than the refresh hours,
+     * and schedules the replacement of the stale cache disks of the stopped instances.
+     */
+    void maintain(List<PersistentSlaveSpec> specs) {
+        Map<String, List<PersistentSlaveSpec>> specsBySource = new LinkedHashMap<String, List<PersistentSlaveSpec>>();
+        for (PersistentSlaveSpec spec : specs) {
+            if (! spec.hasCache()) {
+                continue;
+            }
+            List<PersistentSlaveSpec> sourceSpecs = specsBySource.get(spec.getCacheSourceDisk());
+            if (sourceSpecs == null) {
+                sourceSpecs = new ArrayList<PersistentSlaveSpec>();
+                specsBySource.put(spec.getCacheSourceDisk(), sourceSpecs);
+            }
+            sourceSpecs.add(spec);
+        }
+
+        int scheduled = 0;
+        for (Map.Entry<String, List<PersistentSlaveSpec>> entry : specsBySource.entrySet()) {
+            String source = entry.getKey();
+            String snapshot;
+            try {
+                snapshot = refreshSnapshot(source, entry.getValue().get(0).getCacheRefreshHoursNumber());
+            } catch (IOException | GeneralSecurityException ex) {
+                LOGGER.log(Level.WARNING, "failed to refresh the snapshot of " + source, ex);
+                continue;
+            }
+            if (snapshot == null) {
+                continue;
+            }
+
+            for (PersistentSlaveSpec spec : entry.getValue()) {
+                if (scheduled >= MAX_REFRESHES_PER_PASS) {
+                    return;
+                }
+                long maxAgeMillis = TimeUnit.HOURS.toMillis(spec.getCacheMaxAgeHoursNumber());
+                if (beginRefresh(spec.getInstanceName(), stampOf(snapshot), maxAgeMillis)) {
+                    scheduleRefresh(spec.getInstanceName(), snapshot, maxAgeMillis);
+                    ++ scheduled;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the latest ready snapshot of the source disk, or null if there is none;
+     * and creates a new snapshot if the latest one is older than the refresh hours.
+     *
+     * The snapshots are not listed while the latest known one is fresh.
+     */
+    private String refreshSnapshot(String source, int refreshHours) throws IOException, GeneralSecurityException {
+        long refreshMillis = TimeUnit.HOURS.toMillis(refreshHours);
+        String known = this.latestSnapshots.get(source);
+        if (known != null && ageMillis(stampOf(known)) < refreshMillis) {
+            return known;
+        }
+
+        int slash = source.indexOf('/');
+        String zone = slash >= 0 ? source.substring(0, slash) : this.cloud.getZones().get(0);
+        String diskName = source.substring(slash + 1);
+        String prefix = truncate(diskName, MAX_NAME_LENGTH - STAMP_FORMAT.length() - 1) + "-";
+        ComputeClient client = this.cloud.getComputeClient(zone);
+
+        List<Snapshot> ready = new ArrayList<Snapshot>();
+        boolean creating = false;
+        SnapshotList list = client.execute(client.getCompute().snapshots()
+                .list(client.getProject())
+                .setFilter("name eq '" + prefix + "[0-9]{12}'"));
+        if (list.getItems() != null) {
+            for (Snapshot snapshot : list.getItems()) {
+                if ("READY".equals(snapshot.getStatus())) {
+                    ready.add(snapshot);
+                } else if (! "FAILED".equals(snapshot.getStatus())) {
+                    creating = true;
+                }
+            }
+        }
+        Collections.sort(ready, new Comparator<Snapshot>() {
+            @Override public int compare(Snapshot x, Snapshot y) {
+                return x.getName().compareTo(y.getName());
+            }
+        });
+
+        String latest = ready.isEmpty() ? null : ready.get(ready.size() - 1).getName();
+        if (latest != null) {
+            this.latestSnapshots.put(source, latest);
+        }
+        if (! creating && (latest == null || ageMillis(stampOf(latest)) >= refreshMillis)) {
+            String name = prefix + format(System.currentTimeMillis());
+            LOGGER.info("take the cache snapshot " + name + " of " + source);
+            client.execute(client.getCompute().disks()
+                    .createSnapshot(client.getProject(), zone, diskName, new Snapshot().setName(name)));
+        }
+        for (int i = 0; i < ready.size() - KEPT_SNAPSHOTS; ++ i) {
+            LOGGER.fine("delete the old cache snapshot " + ready.get(i).getName());
+            client.execute(client.getCompute().snapshots().delete(client.getProject(), ready.get(i).getName()));
+        }
+        return latest;
+    }
+
+    /**
+     * Marks the cache disk of the instance being replaced, and returns true,
+     * if the instance is stopped, not used as a node, and its cache disk is unknown or stale.
+     *
+     * The mark is made before checking the node, so that the instance is not provisioned concurrently.
+     */
+    private boolean beginRefresh(String name, String latestStamp, long maxAgeMillis) {
+        String current = this.stamps.get(name);
+        if ((current != null && (current.equals(latestStamp) || ageMillis(current) <= maxAgeMillis))
+                || ! isStopped(this.cloud.getInventory().getState(name))
+                || this.cloud.getPendingStops().contains(name)
+                || ! this.refreshing.add(name)) {
+            return false;
+        }
+        if (Jenkins.getInstance().getNode(name) != null) {
+            this.refreshing.remove(name);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the cache disk of the instance by a disk of the snapshot on the executor of the cloud.
+     */
+    private void scheduleRefresh(final String name, final String snapshot, final long maxAgeMillis) {
+        this.cloud.getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    refresh(name, snapshot, maxAgeMillis);
+                } catch (Exception ex) {
+                    LOGGER.log(Level.WARNING, "failed to refresh the cache disk of " + name, ex);
+                } finally {
+                    refreshing.remove(name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the cache disk of the instance by a disk of the snapshot, unless the attached one is fresh.
+     *
+     * The new disk is created before the old disk is detached,
+     * and the old disk is deleted only after the new disk is attached.
+     * A new disk left by an earlier attempt is adopted.
+     * If the replacement fails, the new disk is deleted, and the old disk is attached again if it was detached,
+     * so that a retry in the next maintenance pass starts from the same state.
+     */
+    private void refresh(String name, String snapshot, long maxAgeMillis) throws Exception {
+        String zone = this.cloud.zoneOf(name);
+        ComputeClient client = this.cloud.getComputeClient(zone);
+        OperationTracker tracker = this.cloud.getOperationTracker();
+        String project = client.getProject();
+        String stamp = stampOf(snapshot);
+
+        Instance instance = client.execute(client.getCompute().instances().get(project, zone, name));
+        AttachedDisk attached = null;
+        if (instance.getDisks() != null) {
+            for (AttachedDisk disk : instance.getDisks()) {
+                if (DEVICE_NAME.equals(disk.getDeviceName())) {
+                    attached = disk;
+                }
+            }
+        }
+        String oldDisk = attached == null ? null : OperationTracker.lastSegment(attached.getSource());
+        Matcher matcher = DISK_NAME_PATTERN.matcher(oldDisk == null ? "" : oldDisk);
+        String current = matcher.matches() ? matcher.group(1) : null;
+        if (current != null && (current.equals(stamp) || ageMillis(current) <= maxAgeMillis)) {
+            this.stamps.put(name, current);
+            return;
+        }
+
+        LOGGER.info("replace the cache disk of " + name + " by a disk of the snapshot " + snapshot);
+        String newDisk = truncate(name, MAX_NAME_LENGTH - STAMP_FORMAT.length() - 2) + "-c" + stamp;
+        boolean detached = false;
+        try {
+            insertDisk(client, tracker, newDisk, snapshot);
+            if (attached != null) {
+                require(client, tracker, client.execute(client.getCompute().instances()
+                            .detachDisk(project, zone, name, DEVICE_NAME)));
+                detached = true;
+            }
+            require(client, tracker, client.execute(client.getCompute().instances().attachDisk(project, zone, name,
+                            cacheDisk(String.format("projects/%s/zones/%s/disks/%s", project, zone, newDisk)))));
+        } catch (Exception ex) {
+            rollBack(client, tracker, name, newDisk, detached ? attached.getSource() : null);
+            throw ex;
+        }
+        this.stamps.put(name, stamp);
+        if (oldDisk != null) {
+            client.execute(client.getCompute().disks().delete(project, zone, oldDisk));
+        }
+    }
+
+    /**
+     * Creates the disk of the snapshot, or adopts the disk if it already exists.
+     */
+    private static void insertDisk(ComputeClient client, OperationTracker tracker, String disk, String snapshot)
+            throws Exception {
+        try {
+            require(client, tracker, client.execute(client.getCompute().disks().insert(
+                            client.getProject(), client.getZone(),
+                            new Disk().setName(disk).setSourceSnapshot("global/snapshots/" + snapshot))));
+        } catch (GoogleJsonResponseException gjrex) {
+            if (gjrex.getStatusCode() != ALREADY_EXISTS_STATUS) {
+                throw gjrex;
+            }
+            LOGGER.info("adopt the existing cache disk " + disk);
+        }
+    }
+
+    /**
+     * Returns the attachment of the cache disk of the source URL.
+     */
+    private static AttachedDisk cacheDisk(String source) {
+        return new AttachedDisk()
+            .setSource(source)
+            .setDeviceName(DEVICE_NAME)
+            .setMode("READ_ONLY")
+            .setAutoDelete(true);
+    }
+
+    /**
+     * Undoes a failed replacement: attaches the old disk again if it was detached, and deletes the new disk.
+     *
+     * Failures are only logged, so that the failure of the replacement is reported.
+     */
+    private static void rollBack(ComputeClient client, OperationTracker tracker,
+            String name, String newDisk, String oldSource) {
+        String project = client.getProject();
+        String zone = client.getZone();
+        if (oldSource != null) {
+            try {
+                require(client, tracker, client.execute(client.getCompute().instances()
+                            .attachDisk(project, zone, name, cacheDisk(oldSource))));
+            } catch (Exception ex) {
+                LOGGER.log(Level.WARNING, "failed to attach the old cache disk to " + name + " again", ex);
+            }
+        }
+        try {
+            require(client, tracker, client.execute(client.getCompute().disks().delete(project, zone, newDisk)));
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "failed to delete the cache disk " + newDisk, ex);
+        }
+    }
+
+    /**
+     * Waits for the operation, and throws an exception if it failed.
+     */
+    private static void require(ComputeClient client, OperationTracker tracker, Operation op) throws Exception {
+        Operation done = tracker.waitFor(client, op);
+        if (! OperationTracker.isSuccessful(done)) {
+            throw new IOException("operation " + done.getOperationType() + " failed: " + done.getError());
+        }
+    }
+
+    /**
+     * Returns true if the cache disk of the instance is being replaced.
+     */
+    boolean isRefreshing(String name) {
+        return this.refreshing.contains(name);
+    }
+
+    /**
+     * Records the launch of the slave of the label, with the age of its cache disk if attached.
+     */
+    void onLaunched(String name, String label) {
+        String stamp = this.stamps.get(name);
+        if (stamp != null) {
+            statsOf(label).onCachedLaunch(ageMillis(stamp));
+        }
+        this.firstBuilds.put(name, stamp != null);
+    }
+
+    /**
+     * Records the duration of a build on the slave of the label, if it is the first build after the launch.
+     */
+    void onBuildCompleted(String name, String label, long durationMillis) {
+        Boolean cached = this.firstBuilds.remove(name);
+        if (cached != null) {
+            statsOf(label).onFirstBuild(cached, durationMillis);
+        }
+    }
+
+    /**
+     * Returns the stats of the label, making it if missing.
+     */
+    private Stats statsOf(String label) {
+        String key = label == null || label.trim().isEmpty() ? CapacityLedger.UNLABELED : label.trim();
+        Stats labelStats = this.stats.get(key);
+        if (labelStats == null) {
+            this.stats.putIfAbsent(key, new Stats());
+            labelStats = this.stats.get(key);
+        }
+        return labelStats;
+    }
+
+    /**
+     * Returns the stats keyed by the labels, sorted.
+     */
+    Map<String, Stats> snapshot() {
+        return new TreeMap<String, Stats>(this.stats);
+    }
+
+    /**
+     * Returns true if the state is of a stopped instance.
+     */
+    private static boolean isStopped(String state) {
+        return "TERMINATED".equals(state) || "STOPPED".equals(state);
+    }
+
+    /**
+     * Returns the snapshot time at the end of the name.
+     */
+    private static String stampOf(String name) {
+        return name.substring(name.length() - STAMP_FORMAT.length());
+    }
+
+    /**
+     * Returns the millis elapsed from the snapshot time; or Long.MAX_VALUE if the time is malformed.
+     */
+    private static long ageMillis(String stamp) {
+        try {
+            return System.currentTimeMillis() - utcFormat().parse(stamp).getTime();
+        } catch (ParseException pex) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Returns the snapshot time of the millis.
+     */
+    private static String format(long millis) {
+        return utcFormat().format(new Date(millis));
+    }
+
+    /**
+     * Returns the format of snapshot times in UTC.
+     */
+    private static DateFormat utcFormat() {
+        DateFormat format = new SimpleDateFormat(STAMP_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    /**
+     * Returns the prefix of the string within the length.
+     */
+    private static String truncate(String str, int length) {
+        return str.length() <= length ? str : str.substring(0, length);
+    }
+
+    /**
+     * Cache stats of a label.
+     */
+    static class Stats {
+
+        /** # of launches with cache disks. */
+        private final AtomicLong cachedLaunches = new AtomicLong();
+
+        /** The total age of the cache disks at the launches. */
+        private final AtomicLong totalCacheAgeMillis = new AtomicLong();
+
+        /** The age of the cache disk at the last launch. */
+        private volatile long lastCacheAgeMillis;
+
+        /** # of first builds with cache disks. */
+        private final AtomicLong cachedFirstBuilds = new AtomicLong();
+
+        /** The total duration of the first builds with cache disks. */
+        private final AtomicLong cachedFirstBuildMillis = new AtomicLong();
+
+        /** # of first builds without cache disks. */
+        private final AtomicLong uncachedFirstBuilds = new AtomicLong();
+
+        /** The total duration of the first builds without cache disks. */
+        private final AtomicLong uncachedFirstBuildMillis = new AtomicLong();
+
+        /**
+         * Records a launch with the cache disk of the age.
+         */
+        private void onCachedLaunch(long cacheAgeMillis) {
+            this.cachedLaunches.incrementAndGet();
+            this.totalCacheAgeMillis.addAndGet(cacheAgeMillis);
+            this.lastCacheAgeMillis = cacheAgeMillis;
+        }
+
+        /**
+         * Records the duration of a first build.
+         */
+        private void onFirstBuild(boolean cached, long durationMillis) {
+            if (cached) {
+                this.cachedFirstBuilds.incrementAndGet();
+                this.cachedFirstBuildMillis.addAndGet(durationMillis);
+            } else {
+                this.uncachedFirstBuilds.incrementAndGet();
+                this.uncachedFirstBuildMillis.addAndGet(durationMillis);
+            }
+        }
+
+        /**
+         * Returns # of launches with cache disks.
+         */
+        long getCachedLaunches() {
+            return this.cachedLaunches.get();
+        }
+
+        /**
+         * Returns the age of the cache disk at the last launch.
+         */
+        long getLastCacheAgeMillis() {
+            return this.lastCacheAgeMillis;
+        }
+
+        /**
+         * Returns the mean age of the cache disks at the launches; or 0 if there is no launch with a cache disk.
+         */
+        long getMeanCacheAgeMillis() {
+            long count = this.cachedLaunches.get();
+            return count == 0 ? 0 : this.totalCacheAgeMillis.get() / count;
+        }
+
+        /**
+         * Returns the estimated warm-up time saved per launch by the cache;
+         * or 0 if first builds both with and without the cache are not recorded.
+         */
+        long getWarmUpSavedMillis() {
+            long cached = this.cachedFirstBuilds.get();
+            long uncached = this.uncachedFirstBuilds.get();
+            if (cached == 0 || uncached == 0) {
+                return 0;
+            }
+            return this.uncachedFirstBuildMillis.get() / uncached - this.cachedFirstBuildMillis.get() / cached;
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
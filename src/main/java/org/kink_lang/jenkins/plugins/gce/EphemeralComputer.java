@@ -0,0 +1,16 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+public class EphemeralComputer extends GoogleCloudComputer<EphemeralSlave> {
+
+    public EphemeralComputer(EphemeralSlave slave) {
+        super(slave);
+    }
+
+    @Override
+    String getCloudName(EphemeralSlave slave) {
+        return slave.getCloudName();
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,351 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.Node;
+
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.AttachedDisk;
+import com.google.api.services.compute.model.AttachedDiskInitializeParams;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceProperties;
+import com.google.api.services.compute.model.InstanceTemplate;
+import com.google.api.services.compute.model.Metadata;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Creates the instances of ephemeral slaves chosen in one provisioning pass, in batch requests.
+ *
+ * The phases are: getting the distinct instance templates, and inserting the instances.
+ * An instance is made from the properties of the template,
+ * with the JNLP secret added to the metadata.
+ * The time until each instance is created is recorded as "launch.create".
+ * Once the insert of an instance is issued, a failure of the creation deletes the instance through the cloud,
+ * so that an instance created despite the failure is not leaked.
+ * If the insert fails because an instance of the name already exists,
+ * the instance is deleted only if its metadata has the JNLP secret of the slave,
+ * so that an instance made by others with the same name is left alone.
+ */
+class EphemeralLauncher {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(EphemeralLauncher.class.getName());
+
+    /** The HTTP status of inserting an instance which already exists. */
+    private static final int ALREADY_EXISTS_STATUS = 409;
+
+    /** The cloud which deletes the instances failed to be created. */
+    private final GoogleCloud cloud;
+
+    /** The client to manipulate the instances. */
+    private final ComputeClient client;
+
+    /** The watcher of the operations. */
+    private final OperationWatcher watcher;
+
+    /** The recorder of latencies. */
+    private final LatencyRecorder latencies;
+
+    /** The executor of the phases. */
+    private final Executor executor;
+
+    /** The placement engine which learns the creation results of the zone. */
+    private final PlacementEngine placement;
+
+    EphemeralLauncher(GoogleCloud cloud, ComputeClient client, OperationWatcher watcher, LatencyRecorder latencies,
+            Executor executor, PlacementEngine placement) {
+        this.cloud = cloud;
+        this.client = client;
+        this.watcher = watcher;
+        this.latencies = latencies;
+        this.executor = executor;
+        this.placement = placement;
+    }
+
+    /**
+     * Creates the instances of the slaves, and returns the futures of the nodes in the order of the slaves.
+     *
+     * A future fails with a LaunchFailedException if the instance cannot be created.
+     */
+    List<ListenableFuture<Node>> launch(final List<EphemeralSlave> slaves) {
+        final Map<String, SettableFuture<Node>> results = new LinkedHashMap<String, SettableFuture<Node>>();
+        for (EphemeralSlave slave : slaves) {
+            results.put(slave.getNodeName(), SettableFuture.<Node>create());
+        }
+
+        this.executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    createAll(slaves, results);
+                } catch (Exception ex) {
+                    for (SettableFuture<Node> result : results.values()) {
+                        result.setException(ex);
+                    }
+                }
+            }
+        });
+        return new ArrayList<ListenableFuture<Node>>(results.values());
+    }
+
+    /**
+     * Gets the templates and inserts the instances.
+     */
+    private void createAll(List<EphemeralSlave> slaves, final Map<String, SettableFuture<Node>> results)
+            throws IOException {
+        final Compute compute = this.client.getCompute();
+        final String project = this.client.getProject();
+        final String zone = this.client.getZone();
+        final long startNanos = System.nanoTime();
+
+        final Map<String, InstanceTemplate> templates = new HashMap<String, InstanceTemplate>();
+        Batches gets = new Batches(this.client, this.latencies);
+        for (EphemeralSlave slave : slaves) {
+            final String templateName = slave.getInstanceTemplate();
+            if (templates.containsKey(templateName)) {
+                continue;
+            }
+            templates.put(templateName, null);
+            gets.queue(compute.instanceTemplates().get(project, templateName),
+                    new JsonBatchCallback<InstanceTemplate>() {
+                        @Override public void onSuccess(InstanceTemplate template, HttpHeaders headers) {
+                            templates.put(templateName, template);
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            LOGGER.warning("failed to get the instance template " + templateName
+                                    + ": " + error.getMessage());
+                        }
+                    });
+        }
+        gets.execute("getTemplate");
+
+        final Map<String, Operation> insertOps = new LinkedHashMap<String, Operation>();
+        final Map<String, String> conflicts = new LinkedHashMap<String, String>();
+        List<String> inserted = new ArrayList<String>();
+        Batches inserts = new Batches(this.client, this.latencies);
+        for (EphemeralSlave slave : slaves) {
+            final String name = slave.getNodeName();
+            InstanceTemplate template = templates.get(slave.getInstanceTemplate());
+            if (template == null) {
+                giveUp(results, name, "instance template " + slave.getInstanceTemplate() + " not available");
+                continue;
+            }
+
+            final String secret = slave.getComputer().getJnlpMac();
+            Instance instance = makeInstance(name, zone, template.getProperties(), secret);
+            inserts.queue(compute.instances().insert(project, zone, instance),
+                    new JsonBatchCallback<Operation>() {
+                        @Override public void onSuccess(Operation op, HttpHeaders headers) {
+                            insertOps.put(name, op);
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            boolean stockout = PlacementEngine.isStockout(error);
+                            placement.onFailure(zone, stockout);
+                            giveUp(results, name, "failed to insert: " + error.getMessage(), stockout);
+                            if (error.getCode() == ALREADY_EXISTS_STATUS) {
+                                conflicts.put(name, secret);
+                            } else if (error.getCode() >= 500) {
+                                cloud.deleteInstance(name, zone);
+                            }
+                        }
+                    });
+            inserted.add(name);
+        }
+        try {
+            inserts.execute("insert");
+        } catch (IOException ioex) {
+            for (String name : inserted) {
+                if (! results.get(name).isDone()) {
+                    cloud.deleteInstance(name, zone);
+                }
+            }
+            throw ioex;
+        }
+        deleteOwned(conflicts);
+
+        Map<String, EphemeralSlave> slavesByName = new HashMap<String, EphemeralSlave>();
+        for (EphemeralSlave slave : slaves) {
+            slavesByName.put(slave.getNodeName(), slave);
+        }
+        for (Map.Entry<String, Operation> entry : insertOps.entrySet()) {
+            final String name = entry.getKey();
+            final EphemeralSlave slave = slavesByName.get(name);
+            final ListenableFuture<Operation> insertDone = this.watcher.watch(this.client, entry.getValue());
+            insertDone.addListener(new Runnable() {
+                @Override public void run() {
+                    Operation op = getDone(insertDone);
+                    if (op == null || ! OperationTracker.isSuccessful(op)) {
+                        boolean stockout = op != null && PlacementEngine.isStockout(op);
+                        placement.onFailure(zone, stockout);
+                        giveUp(results, name, "failed to create the instance", stockout);
+                        cloud.deleteInstance(name, zone);
+                    } else {
+                        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+                        latencies.record("launch.create", elapsedMillis);
+                        placement.onStart(zone, true, elapsedMillis);
+                        results.get(name).set(slave);
+                    }
+                }
+            }, this.executor);
+        }
+    }
+
+    /**
+     * Gets the instances whose inserts conflicted with existing ones,
+     * and deletes those whose metadata has the JNLP secret of the slave.
+     *
+     * Such an instance was made by an earlier insert of the same slave, such as a retried batch part.
+     * The other instances are left alone, because they may belong to others.
+     * A failure of the gets is only logged, so that it does not fail the launches in progress.
+     */
+    private void deleteOwned(Map<String, String> secretsByName) {
+        if (secretsByName.isEmpty()) {
+            return;
+        }
+        try {
+            getAndDeleteOwned(secretsByName);
+        } catch (IOException ioex) {
+            LOGGER.log(Level.WARNING, "failed to get the conflicting instances " + secretsByName.keySet(), ioex);
+        }
+    }
+
+    /**
+     * Gets the conflicting instances in batch requests, and deletes those owned by the slaves.
+     */
+    private void getAndDeleteOwned(Map<String, String> secretsByName) throws IOException {
+        final String zone = this.client.getZone();
+        Batches gets = new Batches(this.client, this.latencies);
+        for (Map.Entry<String, String> entry : secretsByName.entrySet()) {
+            final String name = entry.getKey();
+            final String secret = entry.getValue();
+            gets.queue(this.client.getCompute().instances().get(this.client.getProject(), zone, name),
+                    new JsonBatchCallback<Instance>() {
+                        @Override public void onSuccess(Instance instance, HttpHeaders headers) {
+                            if (secret.equals(metadataValue(instance.getMetadata(), WarmPool.SECRET_KEY))) {
+                                cloud.deleteInstance(name, zone);
+                            } else {
+                                LOGGER.warning("the instance " + name + " already exists and is not made by Jenkins;"
+                                        + " leave it alone");
+                            }
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            LOGGER.warning("failed to get the conflicting instance " + name
+                                    + ": " + error.getMessage());
+                        }
+                    });
+        }
+        gets.execute("getConflicting");
+    }
+
+    /**
+     * Returns the value of the metadata item; or null if missing.
+     */
+    static String metadataValue(Metadata metadata, String key) {
+        if (metadata == null || metadata.getItems() == null) {
+            return null;
+        }
+        for (Metadata.Items item : metadata.getItems()) {
+            if (key.equals(item.getKey())) {
+                return item.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes an instance resource in the zone from the properties of an instance template.
+     *
+     * Short names of the machine type and the disk types in the template are made zonal,
+     * and the JNLP secret is added to the metadata.
+     */
+    static Instance makeInstance(String name, String zone, InstanceProperties props, String secret) {
+        List<AttachedDisk> disks = new ArrayList<AttachedDisk>();
+        if (props.getDisks() != null) {
+            for (AttachedDisk templateDisk : props.getDisks()) {
+                AttachedDisk disk = templateDisk.clone();
+                AttachedDiskInitializeParams params = disk.getInitializeParams();
+                if (params != null) {
+                    params.setDiskName(null);
+                    if (params.getDiskType() != null) {
+                        params.setDiskType(zonal(zone, "diskTypes", params.getDiskType()));
+                    }
+                }
+                disks.add(disk);
+            }
+        }
+
+        Map<String, String> jenkinsMetadata = new HashMap<String, String>();
+        jenkinsMetadata.put(WarmPool.SECRET_KEY, secret);
+        Metadata templateMetadata = props.getMetadata() == null ? new Metadata() : props.getMetadata().clone();
+
+        return new Instance()
+            .setName(name)
+            .setDescription(props.getDescription())
+            .setMachineType(zonal(zone, "machineTypes", props.getMachineType()))
+            .setDisks(disks)
+            .setMetadata(GceInstance.updateMetadata(templateMetadata, jenkinsMetadata))
+            .setNetworkInterfaces(props.getNetworkInterfaces())
+            .setServiceAccounts(props.getServiceAccounts())
+            .setScheduling(props.getScheduling())
+            .setTags(props.getTags())
+            .setLabels(props.getLabels())
+            .setCanIpForward(props.getCanIpForward());
+    }
+
+    /**
+     * Returns the zonal partial URL of the resource; or the name itself if it is already a URL.
+     */
+    private static String zonal(String zone, String collection, String name) {
+        return name.contains("/") ? name : String.format("zones/%s/%s/%s", zone, collection, name);
+    }
+
+    /**
+     * Returns the result of the done future; or null if the future failed.
+     */
+    private static Operation getDone(ListenableFuture<Operation> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException eex) {
+            LOGGER.log(Level.WARNING, "operation failed", eex.getCause());
+            return null;
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Gives up launching the slave, failing its future.
+     */
+    private static void giveUp(Map<String, SettableFuture<Node>> results, String name, String reason) {
+        giveUp(results, name, reason, false);
+    }
+
+    /**
+     * Gives up launching the slave, failing its future with the stockout flag.
+     */
+    private static void giveUp(Map<String, SettableFuture<Node>> results, String name, String reason,
+            boolean stockout) {
+        LOGGER.warning("provision: " + reason + " for " + name);
+        results.get(name).setException(new LaunchFailedException(reason + " for " + name, stockout));
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
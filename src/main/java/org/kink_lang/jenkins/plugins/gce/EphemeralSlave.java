@@ -0,0 +1,148 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Slave whose instance is created from an instance template, and deleted on termination.
+ */
+public class EphemeralSlave extends AbstractCloudSlave {
+
+    /** Cloud name. */
+    private String cloudName;
+
+    /** The zone of the instance. */
+    private String zone;
+
+    /** The prefix of the instance name, which identifies the spec. */
+    private String namePrefix;
+
+    /** The name of the instance template. */
+    private String instanceTemplate;
+
+    @DataBoundConstructor
+    public EphemeralSlave(
+            String name,
+            String nodeDescription,
+            String remoteFS,
+            String numExecutors,
+            String labelString,
+            String cloudName,
+            String namePrefix,
+            String instanceTemplate,
+            List<NodeProperty<EphemeralSlave>> nodeProperties
+            ) throws Descriptor.FormException, IOException {
+        this(name, nodeDescription, remoteFS, numExecutors, labelString, cloudName, namePrefix, instanceTemplate,
+                nodeProperties, PersistentSlave.getCloud(cloudName).getRetentionStrategy());
+    }
+
+    /**
+     * Makes a slave with the retention strategy.
+     */
+    EphemeralSlave(
+            String name,
+            String nodeDescription,
+            String remoteFS,
+            String numExecutors,
+            String labelString,
+            String cloudName,
+            String namePrefix,
+            String instanceTemplate,
+            List<NodeProperty<EphemeralSlave>> nodeProperties,
+            RetentionStrategy retentionStrategy
+            ) throws Descriptor.FormException, IOException {
+        super(name, nodeDescription, remoteFS, numExecutors, Mode.NORMAL, labelString,
+                new JNLPLauncher(),
+                retentionStrategy,
+                nodeProperties == null ? Collections.<NodeProperty<EphemeralSlave>>emptyList() : nodeProperties);
+        this.cloudName = cloudName;
+        this.namePrefix = namePrefix;
+        this.instanceTemplate = instanceTemplate;
+    }
+
+    /**
+     * Stores the cloud name.
+     */
+    @DataBoundSetter
+    public void setCloudName(String cloudName) {
+        this.cloudName = cloudName;
+    }
+
+    /**
+     * Returns the cloud name.
+     */
+    public String getCloudName() {
+        return this.cloudName;
+    }
+
+    /**
+     * Returns the prefix of the instance name.
+     */
+    public String getNamePrefix() {
+        return this.namePrefix;
+    }
+
+    /**
+     * Returns the name of the instance template.
+     */
+    public String getInstanceTemplate() {
+        return this.instanceTemplate;
+    }
+
+    /**
+     * Stores the zone of the instance.
+     */
+    @DataBoundSetter
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Returns the zone of the instance.
+     */
+    public String getZone() {
+        return this.zone;
+    }
+
+    @Override
+    public AbstractCloudComputer<EphemeralSlave> createComputer() {
+        return new EphemeralComputer(this);
+    }
+
+    @Override
+    protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
+        GoogleCloud cloud = PersistentSlave.getCloud(this.cloudName);
+        cloud.deleteInstance(this.name, this.zone);
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends SlaveDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "";
+        }
+
+        @Override
+        public boolean isInstantiable() {
+            return false;
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
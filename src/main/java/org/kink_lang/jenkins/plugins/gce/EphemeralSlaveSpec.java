@@ -0,0 +1,350 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.NodeProperty;
+import hudson.util.FormValidation;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Spec of slaves whose instances are created from an instance template on demand,
+ * and deleted on termination.
+ */
+public class EphemeralSlaveSpec
+    extends AbstractDescribableImpl<EphemeralSlaveSpec>
+    implements Serializable {
+
+    private static final Logger LOGGER = Logger.getLogger(EphemeralSlaveSpec.class.getName());
+
+    /** Random numbers for instance name suffixes. */
+    private static final Random RANDOM = new SecureRandom();
+
+    /** The prefix of instance names. */
+    private String namePrefix;
+
+    /** The name of the instance template. */
+    private String instanceTemplate;
+
+    /** The maximum # of instances of the spec. */
+    private String instanceCap;
+
+    private String label;
+
+    /** The parsed label atoms; lazily made. */
+    private transient Set<LabelAtom> labelAtoms;
+
+    /** # of executors. */
+    private String numExecutors;
+
+    /** The description of the node. */
+    private String nodeDescription;
+
+    /** The remote FS root. */
+    private String remoteFS;
+
+    /** The list of node properties. */
+    private List<NodeProperty<EphemeralSlave>> nodeProperties;
+
+    /** The minutes to keep an idle slave; or empty to use the timeout minutes of the cloud. */
+    private String idleMinutes;
+
+    @DataBoundConstructor
+    public EphemeralSlaveSpec() {
+    }
+
+    /**
+     * Stores the prefix of instance names.
+     */
+    @DataBoundSetter
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix.trim();
+    }
+
+    /**
+     * Returns the prefix of instance names.
+     */
+    public String getNamePrefix() {
+        return this.namePrefix;
+    }
+
+    /**
+     * Stores the name of the instance template.
+     */
+    @DataBoundSetter
+    public void setInstanceTemplate(String instanceTemplate) {
+        this.instanceTemplate = instanceTemplate.trim();
+    }
+
+    /**
+     * Returns the name of the instance template.
+     */
+    public String getInstanceTemplate() {
+        return this.instanceTemplate;
+    }
+
+    /**
+     * Stores the maximum # of instances.
+     */
+    @DataBoundSetter
+    public void setInstanceCap(String instanceCap) {
+        this.instanceCap = instanceCap;
+    }
+
+    /**
+     * Returns the maximum # of instances.
+     */
+    public String getInstanceCap() {
+        return this.instanceCap;
+    }
+
+    @DataBoundSetter
+    public void setLabel(String label) {
+        this.label = label;
+        this.labelAtoms = null;
+    }
+
+    public String getLabel() {
+        return this.label;
+    }
+
+    /**
+     * Returns the label atoms, parsed once per label string.
+     */
+    public Set<LabelAtom> getLabelAtoms() {
+        Set<LabelAtom> atoms = this.labelAtoms;
+        if (atoms == null) {
+            atoms = Collections.unmodifiableSet(Label.parse(this.label));
+            this.labelAtoms = atoms;
+        }
+        return atoms;
+    }
+
+    /**
+     * Stores # of executors.
+     */
+    @DataBoundSetter
+    public void setNumExecutors(String numExecutors) {
+        this.numExecutors = numExecutors;
+    }
+
+    /**
+     * Returns # of executors.
+     */
+    public String getNumExecutors() {
+        return this.numExecutors;
+    }
+
+    /**
+     * Stores the description of the node.
+     */
+    @DataBoundSetter
+    public void setNodeDescription(String nodeDescription) {
+        this.nodeDescription = nodeDescription;
+    }
+
+    /**
+     * Returns the description of the node.
+     */
+    public String getNodeDescription() {
+        return this.nodeDescription;
+    }
+
+    /**
+     * Stores the remote FS root path.
+     */
+    @DataBoundSetter
+    public void setRemoteFS(String remoteFS) {
+        this.remoteFS = remoteFS;
+    }
+
+    /**
+     * Returns the remote FS root path.
+     */
+    public String getRemoteFS() {
+        return this.remoteFS;
+    }
+
+    /**
+     * Stores the list of node properties.
+     */
+    @DataBoundSetter
+    public void setNodeProperties(List<NodeProperty<EphemeralSlave>> nodeProperties) {
+        this.nodeProperties = nodeProperties;
+    }
+
+    /**
+     * Returns the list of node properties.
+     */
+    public List<NodeProperty<EphemeralSlave>> getNodeProperties() {
+        return this.nodeProperties;
+    }
+
+    /**
+     * Stores the minutes to keep an idle slave.
+     */
+    @DataBoundSetter
+    public void setIdleMinutes(String idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    /**
+     * Returns the minutes to keep an idle slave; or empty to use the timeout minutes of the cloud.
+     */
+    public String getIdleMinutes() {
+        return this.idleMinutes;
+    }
+
+    /**
+     * Returns true if the label matches the spec.
+     */
+    public boolean matches(Label label) {
+        return label == null || label.matches(getLabelAtoms());
+    }
+
+    /**
+     * Returns # of slaves of this spec which exist in the cloud.
+     */
+    int countSlaves(GoogleCloud cloud) {
+        int count = 0;
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (node instanceof EphemeralSlave) {
+                EphemeralSlave slave = (EphemeralSlave) node;
+                if (cloud.name.equals(slave.getCloudName()) && this.namePrefix.equals(slave.getNamePrefix())) {
+                    ++ count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the maximum # of instances.
+     */
+    int getInstanceCapNumber() {
+        return this.instanceCap == null || this.instanceCap.trim().isEmpty()
+            ? Integer.MAX_VALUE
+            : Integer.parseInt(this.instanceCap.trim());
+    }
+
+    /**
+     * Adds a slave node with a generated name; the cloud creates the instance in the zone.
+     *
+     * Returns null if the slave cannot be added.
+     */
+    public EphemeralSlave provision(GoogleCloud cloud, String zone) {
+        String name = String.format("%s-%08x", this.namePrefix, RANDOM.nextInt());
+        try {
+            EphemeralSlave slave = new EphemeralSlave(
+                    name,
+                    this.nodeDescription,
+                    this.remoteFS,
+                    this.numExecutors,
+                    this.label,
+                    cloud.name,
+                    this.namePrefix,
+                    this.instanceTemplate,
+                    this.nodeProperties,
+                    cloud.getRetentionStrategy(this.idleMinutes));
+            slave.setZone(zone);
+            Jenkins.getInstance().addNode(slave);
+            return slave;
+        } catch (IOException ioex) {
+            LOGGER.log(Level.WARNING, "provision: failed provisioning of " + name, ioex);
+            return null;
+        } catch (Descriptor.FormException formex) {
+            LOGGER.log(Level.WARNING, "provision: failed provisioning of " + name, formex);
+            return null;
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<EphemeralSlaveSpec> {
+
+        @Override
+        public String getDisplayName() {
+            return "Ephemeral Slave";
+        }
+
+        /** Pattern of name prefixes; the suffix "-xxxxxxxx" is appended to make an instance name. */
+        private static final Pattern NAME_PREFIX_PATTERN = Pattern.compile("[a-z]([-a-z0-9]{0,52}[a-z0-9])?");
+
+        /**
+         * Checks the prefix of instance names.
+         */
+        public FormValidation doCheckNamePrefix(@QueryParameter String namePrefix) {
+            return NAME_PREFIX_PATTERN.matcher(namePrefix.trim()).matches()
+                ? FormValidation.ok()
+                : FormValidation.error("Name prefix must be 1-54 lowercase letters, digits or hyphens,"
+                        + " starting with a letter");
+        }
+
+        /**
+         * Checks the name of the instance template.
+         */
+        public FormValidation doCheckInstanceTemplate(@QueryParameter String instanceTemplate) {
+            return instanceTemplate.trim().isEmpty()
+                ? FormValidation.error("Instance template must be filled")
+                : FormValidation.ok();
+        }
+
+        /**
+         * Checks the maximum # of instances.
+         */
+        public FormValidation doCheckInstanceCap(@QueryParameter String instanceCap) {
+            return instanceCap.trim().isEmpty() || instanceCap.trim().matches("[0-9]+")
+                ? FormValidation.ok()
+                : FormValidation.error("Instance cap must be an integer");
+        }
+
+        /**
+         * Checks # of executors.
+         */
+        public FormValidation doCheckNumExecutors(@QueryParameter String numExecutors) {
+            return numExecutors.matches("[0-9]+")
+                ? FormValidation.ok()
+                : FormValidation.error("# of executors must be an integer");
+        }
+
+        /**
+         * Checks the minutes to keep an idle slave.
+         */
+        public FormValidation doCheckIdleMinutes(@QueryParameter String idleMinutes) {
+            return idleMinutes.trim().isEmpty() || idleMinutes.trim().matches("[0-9]{1,5}")
+                ? FormValidation.ok()
+                : FormValidation.error("Idle minutes must be 0-99999");
+        }
+
+        /**
+         * Checks remoteFS.
+         */
+        public FormValidation doCheckRemoteFS(@QueryParameter String remoteFS) {
+            return remoteFS.isEmpty()
+                ? FormValidation.error("Remote FS root must be filled")
+                : FormValidation.ok();
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -1,31 +1,22 @@
 package org.kink_lang.jenkins.plugins.gce;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.logging.Logger;
-import java.security.GeneralSecurityException;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.EmptyContent;
 import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.services.compute.Compute;
-import com.google.api.services.compute.model.Instance;
 import com.google.api.services.compute.model.Metadata;
 import com.google.api.services.compute.model.Operation;
 
 public class GceInstance {
 
-    private static final Logger LOGGER = Logger.getLogger(GceInstance.class.getName());
+    private final ComputeClient client;
 
-    private final GoogleCredential credential;
+    private final OperationTracker tracker;
+
+    private final MetadataUpdater metadataUpdater;
 
     private final String project;
 
@@ -33,86 +24,104 @@ public class GceInstance {
 
     private final String name;
 
-    private final HttpTransport transport;
-
-    private final JsonFactory jsonFactory;
-
     private final Compute compute;
 
-    public GceInstance(
-            GoogleCredential credential, String project, String zone, String name
-            ) throws IOException, GeneralSecurityException {
-        this.credential = credential;
-        this.project = project;
-        this.zone = zone;
+    GceInstance(ComputeClient client, OperationTracker tracker, MetadataUpdater metadataUpdater, String name) {
+        this.client = client;
+        this.tracker = tracker;
+        this.metadataUpdater = metadataUpdater;
+        this.project = client.getProject();
+        this.zone = client.getZone();
         this.name = name;
-        this.transport = GoogleNetHttpTransport.newTrustedTransport();
-        this.jsonFactory = new JacksonFactory();
-        this.compute = new Compute.Builder(transport, jsonFactory, credential)
-            .setApplicationName("Jenkins")
-            .build();
+        this.compute = client.getCompute();
+    }
+
+    /**
+     * Returns the client which manipulates the instance.
+     */
+    ComputeClient getClient() {
+        return this.client;
     }
 
     public boolean addMetadata(Map<String, String> addedMetadata) throws Exception {
-        Instance instance = compute.instances().get(project, zone, name).execute();
-        Metadata metadata = updateMetadata(instance.getMetadata(), addedMetadata);
-        Operation op = compute.instances()
-            .setMetadata(project, zone, name, metadata)
-            .execute();
-        return waitOperationResult(op);
+        Operation op = beginAddMetadata(addedMetadata);
+        return op == null || waitOperationResult(op);
     }
 
-    private Metadata updateMetadata(Metadata metadata, Map<String, String> added) throws Exception {
-        Map<String, String> map = new HashMap<String, String>();
-        if (metadata.getItems() != null) {
-            for (Metadata.Items item : metadata.getItems()) {
-                map.put(item.getKey(), item.getValue());
-            }
-        }
-        map.putAll(added);
+    /**
+     * Issues the operation to add metadata, without waiting for the operation.
+     *
+     * Returns null if the metadata already has the items.
+     */
+    Operation beginAddMetadata(Map<String, String> addedMetadata) throws Exception {
+        return metadataUpdater.update(client, name, addedMetadata);
+    }
 
-        List<Metadata.Items> items = new ArrayList<Metadata.Items>();
-        for (Map.Entry<String, String> entry : map.entrySet()) {
-            String key = entry.getKey();
-            String val = entry.getValue();
-            items.add(new Metadata.Items().setKey(key).setValue(val));
+    /**
+     * Merges the added items to the metadata, and returns the metadata.
+     *
+     * The order of the existing items is kept.
+     */
+    static Metadata updateMetadata(Metadata metadata, Map<String, String> added) {
+        Metadata diffed = MetadataUpdater.diff(metadata, added);
+        if (diffed != null) {
+            metadata.setItems(diffed.getItems());
         }
-        metadata.setItems(items);
         return metadata;
     }
 
     public boolean start() throws Exception {
-        Operation op = compute.instances()
-            .start(project, zone, name)
-            .execute();
-        return waitOperationResult(op);
+        return waitOperationResult(beginStart());
+    }
+
+    /**
+     * Issues the operation to start the instance, without waiting for the operation.
+     */
+    Operation beginStart() throws IOException {
+        return client.execute(compute.instances().start(project, zone, name));
     }
 
     public boolean stop() throws IOException, InterruptedException {
-        Operation op = compute.instances()
-            .stop(project, zone, name)
-            .execute();
-        return waitOperationResult(op);
+        return waitOperationResult(beginStop());
+    }
+
+    /**
+     * Issues the operation to stop the instance, without waiting for the operation.
+     */
+    Operation beginStop() throws IOException {
+        return client.execute(compute.instances().stop(project, zone, name));
+    }
+
+    /**
+     * Issues the operation to delete the instance, without waiting for the operation.
+     */
+    Operation beginDelete() throws IOException {
+        return client.execute(compute.instances().delete(project, zone, name));
+    }
+
+    /**
+     * Issues the operation to suspend the instance, without waiting for the operation.
+     */
+    Operation beginSuspend() throws IOException {
+        return client.execute(buildActionRequest(client, name, "suspend")).parseAs(Operation.class);
+    }
+
+    /**
+     * Builds the request of the instance action such as "suspend" and "resume".
+     *
+     * The API client in use does not have the methods of the actions,
+     * so the endpoint is called directly.
+     */
+    static HttpRequest buildActionRequest(ComputeClient client, String name, String action) throws IOException {
+        GenericUrl url = new GenericUrl(client.getCompute().getBaseUrl()
+                + String.format("%s/zones/%s/instances/%s/%s", client.getProject(), client.getZone(), name, action));
+        return client.getCompute().getRequestFactory()
+            .buildPostRequest(url, new EmptyContent())
+            .setParser(client.getJsonFactory().createJsonObjectParser());
     }
 
     boolean waitOperationResult(Operation op) throws IOException, InterruptedException {
-        while (true) {
-            LOGGER.info("Operation result: " + op);
-            if (op.getStatus().equals("DONE")) {
-                return op.getError() == null
-                    || op.getError().getErrors() == null
-                    || op.getError().getErrors().isEmpty();
-            }
-            Thread.sleep(3000);
-
-            String selfLink = op.getSelfLink();
-            HttpResponse selfResp = transport.createRequestFactory(credential)
-                .buildRequest("GET", new GenericUrl(selfLink), null)
-                .execute();
-            op = jsonFactory.fromInputStream(selfResp.getContent(),
-                    StandardCharsets.UTF_8,
-                    Operation.class);
-        }
+        return OperationTracker.isSuccessful(tracker.waitFor(client, op));
     }
 
 }
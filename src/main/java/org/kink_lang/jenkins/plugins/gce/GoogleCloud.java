@@ -1,21 +1,33 @@
 package org.kink_lang.jenkins.plugins.gce;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.security.GeneralSecurityException;
 
+import jenkins.model.Jenkins;
+
 import hudson.Extension;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
 import hudson.slaves.Cloud;
-import hudson.slaves.CloudRetentionStrategy;
 import hudson.slaves.NodeProvisioner;
 import hudson.slaves.RetentionStrategy;
 import hudson.util.FormValidation;
@@ -24,28 +36,112 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class GoogleCloud extends Cloud {
 
     /** Logger of this class. */
     private static final Logger LOGGER = Logger.getLogger(GoogleCloud.class.getName());
 
+    /** The default interval seconds of refreshing the instance inventory. */
+    private static final long DEFAULT_INVENTORY_REFRESH_SECONDS = 30;
+
+    /** The default seconds to wait for the agent of a started instance to connect. */
+    private static final long DEFAULT_CONNECT_TIMEOUT_SECONDS = 300;
+
+    /** The default maximum # of concurrent starts and stops. */
+    private static final int DEFAULT_MAX_IN_FLIGHT_OPERATIONS = 10;
+
+    /** The default maximum # of read requests per second. */
+    private static final double DEFAULT_READ_REQUESTS_PER_SECOND = 20;
+
+    /** The default maximum # of write requests per second. */
+    private static final double DEFAULT_WRITE_REQUESTS_PER_SECOND = 10;
+
+    /** The default minutes to skip a zone after a stockout. */
+    private static final long DEFAULT_STOCKOUT_COOLDOWN_MINUTES = 10;
+
+    /** The minutes after which planned capacity not online is not counted anymore. */
+    private static final long PLANNED_CAPACITY_EXPIRY_MINUTES = 15;
+
+    /** Pattern of separators of the entries of minimum idle slaves. */
+    private static final Pattern MIN_IDLE_SEPARATOR = Pattern.compile("[,\\n]+");
+
+    /** Pattern of separators of zone IDs. */
+    private static final Pattern ZONE_SEPARATOR = Pattern.compile("[,\\s]+");
+
     /** The GCP project ID in which slaves are launched. */
     private String project;
 
-    /** The GCE zone ID in which slaves are launched. */
+    /** The GCE zone IDs in which slaves are launched, separated by commas or spaces. */
     private String zone;
 
+    /** The minutes to skip a zone after a stockout. */
+    private String stockoutCooldownMinutes;
+
     /** The credentials JSON filepath; or empty to use Application Default Credentials. */
     private String credentialsFilePath;
 
     /** The timeout minutes of slaves. */
     private String timeoutMinutes;
 
+    /** The minimum # of idle slaves per label, such as "linux=2", separated by commas or newlines. */
+    private String minIdleSlaves;
+
+    /** The interval seconds of refreshing the instance inventory. */
+    private String inventoryRefreshSeconds;
+
+    /** The seconds to wait for the agent of a started instance to connect. */
+    private String connectTimeoutSeconds;
+
+    /** The maximum # of concurrent starts and stops. */
+    private String maxInFlightOperations;
+
+    /** The maximum # of read requests per second; 0 means unlimited. */
+    private String readRequestsPerSecond;
+
+    /** The maximum # of write requests per second; 0 means unlimited. */
+    private String writeRequestsPerSecond;
+
+    /** # of stopped instances kept prepared for launching; 0 disables the warm pool. */
+    private String warmPoolSize;
+
+    /** Whether slaves are provisioned ahead of the demand predicted from the queue history. */
+    private boolean predictiveProvisioning;
+
+    /** Whether instances of persistent slaves are suspended instead of stopped on termination. */
+    private boolean suspendOnTerminate;
+
     /** The list of slave specs. */
     private List<PersistentSlaveSpec> persistentSlaveSpecs;
 
+    /** The list of specs of slaves created from instance templates. */
+    private List<EphemeralSlaveSpec> ephemeralSlaveSpecs;
+
+    /** The cache of the Compute API client; lazily made. */
+    private transient ComputeClientCache computeClientCache;
+
+    /** The index from labels to specs; lazily made. */
+    private transient SpecIndex specIndex;
+
+    /** The throttle of Compute API requests; lazily made. */
+    private transient ApiThrottle apiThrottle;
+
+    /** The runtime state which survives reconfiguration; lazily bound. */
+    private transient CloudRuntime runtime;
+
+    /** The parsed timeout minutes of slaves; lazily made. */
+    private transient Integer timeoutMinutesNumber;
+
+    /** The parsed minimum # of idle slaves keyed by the labels; lazily made. */
+    private transient Map<String, Integer> minIdleSlavesMap;
+
     @DataBoundConstructor
     public GoogleCloud(String name) {
         super(name);
@@ -57,6 +153,7 @@ public class GoogleCloud extends Cloud {
     @DataBoundSetter
     public void setProject(String project) {
         this.project = project.trim();
+        invalidateComputeClient();
     }
 
     /**
@@ -67,41 +164,138 @@ public class GoogleCloud extends Cloud {
     }
 
     /**
-     * Sets the zone ID of slaves.
+     * Sets the zone IDs of slaves, separated by commas or spaces.
      */
     @DataBoundSetter
     public void setZone(String zone) {
         this.zone = zone.trim();
+        invalidateComputeClient();
     }
 
     /**
-     * Returns the zone ID of slaves.
+     * Returns the zone IDs of slaves, separated by commas or spaces.
      */
     public String getZone() {
         return this.zone;
     }
 
+    /**
+     * Returns the list of the zone IDs of slaves; the first one is the home zone.
+     */
+    List<String> getZones() {
+        List<String> zones = new ArrayList<String>();
+        for (String z : ZONE_SEPARATOR.split(this.zone)) {
+            if (! z.isEmpty()) {
+                zones.add(z);
+            }
+        }
+        return zones;
+    }
+
+    /**
+     * Returns the zone of the spec instance found by the inventory; or the home zone if not found.
+     */
+    String zoneOf(String instanceName) {
+        String found = getInventory().getZone(instanceName);
+        return found != null ? found : getZones().get(0);
+    }
+
+    /**
+     * Stores the minutes to skip a zone after a stockout.
+     */
+    @DataBoundSetter
+    public void setStockoutCooldownMinutes(String stockoutCooldownMinutes) {
+        this.stockoutCooldownMinutes = stockoutCooldownMinutes;
+        synchronized (this) {
+            if (this.runtime != null) {
+                this.runtime.getPlacementEngine().setCooldownMillis(getStockoutCooldownMillis());
+            }
+        }
+    }
+
+    /**
+     * Returns the minutes to skip a zone after a stockout.
+     */
+    public String getStockoutCooldownMinutes() {
+        return this.stockoutCooldownMinutes;
+    }
+
+    /**
+     * Returns the parsed cooldown period after a stockout.
+     */
+    private long getStockoutCooldownMillis() {
+        String minutes = this.stockoutCooldownMinutes;
+        long cooldownMinutes = minutes == null || minutes.trim().isEmpty()
+            ? DEFAULT_STOCKOUT_COOLDOWN_MINUTES
+            : Long.parseLong(minutes.trim());
+        return TimeUnit.MINUTES.toMillis(cooldownMinutes);
+    }
+
+    /**
+     * Returns the engine which chooses zones.
+     *
+     * The engine is kept in the runtime state, so the stats of the zones and the cooldowns in progress
+     * survive the reconfiguration.
+     */
+    PlacementEngine getPlacementEngine() {
+        return getRuntime().getPlacementEngine();
+    }
+
     /**
      * Stores the list of slave specs.
      */
     @DataBoundSetter
     public void setPersistentSlaveSpecs(List<PersistentSlaveSpec> persistentSlaveSpecs) {
         this.persistentSlaveSpecs = persistentSlaveSpecs;
+        synchronized (this) {
+            this.specIndex = null;
+        }
     }
 
     /**
-     * Returns the list of slave specs.
+     * Returns the list of slave specs as configured, whose ranges are not expanded.
      */
     public List<PersistentSlaveSpec> getPersistentSlaveSpecs() {
         return this.persistentSlaveSpecs;
     }
 
+    /**
+     * Stores the list of specs of slaves created from instance templates.
+     */
+    @DataBoundSetter
+    public void setEphemeralSlaveSpecs(List<EphemeralSlaveSpec> ephemeralSlaveSpecs) {
+        this.ephemeralSlaveSpecs = ephemeralSlaveSpecs;
+    }
+
+    /**
+     * Returns the list of specs of slaves created from instance templates.
+     */
+    public List<EphemeralSlaveSpec> getEphemeralSlaveSpecs() {
+        return this.ephemeralSlaveSpecs == null
+            ? Collections.<EphemeralSlaveSpec>emptyList()
+            : this.ephemeralSlaveSpecs;
+    }
+
+    /**
+     * Returns the index from labels to specs.
+     *
+     * The index is made lazily, because XStream does not call the setter on loading,
+     * and so that ranges of specs are expanded only when slaves are provisioned.
+     */
+    synchronized SpecIndex getSpecIndex() {
+        if (this.specIndex == null) {
+            this.specIndex = new SpecIndex(this.persistentSlaveSpecs);
+        }
+        return this.specIndex;
+    }
+
     /**
      * Stores the path of the credentials file.
      */
     @DataBoundSetter
     public void setCredentialsFilePath(String credentialsFilePath) {
         this.credentialsFilePath = credentialsFilePath;
+        invalidateComputeClient();
     }
 
     /**
@@ -117,6 +311,9 @@ public class GoogleCloud extends Cloud {
     @DataBoundSetter
     public void setTimeoutMinutes(String timeoutMinutes) {
         this.timeoutMinutes = timeoutMinutes;
+        synchronized (this) {
+            this.timeoutMinutesNumber = null;
+        }
     }
 
     /**
@@ -126,135 +323,1662 @@ public class GoogleCloud extends Cloud {
         return this.timeoutMinutes;
     }
 
-    @Override
-    public boolean canProvision(Label label) {
-        for (PersistentSlaveSpec spec : this.persistentSlaveSpecs) {
-            if (spec.canProvision(label)) {
-                return true;
-            }
+    /**
+     * Stores the minimum # of idle slaves per label.
+     */
+    @DataBoundSetter
+    public void setMinIdleSlaves(String minIdleSlaves) {
+        this.minIdleSlaves = minIdleSlaves;
+        synchronized (this) {
+            this.minIdleSlavesMap = null;
         }
-        return false;
     }
 
-    @Override
-    public List<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
-        List<NodeProvisioner.PlannedNode> result = new ArrayList<NodeProvisioner.PlannedNode>();
-        for (PersistentSlaveSpec spec : this.persistentSlaveSpecs) {
-            if (excessWorkload <= 0) {
-                break;
-            }
+    /**
+     * Returns the minimum # of idle slaves per label.
+     */
+    public String getMinIdleSlaves() {
+        return this.minIdleSlaves;
+    }
+
+    /**
+     * Returns the minimum # of idle slaves keyed by the label expressions.
+     */
+    private synchronized Map<String, Integer> getMinIdleSlavesMap() {
+        if (this.minIdleSlavesMap == null) {
+            this.minIdleSlavesMap = parseMinIdleSlaves(this.minIdleSlaves);
+        }
+        return this.minIdleSlavesMap;
+    }
 
-            NodeProvisioner.PlannedNode plannedNode = spec.provision(this, label);
-            if (plannedNode != null) {
-                excessWorkload -= plannedNode.numExecutors;
-                result.add(plannedNode);
+    /**
+     * Parses entries such as "linux=2" into the map from label expressions to counts.
+     */
+    static Map<String, Integer> parseMinIdleSlaves(String minIdleSlaves) {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        if (minIdleSlaves == null) {
+            return result;
+        }
+        for (String entry : MIN_IDLE_SEPARATOR.split(minIdleSlaves)) {
+            int eq = entry.lastIndexOf('=');
+            if (eq > 0) {
+                result.put(entry.substring(0, eq).trim(), Integer.parseInt(entry.substring(eq + 1).trim()));
             }
         }
         return result;
     }
 
     /**
-     * Returns the retention strategy of slaves.
+     * Stores the interval seconds of refreshing the instance inventory.
      */
-    public RetentionStrategy getRetentionStrategy() {
-        return new CloudRetentionStrategy(Integer.parseInt(timeoutMinutes));
+    @DataBoundSetter
+    public void setInventoryRefreshSeconds(String inventoryRefreshSeconds) {
+        this.inventoryRefreshSeconds = inventoryRefreshSeconds;
     }
 
     /**
-     * Makes a GoogleCredential instance to manipulate slave instances.
+     * Returns the interval seconds of refreshing the instance inventory.
      */
-    private GoogleCredential makeCredential() throws IOException {
-        String path = this.credentialsFilePath.trim();
-        if (path.isEmpty()) {
-            return GoogleCredential.getApplicationDefault();
-        }
+    public String getInventoryRefreshSeconds() {
+        return this.inventoryRefreshSeconds;
+    }
 
-        LOGGER.info("use service account json file " + path);
-        try (FileInputStream fis = new FileInputStream(path)) {
-            return GoogleCredential.fromStream(fis)
-                .createScoped(Collections.singletonList("https://www.googleapis.com/auth/compute"));
-        }
+    /**
+     * Stores the seconds to wait for the agent of a started instance to connect.
+     */
+    @DataBoundSetter
+    public void setConnectTimeoutSeconds(String connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
     }
 
     /**
-     * Sets up and launches the instance.
+     * Returns the seconds to wait for the agent of a started instance to connect.
      */
-    public PersistentSlave setupAndLaunch(PersistentSlave slave) throws Exception {
-        GceInstance gi = new GceInstance(makeCredential(), project, zone, slave.getNodeName());
-        Map<String, String> jenkinsMetadata = new HashMap<String, String>();
-        jenkinsMetadata.put("jenkinsSecret", slave.getComputer().getJnlpMac());
-        if (! gi.addMetadata(jenkinsMetadata)) {
-            LOGGER.warning("provision: failed to add metadata for " + slave.getNodeName());
-            return null;
-        }
+    public String getConnectTimeoutSeconds() {
+        return this.connectTimeoutSeconds;
+    }
+
+    /**
+     * Stores the maximum # of concurrent starts and stops.
+     */
+    @DataBoundSetter
+    public void setMaxInFlightOperations(String maxInFlightOperations) {
+        this.maxInFlightOperations = maxInFlightOperations;
+        resizeExecutor();
+    }
 
-        if (! gi.start()) {
-            LOGGER.warning("provision: failed to start " + slave.getNodeName());
-            return null;
+    /**
+     * Resizes the executor of the bound runtime, because the maximum # of concurrent operations is changed.
+     */
+    private synchronized void resizeExecutor() {
+        if (this.runtime != null) {
+            this.runtime.setThreads(getMaxInFlightOperationsNumber());
         }
+    }
 
-        return slave;
+    /**
+     * Returns the maximum # of concurrent starts and stops.
+     */
+    public String getMaxInFlightOperations() {
+        return this.maxInFlightOperations;
     }
 
     /**
-     * Terminates the instance.
+     * Stores the maximum # of read requests per second.
      */
-    public void terminate(String instanceName) throws IOException, InterruptedException {
-        try {
-            GceInstance gi = new GceInstance(makeCredential(), project, zone, instanceName);
-            if (! gi.stop()) {
-                LOGGER.info("failed to stop the instance");
-            }
-        } catch (GeneralSecurityException gsex) {
-            throw new RuntimeException(gsex);
-        }
+    @DataBoundSetter
+    public void setReadRequestsPerSecond(String readRequestsPerSecond) {
+        this.readRequestsPerSecond = readRequestsPerSecond;
+        resetApiThrottle();
     }
 
-    @Extension
-    public static final class DescriptorImpl extends Descriptor<Cloud> {
+    /**
+     * Returns the maximum # of read requests per second.
+     */
+    public String getReadRequestsPerSecond() {
+        return this.readRequestsPerSecond;
+    }
 
-        @Override
-        public String getDisplayName() {
-            return "Google Compute Engine";
-        }
+    /**
+     * Stores the maximum # of write requests per second.
+     */
+    @DataBoundSetter
+    public void setWriteRequestsPerSecond(String writeRequestsPerSecond) {
+        this.writeRequestsPerSecond = writeRequestsPerSecond;
+        resetApiThrottle();
+    }
 
-        /**
-         * Validates name property.
-         */
-        public FormValidation doCheckName(@QueryParameter String name) {
-            return name.trim().isEmpty()
-                ? FormValidation.error("Cloud name must be filled")
-                : FormValidation.ok();
-        }
+    /**
+     * Returns the maximum # of write requests per second.
+     */
+    public String getWriteRequestsPerSecond() {
+        return this.writeRequestsPerSecond;
+    }
 
-        /**
-         * Validates project property.
-         */
-        public FormValidation doCheckProject(@QueryParameter String project) {
-            return project.trim().isEmpty()
-                ? FormValidation.error("Project ID must be filled")
-                : FormValidation.ok();
+    /**
+     * Returns the throttle of Compute API requests, shared by all the instances of this cloud.
+     */
+    private synchronized ApiThrottle getApiThrottle() {
+        if (this.apiThrottle == null) {
+            this.apiThrottle = new ApiThrottle(
+                    parseRate(this.readRequestsPerSecond, DEFAULT_READ_REQUESTS_PER_SECOND),
+                    parseRate(this.writeRequestsPerSecond, DEFAULT_WRITE_REQUESTS_PER_SECOND));
         }
+        return this.apiThrottle;
+    }
 
-        /**
-         * Vaidates zone property.
-         */
-        public FormValidation doCheckZone(@QueryParameter String zone) {
-            return zone.trim().isEmpty()
-                ? FormValidation.error("Zone ID must be filled")
-                : FormValidation.ok();
+    /**
+     * Discards the throttle, because the rates are changed.
+     */
+    private synchronized void resetApiThrottle() {
+        this.apiThrottle = null;
+    }
+
+    /**
+     * Parses the rate; or returns the default if the rate is empty.
+     */
+    private static double parseRate(String rate, double defaultRate) {
+        return rate == null || rate.trim().isEmpty() ? defaultRate : Double.parseDouble(rate.trim());
+    }
+
+    /**
+     * Returns the metrics of Compute API calls of this cloud.
+     */
+    ApiMetrics getApiMetrics() {
+        return getRuntime().getApiMetrics();
+    }
+
+    /**
+     * Returns the latency stats of Compute API calls, keyed by the Compute methods.
+     */
+    public Map<String, LatencyRecorder.Stats> getApiCallStats() {
+        return getApiMetrics().getCallStats();
+    }
+
+    /**
+     * Returns # of error responses of Compute API calls, keyed by the Compute methods.
+     */
+    public Map<String, Long> getApiErrorCounts() {
+        return getApiMetrics().getErrorCounts();
+    }
+
+    /**
+     * Returns # of Compute API requests which waited for the quota.
+     */
+    public long getThrottledRequestCount() {
+        return getApiThrottle().getThrottledCount();
+    }
+
+    /**
+     * Returns # of retries of rate-limited Compute API requests.
+     */
+    public long getRetriedRequestCount() {
+        return getApiThrottle().getRetriedCount();
+    }
+
+    /**
+     * Returns the executor of GCE calls of this cloud.
+     *
+     * The executor is isolated from Computer.threadPoolForRemoting,
+     * and # of its threads is bounded by maxInFlightOperations.
+     * Excess tasks wait in the queue.
+     */
+    ThreadPoolExecutor getExecutor() {
+        return getRuntime().getExecutor();
+    }
+
+    /**
+     * Returns the runtime state of this cloud, binding this object to it at the first call.
+     */
+    synchronized CloudRuntime getRuntime() {
+        if (this.runtime == null) {
+            this.runtime = CloudRuntime.bind(this);
+            this.runtime.setThreads(getMaxInFlightOperationsNumber());
+            this.runtime.getPlacementEngine().setCooldownMillis(getStockoutCooldownMillis());
         }
+        return this.runtime;
+    }
 
-        /** Pattern of decimal numbers. */
-        private static final Pattern DECIMAL_PATTERN = Pattern.compile("[0-9]{1,5}");
+    /**
+     * Returns the parsed maximum # of concurrent starts and stops.
+     */
+    private int getMaxInFlightOperationsNumber() {
+        String max = this.maxInFlightOperations;
+        return max == null || max.trim().isEmpty()
+            ? DEFAULT_MAX_IN_FLIGHT_OPERATIONS
+            : Math.max(1, Integer.parseInt(max.trim()));
+    }
 
-        /**
-         * Validates the timeout minutes of slaves.
-         */
-        public FormValidation doCheckTimeoutMinutes(@QueryParameter String timeoutMinutes) {
-            return DECIMAL_PATTERN.matcher(timeoutMinutes).matches()
-                ? FormValidation.ok()
-                : FormValidation.error("Slave timeout minutes must be 0-99999");
+    /**
+     * Returns # of GCE call tasks waiting for a thread of this cloud.
+     */
+    public int getExecutorQueueDepth() {
+        return getExecutor().getQueue().size();
+    }
+
+    /**
+     * Returns # of GCE call tasks running on the threads of this cloud.
+     */
+    public int getExecutorActiveCount() {
+        return getExecutor().getActiveCount();
+    }
+
+    /**
+     * Stores # of stopped instances kept prepared for launching.
+     */
+    @DataBoundSetter
+    public void setWarmPoolSize(String warmPoolSize) {
+        this.warmPoolSize = warmPoolSize;
+    }
+
+    /**
+     * Returns # of stopped instances kept prepared for launching.
+     */
+    public String getWarmPoolSize() {
+        return this.warmPoolSize;
+    }
+
+    /**
+     * Returns the pool of instances prepared for launching.
+     */
+    WarmPool getWarmPool() {
+        return getRuntime().getWarmPool();
+    }
+
+    /**
+     * Returns the updater of instance metadata.
+     */
+    MetadataUpdater getMetadataUpdater() {
+        return getRuntime().getMetadataUpdater();
+    }
+
+    /**
+     * Returns # of metadata writes skipped because the items were unchanged.
+     */
+    public long getMetadataSkippedWriteCount() {
+        return getMetadataUpdater().getSkippedCount();
+    }
+
+    /**
+     * Returns # of metadata writes rejected by fingerprint conflicts.
+     */
+    public long getMetadataConflictCount() {
+        return getMetadataUpdater().getConflictCount();
+    }
+
+    /**
+     * Returns # of instances in the warm pool which are not used as nodes.
+     */
+    public int getIdleWarmPoolCount() {
+        return getWarmPool().countIdle(getSpecIndex().getSpecs());
+    }
+
+    /**
+     * Stores whether slaves are provisioned ahead of the predicted demand.
+     */
+    @DataBoundSetter
+    public void setPredictiveProvisioning(boolean predictiveProvisioning) {
+        this.predictiveProvisioning = predictiveProvisioning;
+    }
+
+    /**
+     * Returns whether slaves are provisioned ahead of the predicted demand.
+     */
+    public boolean isPredictiveProvisioning() {
+        return this.predictiveProvisioning;
+    }
+
+    /**
+     * Stores whether instances are suspended instead of stopped on termination.
+     */
+    @DataBoundSetter
+    public void setSuspendOnTerminate(boolean suspendOnTerminate) {
+        this.suspendOnTerminate = suspendOnTerminate;
+    }
+
+    /**
+     * Returns whether instances are suspended instead of stopped on termination.
+     */
+    public boolean isSuspendOnTerminate() {
+        return this.suspendOnTerminate;
+    }
+
+    /**
+     * Returns the instances being stopped in the background.
+     */
+    PendingStops getPendingStops() {
+        return getRuntime().getPendingStops();
+    }
+
+    /**
+     * Returns # of instances whose stops are not confirmed yet.
+     */
+    public int getPendingStopCount() {
+        return getPendingStops().size();
+    }
+
+    /**
+     * Returns the ledger of capacity planned but not online.
+     */
+    CapacityLedger getCapacityLedger() {
+        return getRuntime().getCapacityLedger();
+    }
+
+    /**
+     * Returns the tracker of preemptions and fallbacks to standard capacity.
+     */
+    PreemptionTracker getPreemptionTracker() {
+        return getRuntime().getPreemptionTracker();
+    }
+
+    /**
+     * Returns the detector of preemptions.
+     */
+    PreemptionDetector getPreemptionDetector() {
+        return getRuntime().getPreemptionDetector();
+    }
+
+    /**
+     * Returns the waiter of agent connections.
+     */
+    ConnectWaiter getConnectWaiter() {
+        return getRuntime().getConnectWaiter();
+    }
+
+    /**
+     * Returns the streamer of the serial port output of booting instances.
+     */
+    SerialPortStreamer getSerialPortStreamer() {
+        return getRuntime().getSerialPortStreamer();
+    }
+
+    /**
+     * Returns the circuit breaker of launches.
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return getRuntime().getCircuitBreaker();
+    }
+
+    /**
+     * Returns the description of the state of the circuit breaker of launches.
+     */
+    public String getCircuitBreakerState() {
+        return getCircuitBreaker().describe();
+    }
+
+    /**
+     * Returns true if the circuit breaker of launches is not closed.
+     */
+    public boolean isCircuitBreakerTripped() {
+        return getCircuitBreaker().getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Returns # of started slaves waiting for their agents to connect.
+     */
+    public int getConnectWaitingCount() {
+        return getConnectWaiter().size();
+    }
+
+    /**
+     * Returns the futures which yield the slaves when they get online after the launches.
+     * The futures fail if the slaves fail to launch or connect,
+     * and the results are reported to the circuit breaker.
+     *
+     * A slave which does not connect within the timeout is removed, and its instance is stopped or deleted.
+     */
+    private List<ListenableFuture<Node>> waitOnline(List<? extends Node> slaves, List<ListenableFuture<Node>> launched) {
+        String seconds = this.connectTimeoutSeconds;
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(seconds == null || seconds.trim().isEmpty()
+                ? DEFAULT_CONNECT_TIMEOUT_SECONDS
+                : Long.parseLong(seconds.trim()));
+        List<ListenableFuture<Node>> result = new ArrayList<ListenableFuture<Node>>();
+        for (int i = 0; i < slaves.size(); ++ i) {
+            final Node slave = slaves.get(i);
+            streamSerialPort(slave, launched.get(i));
+            ListenableFuture<Node> online = getConnectWaiter().waitOnline(slave, launched.get(i), timeoutMillis,
+                    new Runnable() {
+                        @Override public void run() {
+                            giveUpConnect(slave);
+                        }
+                    });
+            reportToBreaker(slave.getNodeName(), online);
+            result.add(online);
+        }
+        return result;
+    }
+
+    /**
+     * Reports the result of the launch to the circuit breaker when the agent connects or fails to connect.
+     * Stockouts only end the probe of a half-open breaker without opening it again.
+     */
+    private void reportToBreaker(final String slaveName, final ListenableFuture<Node> online) {
+        final CircuitBreaker breaker = getCircuitBreaker();
+        online.addListener(new Runnable() {
+            @Override public void run() {
+                try {
+                    online.get();
+                    breaker.onSuccess();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+                    LOGGER.log(Level.FINE, "launch of " + slaveName + " failed", cause);
+                    if (cause instanceof LaunchFailedException && ((LaunchFailedException) cause).isStockout()) {
+                        breaker.cancelProbe();
+                    } else {
+                        breaker.onFailure(String.valueOf(cause));
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Streams the serial port output of the instance of the slave into the log of its computer
+     * when the instance is started, until the agent connects.
+     */
+    private void streamSerialPort(final Node slave, final ListenableFuture<Node> launched) {
+        launched.addListener(new Runnable() {
+            @Override public void run() {
+                String zone = slave instanceof PersistentSlave ? ((PersistentSlave) slave).getZone()
+                    : slave instanceof EphemeralSlave ? ((EphemeralSlave) slave).getZone()
+                    : null;
+                try {
+                    if (launched.get() != null) {
+                        getSerialPortStreamer().stream(getComputeClient(zone), slave);
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    // the launch failure is handled by the waiter
+                } catch (IOException | GeneralSecurityException ex) {
+                    LOGGER.log(Level.FINE, "failed to stream the serial port output of " + slave.getNodeName(), ex);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Removes the slave whose agent did not connect, and stops or deletes its instance.
+     *
+     * Nothing is done if the slave has already been removed, so the instance is not terminated twice.
+     */
+    private void giveUpConnect(Node slave) {
+        getCapacityLedger().remove(slave.getNodeName());
+        if (Jenkins.getInstance().getNode(slave.getNodeName()) != slave) {
+            LOGGER.fine("the slave " + slave.getNodeName() + " is already removed");
+            return;
+        }
+        try {
+            Jenkins.getInstance().removeNode(slave);
+        } catch (IOException ioex) {
+            LOGGER.log(Level.WARNING, "failed to remove the slave " + slave.getNodeName(), ioex);
+        }
+        if (slave instanceof PersistentSlave) {
+            terminate(slave.getNodeName(), ((PersistentSlave) slave).getZone());
+        } else if (slave instanceof EphemeralSlave) {
+            deleteInstance(slave.getNodeName(), ((EphemeralSlave) slave).getZone());
+        }
+    }
+
+    /**
+     * Returns the cache disks of the instances.
+     */
+    DiskCache getDiskCache() {
+        return getRuntime().getDiskCache();
+    }
+
+    /**
+     * Returns the cache stats keyed by the labels.
+     */
+    public Map<String, DiskCache.Stats> getDiskCacheStats() {
+        return getDiskCache().snapshot();
+    }
+
+    /**
+     * Returns the preemption stats keyed by the labels.
+     */
+    public Map<String, PreemptionTracker.Stats> getPreemptionStats() {
+        return getPreemptionTracker().snapshot();
+    }
+
+    /**
+     * Checks the preemptions in the zone on the executor of this cloud;
+     * or in all the zones if the zone is null.
+     */
+    void detectPreemption(final String zone) {
+        getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    getPreemptionDetector().poll(zone == null
+                            ? getComputeClients()
+                            : Collections.singletonList(getComputeClient(zone)));
+                } catch (IOException | GeneralSecurityException ex) {
+                    LOGGER.log(Level.WARNING, "cannot detect preemptions", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns # of executors planned but not online, keyed by the labels which they are planned for.
+     */
+    public Map<String, Integer> getPlannedExecutors() {
+        return getCapacityLedger().getPlannedExecutors();
+    }
+
+    /**
+     * Returns # of executors whose instances are started but not online, keyed by the labels.
+     */
+    public Map<String, Integer> getLaunchedExecutors() {
+        return getCapacityLedger().getLaunchedExecutors();
+    }
+
+    /**
+     * Returns # of online executors of the slaves of this cloud,
+     * keyed by the labels which capacity has been planned for.
+     */
+    public Map<String, Integer> getOnlineExecutors() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (String expr : getCapacityLedger().getLabels()) {
+            Label label = CapacityLedger.UNLABELED.equals(expr) ? null : Jenkins.getInstance().getLabel(expr);
+            int count = 0;
+            for (Node node : Jenkins.getInstance().getNodes()) {
+                Computer computer = node.toComputer();
+                if (isSlaveOf(node) && computer != null && computer.isOnline()
+                        && (label == null || label.contains(node))) {
+                    count += computer.countExecutors();
+                }
+            }
+            result.put(expr, count);
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the node is a slave of this cloud.
+     */
+    boolean isSlaveOf(Node node) {
+        return (node instanceof PersistentSlave && this.name.equals(((PersistentSlave) node).getCloudName()))
+            || (node instanceof EphemeralSlave && this.name.equals(((EphemeralSlave) node).getCloudName()));
+    }
+
+    /**
+     * Returns the predictor of demand.
+     */
+    DemandPredictor getDemandPredictor() {
+        return getRuntime().getDemandPredictor();
+    }
+
+    /**
+     * Returns the ratio of pre-provisioned slaves which were used.
+     */
+    public double getPredictionHitRate() {
+        return getDemandPredictor().getHitRate();
+    }
+
+    /**
+     * Returns instance-minutes of pre-provisioned slaves terminated without being used.
+     */
+    public long getPredictionWastedInstanceMinutes() {
+        return getDemandPredictor().getWastedInstanceMinutes();
+    }
+
+    /**
+     * Provisions slaves for the demand expected in the next hour,
+     * beyond the idle executors of the existing slaves.
+     *
+     * The predicted capacity of a label is provisioned at most once until the slot rolls over,
+     * so that slaves scaled down without being used are not started again in the same hour.
+     */
+    private void provisionPredictedDemand() {
+        if (isCircuitBreakerTripped()) {
+            LOGGER.fine("provision ahead of the predicted demand: the circuit breaker is not closed");
+            return;
+        }
+        DemandPredictor predictor = getDemandPredictor();
+        for (Map.Entry<String, Integer> entry : predictor.predictNextHour().entrySet()) {
+            String expr = entry.getKey();
+            Label label = Jenkins.getInstance().getLabel(expr);
+            int unprovisioned = entry.getValue() - predictor.getProvisionedForNextHour(expr);
+            int shortage = Math.min(unprovisioned, entry.getValue() - countAvailableExecutors(label));
+            if (shortage <= 0) {
+                continue;
+            }
+
+            List<PersistentSlave> slaves = addSlaves(label, shortage);
+            for (PersistentSlave slave : slaves) {
+                LOGGER.info("provision ahead of the predicted demand: " + slave.getNodeName());
+                predictor.onPredicted(slave.getNodeName(), expr, executorsOf(slave));
+            }
+            if (! slaves.isEmpty()) {
+                planCapacity(slaves, label, false);
+                List<ListenableFuture<Node>> futures = launchAll(slaves);
+                trackLaunches(slaves, futures);
+                waitOnline(slaves, futures);
+            }
+        }
+    }
+
+    /**
+     * Records the demand of the labels served by this cloud from the buildable items in the queue.
+     *
+     * NodeProvisioner calls provision only while canProvision is true,
+     * so the demand is sampled from the queue as well, not to under-record it while the capacity is saturated.
+     */
+    private void recordQueuedDemand() {
+        Map<Label, Integer> counts = new HashMap<Label, Integer>();
+        for (Queue.BuildableItem item : Jenkins.getInstance().getQueue().getBuildableItems()) {
+            Label label = item.getAssignedLabel();
+            if (label != null) {
+                Integer count = counts.get(label);
+                counts.put(label, (count == null ? 0 : count) + 1);
+            }
+        }
+        DemandPredictor predictor = getDemandPredictor();
+        for (Map.Entry<Label, Integer> entry : counts.entrySet()) {
+            if (serves(entry.getKey())) {
+                predictor.record(entry.getKey().getExpression(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns true if a slave spec of this cloud matches the label.
+     */
+    private boolean serves(Label label) {
+        if (! getSpecIndex().getCandidates(label).isEmpty()) {
+            return true;
+        }
+        for (EphemeralSlaveSpec spec : getEphemeralSlaveSpecs()) {
+            if (spec.matches(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns # of executors of the slaves of this cloud available for the label,
+     * which are idle or being launched.
+     */
+    private int countAvailableExecutors(Label label) {
+        int count = 0;
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (! (node instanceof PersistentSlave)
+                    || ! this.name.equals(((PersistentSlave) node).getCloudName())
+                    || ! label.contains(node)) {
+                continue;
+            }
+            Computer computer = node.toComputer();
+            if (computer == null) {
+                continue;
+            }
+            count += computer.isOffline() ? executorsOf(node) : computer.countIdle();
+        }
+        return count;
+    }
+
+    /**
+     * Runs the periodic maintenance of this cloud.
+     */
+    void maintain() {
+        getCapacityLedger().expire(TimeUnit.MINUTES.toMillis(PLANNED_CAPACITY_EXPIRY_MINUTES));
+        detectPreemption(null);
+        if (! getSpecIndex().getSpecs().isEmpty()) {
+            refreshInventoryIfStale();
+        }
+        scaleDown();
+
+        if (getPendingStops().size() > 0) {
+            refreshInventoryIfStale();
+            getPendingStops().reconcile(getInventory());
+        }
+
+        if (this.predictiveProvisioning) {
+            recordQueuedDemand();
+            refreshInventoryIfStale();
+            provisionPredictedDemand();
+        }
+
+        for (PersistentSlaveSpec spec : getSpecIndex().getSpecs()) {
+            if (spec.hasCache()) {
+                refreshInventoryIfStale();
+                getDiskCache().maintain(getSpecIndex().getSpecs());
+                break;
+            }
+        }
+
+        String size = this.warmPoolSize;
+        if (size != null && ! size.trim().isEmpty() && Integer.parseInt(size.trim()) > 0) {
+            refreshInventoryIfStale();
+            try {
+                getWarmPool().replenish(getComputeClient(), getOperationWatcher(), getLatencies(),
+                        getSpecIndex().getSpecs(), getInventory(), Integer.parseInt(size.trim()));
+            } catch (IOException | GeneralSecurityException ex) {
+                LOGGER.log(Level.WARNING, "cannot replenish the warm pool", ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the inventory of the states of spec instances.
+     */
+    InstanceInventory getInventory() {
+        return getRuntime().getInventory();
+    }
+
+    /**
+     * Refreshes the inventory of the states of spec instances if it is stale, waiting for the listing.
+     */
+    private void refreshInventoryIfStale() {
+        try {
+            getInventory().refreshIfStale(getComputeClients(), getSpecIndex().getInstanceNames(),
+                    getInventoryRefreshMillis());
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, "cannot refresh the instance inventory", ex);
+        }
+    }
+
+    /**
+     * Refreshes the inventory of the states of spec instances on the executor if it is stale,
+     * so that the NodeProvisioner thread only reads the last snapshot.
+     */
+    private void refreshInventoryAsync() {
+        try {
+            getInventory().refreshAsync(getExecutor(), getComputeClients(), getSpecIndex().getInstanceNames(),
+                    getInventoryRefreshMillis());
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, "cannot refresh the instance inventory", ex);
+        }
+    }
+
+    /**
+     * Returns the interval of refreshing the instance inventory in milliseconds.
+     */
+    private long getInventoryRefreshMillis() {
+        String seconds = this.inventoryRefreshSeconds;
+        return seconds == null || seconds.trim().isEmpty()
+            ? DEFAULT_INVENTORY_REFRESH_SECONDS * 1000L
+            : Long.parseLong(seconds.trim()) * 1000L;
+    }
+
+    /**
+     * Returns the last known states of spec instances, keyed by the instance names.
+     */
+    public Map<String, String> getInstanceStates() {
+        return getInventory().snapshot();
+    }
+
+    @Override
+    public boolean canProvision(Label label) {
+        if (! getCircuitBreaker().allowsLaunch()) {
+            LOGGER.fine("canProvision: the circuit breaker is open");
+            return false;
+        }
+        refreshInventoryAsync();
+        for (PersistentSlaveSpec spec : getSpecIndex().getCandidates(label)) {
+            if (spec.canProvision(this, label)) {
+                return true;
+            }
+        }
+        for (EphemeralSlaveSpec spec : getEphemeralSlaveSpecs()) {
+            if (spec.matches(label) && spec.countSlaves(this) < spec.getInstanceCapNumber()
+                    && getPlacementEngine().choose(getZones()) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public List<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
+        if (this.predictiveProvisioning && label != null) {
+            getDemandPredictor().record(label.getExpression(), excessWorkload);
+        }
+
+        List<NodeProvisioner.PlannedNode> result = new ArrayList<NodeProvisioner.PlannedNode>();
+        int launchedExecutors = getCapacityLedger().countLaunchedExecutors(label);
+        excessWorkload -= launchedExecutors;
+        if (excessWorkload <= 0) {
+            LOGGER.fine("provision: covered by " + launchedExecutors + " executors being connected");
+            return result;
+        }
+
+        CircuitBreaker breaker = getCircuitBreaker();
+        int limit = breaker.beginProvision();
+        if (limit == 0) {
+            LOGGER.fine("provision: the circuit breaker is open");
+            return result;
+        } else if (limit > 0) {
+            excessWorkload = Math.min(excessWorkload, limit);
+        }
+
+        refreshInventoryAsync();
+        List<PersistentSlave> slaves = addSlaves(label, excessWorkload);
+        if (! slaves.isEmpty()) {
+            planCapacity(slaves, label, true);
+            List<ListenableFuture<Node>> launched = launchAll(slaves);
+            trackLaunches(slaves, launched);
+            List<ListenableFuture<Node>> futures = waitOnline(slaves, launched);
+            for (int i = 0; i < slaves.size(); ++ i) {
+                PersistentSlave slave = slaves.get(i);
+                excessWorkload -= executorsOf(slave);
+                result.add(new NodeProvisioner.PlannedNode(
+                            slave.getNodeName(), futures.get(i), executorsOf(slave)));
+            }
+        }
+
+        List<EphemeralSlave> ephemeralSlaves = addEphemeralSlaves(label, excessWorkload);
+        if (! ephemeralSlaves.isEmpty()) {
+            planCapacity(ephemeralSlaves, label, true);
+            List<ListenableFuture<Node>> created = createAll(ephemeralSlaves);
+            trackLaunches(ephemeralSlaves, created);
+            List<ListenableFuture<Node>> futures = waitOnline(ephemeralSlaves, created);
+            for (int i = 0; i < ephemeralSlaves.size(); ++ i) {
+                EphemeralSlave slave = ephemeralSlaves.get(i);
+                result.add(new NodeProvisioner.PlannedNode(
+                            slave.getNodeName(), futures.get(i), executorsOf(slave)));
+            }
+        }
+        if (limit > 0 && result.isEmpty()) {
+            breaker.cancelProbe();
+        }
+        return result;
+    }
+
+    /**
+     * Returns # of executors which the slave contributes to the capacity, at least one.
+     */
+    static int executorsOf(Node slave) {
+        return Math.max(1, slave.getNumExecutors());
+    }
+
+    /**
+     * Records the slaves planned for the label in the capacity ledger;
+     * awaited is true if the slaves are returned as planned nodes, which are done when the slaves get online.
+     */
+    private void planCapacity(List<? extends Node> slaves, Label label, boolean awaited) {
+        CapacityLedger ledger = getCapacityLedger();
+        for (Node slave : slaves) {
+            ledger.plan(slave, label, awaited);
+        }
+    }
+
+    /**
+     * Marks the slaves launched in the capacity ledger when their instances are started,
+     * or removes them from the ledger and from Jenkins if they cannot be launched.
+     * Launches of preemptible instances and launches with cache disks are counted per label.
+     */
+    private void trackLaunches(List<? extends Node> slaves, List<ListenableFuture<Node>> futures) {
+        final CapacityLedger ledger = getCapacityLedger();
+        final PreemptionTracker preemption = getPreemptionTracker();
+        final DiskCache diskCache = getDiskCache();
+        for (int i = 0; i < slaves.size(); ++ i) {
+            final Node slave = slaves.get(i);
+            final String slaveName = slave.getNodeName();
+            final ListenableFuture<Node> future = futures.get(i);
+            future.addListener(new Runnable() {
+                @Override public void run() {
+                    try {
+                        if (future.get() != null) {
+                            ledger.onLaunched(slaveName);
+                            if (slave instanceof PersistentSlave) {
+                                diskCache.onLaunched(slaveName, slave.getLabelString());
+                            }
+                            if (slave instanceof PersistentSlave
+                                    && Boolean.TRUE.equals(((PersistentSlave) slave).getPreemptible())) {
+                                preemption.onLaunched(slave.getLabelString());
+                            }
+                            return;
+                        }
+                    } catch (InterruptedException | ExecutionException ex) {
+                        // reported to the circuit breaker through the future of the connection
+                    }
+                    ledger.remove(slaveName);
+                    try {
+                        Jenkins.getInstance().removeNode(slave);
+                    } catch (IOException ioex) {
+                        LOGGER.log(Level.WARNING, "failed to remove the slave " + slaveName, ioex);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+
+    /**
+     * Returns the specs ordered by the preference of the zones of their instances,
+     * putting the instances in the warm pool first within each zone.
+     */
+    private List<PersistentSlaveSpec> rankByZone(List<PersistentSlaveSpec> specs) {
+        final WarmPool warmPool = getWarmPool();
+        final Map<String, Integer> ranks = new HashMap<String, Integer>();
+        List<String> ranked = getPlacementEngine().rank(getZones());
+        for (int i = 0; i < ranked.size(); ++ i) {
+            ranks.put(ranked.get(i), i);
+        }
+        List<PersistentSlaveSpec> result = new ArrayList<PersistentSlaveSpec>(specs);
+        Collections.sort(result, new Comparator<PersistentSlaveSpec>() {
+            @Override public int compare(PersistentSlaveSpec x, PersistentSlaveSpec y) {
+                int byZone = Integer.compare(rankOf(x), rankOf(y));
+                if (byZone != 0) {
+                    return byZone;
+                }
+                return Boolean.compare(! warmPool.isPooled(x.getInstanceName()),
+                        ! warmPool.isPooled(y.getInstanceName()));
+            }
+
+            private int rankOf(PersistentSlaveSpec spec) {
+                Integer rank = ranks.get(zoneOf(spec.getInstanceName()));
+                return rank == null ? Integer.MAX_VALUE : rank;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Adds ephemeral slave nodes for the label until they cover the excess workload,
+     * or the specs reach their instance caps.
+     */
+    private List<EphemeralSlave> addEphemeralSlaves(Label label, int excessWorkload) {
+        List<EphemeralSlave> slaves = new ArrayList<EphemeralSlave>();
+        for (EphemeralSlaveSpec spec : getEphemeralSlaveSpecs()) {
+            if (excessWorkload <= 0) {
+                break;
+            }
+            if (! spec.matches(label)) {
+                continue;
+            }
+
+            int room = spec.getInstanceCapNumber() - spec.countSlaves(this);
+            while (excessWorkload > 0 && room > 0) {
+                String zone = getPlacementEngine().choose(getZones());
+                if (zone == null) {
+                    LOGGER.info("provision: all the zones are in the stockout cooldown");
+                    return slaves;
+                }
+                EphemeralSlave slave = spec.provision(this, zone);
+                if (slave == null) {
+                    break;
+                }
+                excessWorkload -= executorsOf(slave);
+                -- room;
+                slaves.add(slave);
+            }
+        }
+        return slaves;
+    }
+
+    /**
+     * Adds slave nodes for the label until they cover the excess workload.
+     */
+    private List<PersistentSlave> addSlaves(Label label, int excessWorkload) {
+        List<PersistentSlave> slaves = new ArrayList<PersistentSlave>();
+        for (PersistentSlaveSpec spec : rankByZone(getSpecIndex().getCandidates(label))) {
+            if (excessWorkload <= 0) {
+                break;
+            }
+
+            PersistentSlave slave = spec.provision(this, label);
+            if (slave != null) {
+                excessWorkload -= executorsOf(slave);
+                slaves.add(slave);
+            }
+        }
+        return slaves;
+    }
+
+    /**
+     * Returns the retention strategy of slaves, which uses the timeout minutes of this cloud.
+     */
+    public RetentionStrategy getRetentionStrategy() {
+        return getRetentionStrategy(null);
+    }
+
+    /**
+     * Returns the retention strategy of slaves with the idle minutes;
+     * or with the timeout minutes of this cloud if the idle minutes are null or empty.
+     */
+    RetentionStrategy getRetentionStrategy(String idleMinutes) {
+        int minutes = idleMinutes == null || idleMinutes.trim().isEmpty()
+            ? getTimeoutMinutesNumber()
+            : Integer.parseInt(idleMinutes.trim());
+        return new IdleRetentionStrategy(minutes);
+    }
+
+    /**
+     * Returns the parsed timeout minutes of slaves.
+     */
+    private synchronized int getTimeoutMinutesNumber() {
+        if (this.timeoutMinutesNumber == null) {
+            this.timeoutMinutesNumber = Integer.parseInt(this.timeoutMinutes.trim());
+        }
+        return this.timeoutMinutesNumber;
+    }
+
+    /**
+     * Terminates the slaves idle longer than their idle minutes in batch requests,
+     * keeping the minimum # of idle slaves per label.
+     *
+     * The slaves are collected and removed under the queue lock,
+     * so that no task is assigned to them meanwhile.
+     */
+    private void scaleDown() {
+        final List<Node> removed = new ArrayList<Node>();
+        Queue.withLock(new Runnable() {
+            @Override public void run() {
+                for (Node node : collectIdleSlaves()) {
+                    try {
+                        Jenkins.getInstance().removeNode(node);
+                        removed.add(node);
+                    } catch (IOException ioex) {
+                        LOGGER.log(Level.WARNING, "failed to remove the idle slave " + node.getNodeName(), ioex);
+                    }
+                }
+            }
+        });
+        if (! removed.isEmpty()) {
+            LOGGER.info(String.format("scale down %d idle slaves of cloud %s", removed.size(), this.name));
+            terminateAll(removed);
+        }
+    }
+
+    /**
+     * Returns the slaves idle longer than their idle minutes,
+     * except the online ones kept for the minimum # of idle slaves per label.
+     *
+     * Offline slaves whose agents are going to connect are skipped;
+     * they are given up by the connect timeout if they never connect.
+     */
+    private List<Node> collectIdleSlaves() {
+        long now = System.currentTimeMillis();
+        List<Node> expired = new ArrayList<Node>();
+        List<Node> kept = new ArrayList<Node>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            Computer computer = node.toComputer();
+            if (! isSlaveOf(node) || computer == null || ! computer.isIdle()
+                    || computer.isOffline() && isConnecting(node.getNodeName())) {
+                continue;
+            }
+            RetentionStrategy<?> strategy = computer.getRetentionStrategy();
+            if (strategy instanceof IdleRetentionStrategy
+                    && ((IdleRetentionStrategy) strategy).isIdleTooLong(computer, now)) {
+                expired.add(node);
+            } else if (computer.isOnline()) {
+                kept.add(node);
+            }
+        }
+
+        for (Map.Entry<String, Integer> entry : getMinIdleSlavesMap().entrySet()) {
+            Label label = Jenkins.getInstance().getLabel(entry.getKey());
+            int shortage = entry.getValue();
+            for (Node node : kept) {
+                if (label.contains(node)) {
+                    -- shortage;
+                }
+            }
+            for (Iterator<Node> it = expired.iterator(); it.hasNext() && shortage > 0; ) {
+                Node node = it.next();
+                Computer computer = node.toComputer();
+                if (label.contains(node) && computer != null && computer.isOnline()) {
+                    it.remove();
+                    kept.add(node);
+                    -- shortage;
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Returns true if the slave is launching or waiting for the connection of its agent.
+     */
+    private boolean isConnecting(String name) {
+        return getConnectWaiter().isWaiting(name) || getCapacityLedger().contains(name);
+    }
+
+    /**
+     * Stops the instances of the removed persistent slaves, and deletes the instances of the removed ephemeral slaves,
+     * in batch requests per zone on the executor of this cloud.
+     */
+    private void terminateAll(List<Node> nodes) {
+        final Map<String, List<String>> stopsByZone = new LinkedHashMap<String, List<String>>();
+        final Map<String, List<String>> deletesByZone = new LinkedHashMap<String, List<String>>();
+        for (Node node : nodes) {
+            String instanceName = node.getNodeName();
+            getDemandPredictor().onTerminated(instanceName);
+            getCapacityLedger().remove(instanceName);
+            if (node instanceof PersistentSlave) {
+                String zone = ((PersistentSlave) node).getZone();
+                addByZone(stopsByZone, zone == null ? zoneOf(instanceName) : zone, instanceName);
+            } else {
+                addByZone(deletesByZone, ((EphemeralSlave) node).getZone(), instanceName);
+            }
+        }
+
+        for (final Map.Entry<String, List<String>> entry : stopsByZone.entrySet()) {
+            getExecutor().execute(new Runnable() {
+                @Override public void run() {
+                    stopAll(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+        for (final Map.Entry<String, List<String>> entry : deletesByZone.entrySet()) {
+            getExecutor().execute(new Runnable() {
+                @Override public void run() {
+                    deleteAll(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds the instance name to the list of the zone.
+     */
+    private static void addByZone(Map<String, List<String>> namesByZone, String zone, String instanceName) {
+        List<String> names = namesByZone.get(zone);
+        if (names == null) {
+            names = new ArrayList<String>();
+            namesByZone.put(zone, names);
+        }
+        names.add(instanceName);
+    }
+
+    /**
+     * Stops or suspends the instances in the zone in batch requests, and watches the operations.
+     *
+     * The instances are not provisioned until the stops are confirmed.
+     */
+    void stopAll(String zone, List<String> instanceNames) {
+        final boolean suspend = this.suspendOnTerminate;
+        final PendingStops stops = getPendingStops();
+        for (String instanceName : instanceNames) {
+            stops.begin(instanceName);
+            getInventory().putState(instanceName, suspend ? "SUSPENDING" : "STOPPING");
+        }
+
+        try {
+            final ComputeClient client = getComputeClient(zone);
+            Batches batches = new Batches(client, getLatencies());
+            for (final String instanceName : instanceNames) {
+                JsonBatchCallback<Operation> callback = new JsonBatchCallback<Operation>() {
+                    @Override public void onSuccess(Operation op, HttpHeaders headers) {
+                        watchStop(client, instanceName, op, suspend);
+                    }
+
+                    @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                        LOGGER.warning("failed to stop the instance " + instanceName + ": " + error.getMessage());
+                        stops.finish(instanceName);
+                    }
+                };
+                if (suspend) {
+                    batches.queue(GceInstance.buildActionRequest(client, instanceName, "suspend"),
+                            Operation.class, callback);
+                } else {
+                    batches.queue(client.getCompute().instances()
+                            .stop(client.getProject(), client.getZone(), instanceName), callback);
+                }
+            }
+            batches.execute("stop");
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, "failed to stop the instances " + instanceNames, ex);
+            for (String instanceName : instanceNames) {
+                stops.finish(instanceName);
+            }
+        }
+    }
+
+    /**
+     * Deletes the instances in the zone in batch requests, and watches the operations.
+     */
+    void deleteAll(String zone, List<String> instanceNames) {
+        try {
+            final ComputeClient client = getComputeClient(zone);
+            Batches batches = new Batches(client, getLatencies());
+            for (final String instanceName : instanceNames) {
+                batches.queue(client.getCompute().instances()
+                        .delete(client.getProject(), client.getZone(), instanceName),
+                        new JsonBatchCallback<Operation>() {
+                            @Override public void onSuccess(Operation op, HttpHeaders headers) {
+                                watchDelete(client, instanceName, op);
+                            }
+
+                            @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                                LOGGER.warning("failed to delete the instance " + instanceName + ": " + error.getMessage());
+                            }
+                        });
+            }
+            batches.execute("delete");
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, "failed to delete the instances " + instanceNames, ex);
+        }
+    }
+
+    /**
+     * Returns the cache of the Compute API client.
+     */
+    private synchronized ComputeClientCache getComputeClientCache() {
+        if (this.computeClientCache == null) {
+            this.computeClientCache = new ComputeClientCache();
+        }
+        return this.computeClientCache;
+    }
+
+    /**
+     * Discards the cached Compute API client, because the config is changed.
+     */
+    private synchronized void invalidateComputeClient() {
+        if (this.computeClientCache != null) {
+            this.computeClientCache.invalidate();
+        }
+    }
+
+    /**
+     * Returns the Compute API client of the home zone.
+     */
+    ComputeClient getComputeClient() throws IOException, GeneralSecurityException {
+        return getComputeClientCache().get(
+                this.project, getZones().get(0), this.credentialsFilePath, getApiThrottle(), getApiMetrics());
+    }
+
+    /**
+     * Returns the Compute API client of the zone; or of the home zone if the zone is null.
+     */
+    ComputeClient getComputeClient(String zone) throws IOException, GeneralSecurityException {
+        ComputeClient client = getComputeClient();
+        return zone == null ? client : client.withZone(zone);
+    }
+
+    /**
+     * Returns the Compute API clients of all the zones.
+     */
+    List<ComputeClient> getComputeClients() throws IOException, GeneralSecurityException {
+        List<ComputeClient> clients = new ArrayList<ComputeClient>();
+        for (String z : getZones()) {
+            clients.add(getComputeClient(z));
+        }
+        return clients;
+    }
+
+    /**
+     * Returns # of lookups of the Compute API client satisfied by the cache.
+     */
+    public long getComputeClientHitCount() {
+        return getComputeClientCache().getHitCount();
+    }
+
+    /**
+     * Returns # of lookups of the Compute API client which made a new client.
+     */
+    public long getComputeClientMissCount() {
+        return getComputeClientCache().getMissCount();
+    }
+
+    /**
+     * Returns the recorder of latencies of operations and launches.
+     */
+    LatencyRecorder getLatencies() {
+        return getRuntime().getLatencies();
+    }
+
+    /**
+     * Returns the tracker of zone operations.
+     */
+    OperationTracker getOperationTracker() {
+        return getRuntime().getOperationTracker();
+    }
+
+    /**
+     * Returns the latency stats of provisioning phases, keyed by such as "operation.{operation type}",
+     * "batch.{phase}", "launch.{kind}" and "phase.connect".
+     */
+    public Map<String, LatencyRecorder.Stats> getLatencyStats() {
+        return getLatencies().snapshot();
+    }
+
+    /**
+     * Makes a GceInstance object to manipulate the instance in the zone.
+     */
+    private GceInstance newGceInstance(String instanceName, String zone)
+            throws IOException, GeneralSecurityException {
+        return new GceInstance(getComputeClient(zone), getOperationTracker(), getMetadataUpdater(), instanceName);
+    }
+
+    /**
+     * Returns the watcher of in-flight zone operations.
+     */
+    OperationWatcher getOperationWatcher() {
+        return getRuntime().getOperationWatcher();
+    }
+
+    /**
+     * Sets up and launches the instances in batch requests.
+     *
+     * The futures are completed by the operation watcher,
+     * so no thread is parked while the operations are in flight.
+     * A future fails with a LaunchFailedException if the instance cannot be set up or started.
+     */
+    List<ListenableFuture<Node>> launchAll(List<PersistentSlave> slaves) {
+        Map<String, List<PersistentSlave>> slavesByZone = new LinkedHashMap<String, List<PersistentSlave>>();
+        for (PersistentSlave slave : slaves) {
+            String zone = slave.getZone() == null ? getZones().get(0) : slave.getZone();
+            List<PersistentSlave> zoneSlaves = slavesByZone.get(zone);
+            if (zoneSlaves == null) {
+                zoneSlaves = new ArrayList<PersistentSlave>();
+                slavesByZone.put(zone, zoneSlaves);
+            }
+            zoneSlaves.add(slave);
+        }
+
+        Map<PersistentSlave, ListenableFuture<Node>> futures
+            = new IdentityHashMap<PersistentSlave, ListenableFuture<Node>>();
+        for (Map.Entry<String, List<PersistentSlave>> entry : slavesByZone.entrySet()) {
+            List<PersistentSlave> zoneSlaves = entry.getValue();
+            List<ListenableFuture<Node>> zoneFutures;
+            try {
+                BatchLauncher launcher = new BatchLauncher(
+                        getComputeClient(entry.getKey()), getOperationWatcher(), getLatencies(),
+                        getExecutor(), getWarmPool(), getPlacementEngine(), getInventory(), getMetadataUpdater(),
+                        getPreemptionTracker());
+                zoneFutures = launcher.launch(zoneSlaves);
+            } catch (IOException | GeneralSecurityException ex) {
+                zoneFutures = failedFutures(zoneSlaves.size(), ex);
+            }
+            for (int i = 0; i < zoneSlaves.size(); ++ i) {
+                futures.put(zoneSlaves.get(i), zoneFutures.get(i));
+            }
+        }
+
+        List<ListenableFuture<Node>> result = new ArrayList<ListenableFuture<Node>>();
+        for (PersistentSlave slave : slaves) {
+            result.add(futures.get(slave));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the list of futures failed by the exception.
+     */
+    private static List<ListenableFuture<Node>> failedFutures(int size, Exception ex) {
+        List<ListenableFuture<Node>> result = new ArrayList<ListenableFuture<Node>>();
+        for (int i = 0; i < size; ++ i) {
+            result.add(Futures.<Node>immediateFailedFuture(ex));
+        }
+        return result;
+    }
+
+    /**
+     * Creates the instances of the ephemeral slaves in batch requests.
+     *
+     * A future fails with a LaunchFailedException if the instance cannot be created.
+     */
+    List<ListenableFuture<Node>> createAll(List<EphemeralSlave> slaves) {
+        Map<String, List<EphemeralSlave>> slavesByZone = new LinkedHashMap<String, List<EphemeralSlave>>();
+        for (EphemeralSlave slave : slaves) {
+            List<EphemeralSlave> zoneSlaves = slavesByZone.get(slave.getZone());
+            if (zoneSlaves == null) {
+                zoneSlaves = new ArrayList<EphemeralSlave>();
+                slavesByZone.put(slave.getZone(), zoneSlaves);
+            }
+            zoneSlaves.add(slave);
+        }
+
+        Map<EphemeralSlave, ListenableFuture<Node>> futures
+            = new IdentityHashMap<EphemeralSlave, ListenableFuture<Node>>();
+        for (Map.Entry<String, List<EphemeralSlave>> entry : slavesByZone.entrySet()) {
+            List<EphemeralSlave> zoneSlaves = entry.getValue();
+            List<ListenableFuture<Node>> zoneFutures;
+            try {
+                EphemeralLauncher launcher = new EphemeralLauncher(
+                        this, getComputeClient(entry.getKey()), getOperationWatcher(), getLatencies(),
+                        getExecutor(), getPlacementEngine());
+                zoneFutures = launcher.launch(zoneSlaves);
+            } catch (IOException | GeneralSecurityException ex) {
+                zoneFutures = failedFutures(zoneSlaves.size(), ex);
+            }
+            for (int i = 0; i < zoneSlaves.size(); ++ i) {
+                futures.put(zoneSlaves.get(i), zoneFutures.get(i));
+            }
+        }
+
+        List<ListenableFuture<Node>> result = new ArrayList<ListenableFuture<Node>>();
+        for (EphemeralSlave slave : slaves) {
+            result.add(futures.get(slave));
+        }
+        return result;
+    }
+
+    /**
+     * Sets up and launches the instance.
+     */
+    public ListenableFuture<Node> setupAndLaunch(PersistentSlave slave) {
+        return launchAll(Collections.singletonList(slave)).get(0);
+    }
+
+    /**
+     * Stops or suspends the instance in the zone; or in the home zone if the zone is null.
+     *
+     * The operation is issued on the executor of this cloud and watched,
+     * so the caller does not wait for the stop.
+     * The spec of the instance is not provisioned until the stop is confirmed.
+     */
+    public void terminate(final String instanceName, final String zone) {
+        getDemandPredictor().onTerminated(instanceName);
+        getCapacityLedger().remove(instanceName);
+        final boolean suspend = this.suspendOnTerminate;
+        final PendingStops stops = getPendingStops();
+        stops.begin(instanceName);
+        getInventory().putState(instanceName, suspend ? "SUSPENDING" : "STOPPING");
+        getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    GceInstance gi = newGceInstance(instanceName, zone);
+                    Operation op = suspend ? gi.beginSuspend() : gi.beginStop();
+                    watchStop(gi.getClient(), instanceName, op, suspend);
+                } catch (IOException | GeneralSecurityException ex) {
+                    LOGGER.log(Level.WARNING, "failed to stop the instance " + instanceName, ex);
+                    stops.finish(instanceName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Watches the operation to stop or suspend the instance,
+     * and finishes the pending stop when the operation is done.
+     */
+    void watchStop(ComputeClient client, final String instanceName, Operation op, final boolean suspend) {
+        final PendingStops stops = getPendingStops();
+        final InstanceInventory inv = getInventory();
+        final ListenableFuture<Operation> done = getOperationWatcher().watch(client, op);
+        done.addListener(new Runnable() {
+            @Override public void run() {
+                try {
+                    if (OperationTracker.isSuccessful(done.get())) {
+                        inv.putState(instanceName, suspend ? "SUSPENDED" : "TERMINATED");
+                    } else {
+                        LOGGER.warning("failed to stop the instance " + instanceName);
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    LOGGER.log(Level.WARNING, "failed to stop the instance " + instanceName, ex);
+                } finally {
+                    stops.finish(instanceName);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Deletes the instance of an ephemeral slave in the zone.
+     *
+     * The delete operation is issued on the executor of this cloud and watched,
+     * so the caller does not wait for the deletion.
+     */
+    public void deleteInstance(final String instanceName, final String zone) {
+        getDemandPredictor().onTerminated(instanceName);
+        getCapacityLedger().remove(instanceName);
+        getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    GceInstance gi = newGceInstance(instanceName, zone);
+                    watchDelete(gi.getClient(), instanceName, gi.beginDelete());
+                } catch (IOException | GeneralSecurityException ex) {
+                    LOGGER.log(Level.WARNING, "failed to delete the instance " + instanceName, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Watches the operation to delete the instance, logging a failure.
+     */
+    private void watchDelete(ComputeClient client, final String instanceName, Operation op) {
+        final ListenableFuture<Operation> done = getOperationWatcher().watch(client, op);
+        done.addListener(new Runnable() {
+            @Override public void run() {
+                try {
+                    if (! OperationTracker.isSuccessful(done.get())) {
+                        LOGGER.warning("failed to delete the instance " + instanceName);
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    LOGGER.log(Level.WARNING, "failed to delete the instance " + instanceName, ex);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<Cloud> {
+
+        @Override
+        public String getDisplayName() {
+            return "Google Compute Engine";
+        }
+
+        /**
+         * Validates name property.
+         */
+        public FormValidation doCheckName(@QueryParameter String name) {
+            return name.trim().isEmpty()
+                ? FormValidation.error("Cloud name must be filled")
+                : FormValidation.ok();
+        }
+
+        /**
+         * Validates project property.
+         */
+        public FormValidation doCheckProject(@QueryParameter String project) {
+            return project.trim().isEmpty()
+                ? FormValidation.error("Project ID must be filled")
+                : FormValidation.ok();
+        }
+
+        /**
+         * Vaidates zone property.
+         */
+        public FormValidation doCheckZone(@QueryParameter String zone) {
+            return ZONE_SEPARATOR.matcher(zone).replaceAll("").isEmpty()
+                ? FormValidation.error("Zone ID must be filled")
+                : FormValidation.ok();
+        }
+
+        /** Pattern of decimal numbers. */
+        private static final Pattern DECIMAL_PATTERN = Pattern.compile("[0-9]{1,5}");
+
+        /**
+         * Validates the timeout minutes of slaves.
+         */
+        public FormValidation doCheckTimeoutMinutes(@QueryParameter String timeoutMinutes) {
+            return DECIMAL_PATTERN.matcher(timeoutMinutes).matches()
+                ? FormValidation.ok()
+                : FormValidation.error("Slave timeout minutes must be 0-99999");
+        }
+
+        /** Pattern of an entry of minimum idle slaves. */
+        private static final Pattern MIN_IDLE_ENTRY_PATTERN = Pattern.compile("\\s*[^=\\s][^=]*=\\s*[0-9]{1,5}\\s*");
+
+        /**
+         * Validates the minimum # of idle slaves per label.
+         */
+        public FormValidation doCheckMinIdleSlaves(@QueryParameter String minIdleSlaves) {
+            for (String entry : MIN_IDLE_SEPARATOR.split(minIdleSlaves)) {
+                if (! entry.trim().isEmpty() && ! MIN_IDLE_ENTRY_PATTERN.matcher(entry).matches()) {
+                    return FormValidation.error("Each entry must be like \"label=2\": " + entry.trim());
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        /**
+         * Validates the interval seconds of refreshing the instance inventory.
+         */
+        public FormValidation doCheckInventoryRefreshSeconds(@QueryParameter String inventoryRefreshSeconds) {
+            return inventoryRefreshSeconds.trim().isEmpty()
+                    || DECIMAL_PATTERN.matcher(inventoryRefreshSeconds.trim()).matches()
+                ? FormValidation.ok()
+                : FormValidation.error("Inventory refresh seconds must be 0-99999");
+        }
+
+        /**
+         * Validates the seconds to wait for the agent of a started instance to connect.
+         */
+        public FormValidation doCheckConnectTimeoutSeconds(@QueryParameter String connectTimeoutSeconds) {
+            return connectTimeoutSeconds.trim().isEmpty()
+                    || DECIMAL_PATTERN.matcher(connectTimeoutSeconds.trim()).matches()
+                ? FormValidation.ok()
+                : FormValidation.error("Connect timeout seconds must be 0-99999");
+        }
+
+        /**
+         * Validates the maximum # of concurrent starts and stops.
+         */
+        public FormValidation doCheckMaxInFlightOperations(@QueryParameter String maxInFlightOperations) {
+            String max = maxInFlightOperations.trim();
+            return max.isEmpty() || (DECIMAL_PATTERN.matcher(max).matches() && Integer.parseInt(max) > 0)
+                ? FormValidation.ok()
+                : FormValidation.error("Max in-flight operations must be 1-99999");
+        }
+
+        /**
+         * Validates the size of the warm pool.
+         */
+        public FormValidation doCheckWarmPoolSize(@QueryParameter String warmPoolSize) {
+            return warmPoolSize.trim().isEmpty() || DECIMAL_PATTERN.matcher(warmPoolSize.trim()).matches()
+                ? FormValidation.ok()
+                : FormValidation.error("Warm pool size must be 0-99999");
+        }
+
+        /**
+         * Validates the minutes to skip a zone after a stockout.
+         */
+        public FormValidation doCheckStockoutCooldownMinutes(@QueryParameter String stockoutCooldownMinutes) {
+            return stockoutCooldownMinutes.trim().isEmpty()
+                    || DECIMAL_PATTERN.matcher(stockoutCooldownMinutes.trim()).matches()
+                ? FormValidation.ok()
+                : FormValidation.error("Stockout cooldown minutes must be 0-99999");
+        }
+
+        /** Pattern of rates. */
+        private static final Pattern RATE_PATTERN = Pattern.compile("[0-9]{1,5}(\\.[0-9]+)?");
+
+        /**
+         * Validates the maximum # of read requests per second.
+         */
+        public FormValidation doCheckReadRequestsPerSecond(@QueryParameter String readRequestsPerSecond) {
+            return checkRate(readRequestsPerSecond);
+        }
+
+        /**
+         * Validates the maximum # of write requests per second.
+         */
+        public FormValidation doCheckWriteRequestsPerSecond(@QueryParameter String writeRequestsPerSecond) {
+            return checkRate(writeRequestsPerSecond);
+        }
+
+        /**
+         * Validates a rate of requests.
+         */
+        private FormValidation checkRate(String rate) {
+            return rate.trim().isEmpty() || RATE_PATTERN.matcher(rate.trim()).matches()
+                ? FormValidation.ok()
+                : FormValidation.error("Requests per second must be a non-negative number");
         }
 
     }
@@ -0,0 +1,71 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import jenkins.model.Jenkins;
+
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
+
+/**
+ * Computer of a slave made by a GoogleCloud, which keeps the times of adding and connecting the slave.
+ *
+ * @param <S> the type of the slave.
+ */
+public abstract class GoogleCloudComputer<S extends AbstractCloudSlave> extends AbstractCloudComputer<S> {
+
+    /** When the slave was added. */
+    private final long createdMillis = System.currentTimeMillis();
+
+    /** When the agent connected first; or -1 if it has not connected yet; guarded by this. */
+    private long firstConnectedMillis = -1;
+
+    protected GoogleCloudComputer(S slave) {
+        super(slave);
+    }
+
+    /**
+     * Returns the name of the cloud which makes the slave.
+     */
+    abstract String getCloudName(S slave);
+
+    /**
+     * Returns the cloud which makes the slave; or null if the cloud is removed.
+     */
+    public GoogleCloud getCloud() {
+        S slave = getNode();
+        if (slave == null) {
+            return null;
+        }
+        Cloud cloud = Jenkins.getInstance().getCloud(getCloudName(slave));
+        return cloud instanceof GoogleCloud ? (GoogleCloud) cloud : null;
+    }
+
+    /**
+     * Returns when the slave was added.
+     */
+    long getCreatedMillis() {
+        return this.createdMillis;
+    }
+
+    /**
+     * Returns the millis from adding the slave to now, at the first call;
+     * or -1 at the subsequent calls.
+     */
+    synchronized long takeFirstConnectMillis() {
+        if (this.firstConnectedMillis >= 0) {
+            return -1;
+        }
+        this.firstConnectedMillis = System.currentTimeMillis();
+        return this.firstConnectedMillis - this.createdMillis;
+    }
+
+    /**
+     * Returns when the agent connected first; or -1 if it has not connected yet.
+     */
+    synchronized long getFirstConnectedMillis() {
+        return this.firstConnectedMillis;
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,53 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+
+/**
+ * Records the time from adding a slave to the first JNLP connection, as "phase.connect",
+ * removes the slave from the ledger of planned capacity,
+ * and completes the planned node of the slave waiting for the connection.
+ *
+ * When a preemptible slave gets offline, the preemptions in its zone are checked at once.
+ */
+@Extension
+public class GoogleCloudComputerListener extends ComputerListener {
+
+    @Override
+    public void onOnline(Computer computer, TaskListener listener) {
+        if (! (computer instanceof GoogleCloudComputer)) {
+            return;
+        }
+
+        GoogleCloudComputer<?> gcc = (GoogleCloudComputer<?>) computer;
+        long connectMillis = gcc.takeFirstConnectMillis();
+        GoogleCloud cloud = gcc.getCloud();
+        if (cloud == null) {
+            return;
+        }
+        cloud.getCapacityLedger().remove(computer.getName());
+        cloud.getConnectWaiter().onOnline(computer.getName());
+        if (connectMillis >= 0) {
+            cloud.getLatencies().record("phase.connect", connectMillis);
+        }
+    }
+
+    @Override
+    public void onOffline(Computer computer, OfflineCause cause) {
+        if (! (computer instanceof PersistentComputer) || cause instanceof PreemptionDetector.PreemptedOfflineCause) {
+            return;
+        }
+
+        PersistentSlave slave = ((PersistentComputer) computer).getNode();
+        GoogleCloud cloud = ((PersistentComputer) computer).getCloud();
+        if (slave != null && cloud != null && Boolean.TRUE.equals(slave.getPreemptible())) {
+            cloud.detectPreemption(slave.getZone());
+        }
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,54 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+/**
+ * Periodic background maintenance of all the GoogleClouds.
+ *
+ * The runtime state of the clouds removed from Jenkins is discarded.
+ */
+@Extension
+public class GoogleCloudMaintenance extends AsyncPeriodicWork {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(GoogleCloudMaintenance.class.getName());
+
+    public GoogleCloudMaintenance() {
+        super("GoogleCloud maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Set<String> names = new HashSet<String>();
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof GoogleCloud) {
+                names.add(cloud.name);
+                try {
+                    ((GoogleCloud) cloud).maintain();
+                } catch (RuntimeException rex) {
+                    LOGGER.log(Level.WARNING, "failed maintenance of cloud " + cloud.name, rex);
+                }
+            }
+        }
+        CloudRuntime.retain(names);
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,346 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import jenkins.model.Jenkins;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Exposes the metrics of all the GoogleClouds.
+ *
+ * "/gce-metrics/" returns JSON, and "/gce-metrics/prometheus" returns the Prometheus text format.
+ * Latencies are exported as histograms per provisioning phase and per Compute method.
+ */
+@Extension
+public class GoogleCloudMetricsAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Google Compute Engine metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "gce-metrics";
+    }
+
+    /**
+     * Returns the metrics in JSON.
+     */
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        JSONObject clouds = new JSONObject();
+        for (GoogleCloud cloud : googleClouds()) {
+            clouds.put(cloud.name, toJson(cloud));
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(new JSONObject().element("clouds", clouds).toString(2));
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text format.
+     */
+    public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+
+        out.println("# TYPE gce_phase_latency_seconds histogram");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, LatencyRecorder.Stats> entry : cloud.getLatencyStats().entrySet()) {
+                printHistogram(out, "gce_phase_latency_seconds",
+                        labels("cloud", cloud.name, "phase", entry.getKey()), entry.getValue());
+            }
+        }
+
+        out.println("# TYPE gce_api_call_latency_seconds histogram");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, LatencyRecorder.Stats> entry : cloud.getApiCallStats().entrySet()) {
+                printHistogram(out, "gce_api_call_latency_seconds",
+                        labels("cloud", cloud.name, "method", entry.getKey()), entry.getValue());
+            }
+        }
+
+        out.println("# TYPE gce_api_call_errors_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, Long> entry : cloud.getApiErrorCounts().entrySet()) {
+                out.println("gce_api_call_errors_total"
+                        + labels("cloud", cloud.name, "method", entry.getKey()) + " " + entry.getValue());
+            }
+        }
+
+        out.println("# TYPE gce_api_throttled_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_api_throttled_total" + labels("cloud", cloud.name) + " " + cloud.getThrottledRequestCount());
+        }
+
+        out.println("# TYPE gce_api_retried_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_api_retried_total" + labels("cloud", cloud.name) + " " + cloud.getRetriedRequestCount());
+        }
+
+        out.println("# TYPE gce_metadata_skipped_writes_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_metadata_skipped_writes_total" + labels("cloud", cloud.name)
+                    + " " + cloud.getMetadataSkippedWriteCount());
+        }
+
+        out.println("# TYPE gce_metadata_conflicts_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_metadata_conflicts_total" + labels("cloud", cloud.name) + " " + cloud.getMetadataConflictCount());
+        }
+
+        out.println("# TYPE gce_executor_queue_depth gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_executor_queue_depth" + labels("cloud", cloud.name) + " " + cloud.getExecutorQueueDepth());
+        }
+
+        out.println("# TYPE gce_executor_active gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_executor_active" + labels("cloud", cloud.name) + " " + cloud.getExecutorActiveCount());
+        }
+
+        out.println("# TYPE gce_planned_executors gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            printPerLabel(out, "gce_planned_executors", cloud, cloud.getPlannedExecutors());
+        }
+
+        out.println("# TYPE gce_launched_executors gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            printPerLabel(out, "gce_launched_executors", cloud, cloud.getLaunchedExecutors());
+        }
+
+        out.println("# TYPE gce_online_executors gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            printPerLabel(out, "gce_online_executors", cloud, cloud.getOnlineExecutors());
+        }
+
+        out.println("# TYPE gce_preemptible_launches_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, PreemptionTracker.Stats> entry : cloud.getPreemptionStats().entrySet()) {
+                out.println("gce_preemptible_launches_total" + labels("cloud", cloud.name, "label", entry.getKey())
+                        + " " + entry.getValue().getLaunches());
+            }
+        }
+
+        out.println("# TYPE gce_preemptions_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, PreemptionTracker.Stats> entry : cloud.getPreemptionStats().entrySet()) {
+                out.println("gce_preemptions_total" + labels("cloud", cloud.name, "label", entry.getKey())
+                        + " " + entry.getValue().getPreemptions());
+            }
+        }
+
+        out.println("# TYPE gce_preemptible_fallbacks_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, PreemptionTracker.Stats> entry : cloud.getPreemptionStats().entrySet()) {
+                out.println("gce_preemptible_fallbacks_total" + labels("cloud", cloud.name, "label", entry.getKey())
+                        + " " + entry.getValue().getFallbacks());
+            }
+        }
+
+        out.println("# TYPE gce_preemption_lost_build_minutes_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, PreemptionTracker.Stats> entry : cloud.getPreemptionStats().entrySet()) {
+                out.println("gce_preemption_lost_build_minutes_total"
+                        + labels("cloud", cloud.name, "label", entry.getKey())
+                        + " " + entry.getValue().getLostBuildMinutes());
+            }
+        }
+
+        out.println("# TYPE gce_cache_launches_total counter");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, DiskCache.Stats> entry : cloud.getDiskCacheStats().entrySet()) {
+                out.println("gce_cache_launches_total" + labels("cloud", cloud.name, "label", entry.getKey())
+                        + " " + entry.getValue().getCachedLaunches());
+            }
+        }
+
+        out.println("# TYPE gce_cache_age_seconds gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, DiskCache.Stats> entry : cloud.getDiskCacheStats().entrySet()) {
+                out.println("gce_cache_age_seconds" + labels("cloud", cloud.name, "label", entry.getKey())
+                        + " " + (entry.getValue().getLastCacheAgeMillis() / 1000.0));
+            }
+        }
+
+        out.println("# TYPE gce_cache_warmup_saved_seconds gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            for (Map.Entry<String, DiskCache.Stats> entry : cloud.getDiskCacheStats().entrySet()) {
+                out.println("gce_cache_warmup_saved_seconds" + labels("cloud", cloud.name, "label", entry.getKey())
+                        + " " + (entry.getValue().getWarmUpSavedMillis() / 1000.0));
+            }
+        }
+
+        out.println("# TYPE gce_connect_waiting gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_connect_waiting" + labels("cloud", cloud.name) + " " + cloud.getConnectWaitingCount());
+        }
+
+        out.println("# TYPE gce_circuit_breaker_tripped gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_circuit_breaker_tripped" + labels("cloud", cloud.name)
+                    + " " + (cloud.isCircuitBreakerTripped() ? 1 : 0));
+        }
+
+        out.println("# TYPE gce_pending_stops gauge");
+        for (GoogleCloud cloud : googleClouds()) {
+            out.println("gce_pending_stops" + labels("cloud", cloud.name) + " " + cloud.getPendingStopCount());
+        }
+    }
+
+    /**
+     * Prints the samples of the cloud per label.
+     */
+    private static void printPerLabel(PrintWriter out, String name, GoogleCloud cloud, Map<String, ?> values) {
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            out.println(name + labels("cloud", cloud.name, "label", entry.getKey()) + " " + entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the GoogleClouds.
+     */
+    private static Iterable<GoogleCloud> googleClouds() {
+        return Jenkins.getInstance().clouds.getAll(GoogleCloud.class);
+    }
+
+    /**
+     * Returns the metrics of the cloud in JSON.
+     */
+    private static JSONObject toJson(GoogleCloud cloud) {
+        JSONObject phases = new JSONObject();
+        for (Map.Entry<String, LatencyRecorder.Stats> entry : cloud.getLatencyStats().entrySet()) {
+            phases.put(entry.getKey(), toJson(entry.getValue()));
+        }
+
+        Map<String, Long> errorCounts = cloud.getApiErrorCounts();
+        JSONObject apiCalls = new JSONObject();
+        for (Map.Entry<String, LatencyRecorder.Stats> entry : cloud.getApiCallStats().entrySet()) {
+            Long errors = errorCounts.get(entry.getKey());
+            apiCalls.put(entry.getKey(), toJson(entry.getValue()).element("errors", errors == null ? 0 : errors));
+        }
+
+        JSONObject zones = new JSONObject();
+        for (Map.Entry<String, PlacementEngine.ZoneStats> entry : cloud.getPlacementEngine().snapshot().entrySet()) {
+            PlacementEngine.ZoneStats stats = entry.getValue();
+            zones.put(entry.getKey(), new JSONObject()
+                    .element("successRate", stats.getSuccessRate())
+                    .element("latencyMillis", stats.getLatencyMillis())
+                    .element("coolingDown", stats.isCoolingDown()));
+        }
+
+        Map<String, Integer> planned = cloud.getPlannedExecutors();
+        Map<String, Integer> launched = cloud.getLaunchedExecutors();
+        JSONObject capacity = new JSONObject();
+        for (Map.Entry<String, Integer> entry : cloud.getOnlineExecutors().entrySet()) {
+            String label = entry.getKey();
+            capacity.put(label, new JSONObject()
+                    .element("planned", planned.containsKey(label) ? planned.get(label) : 0)
+                    .element("launched", launched.containsKey(label) ? launched.get(label) : 0)
+                    .element("online", entry.getValue()));
+        }
+
+        JSONObject preemption = new JSONObject();
+        for (Map.Entry<String, PreemptionTracker.Stats> entry : cloud.getPreemptionStats().entrySet()) {
+            PreemptionTracker.Stats stats = entry.getValue();
+            preemption.put(entry.getKey(), new JSONObject()
+                    .element("launches", stats.getLaunches())
+                    .element("preemptions", stats.getPreemptions())
+                    .element("preemptionRate", stats.getPreemptionRate())
+                    .element("fallbacks", stats.getFallbacks())
+                    .element("lostBuildMinutes", stats.getLostBuildMinutes()));
+        }
+
+        JSONObject diskCache = new JSONObject();
+        for (Map.Entry<String, DiskCache.Stats> entry : cloud.getDiskCacheStats().entrySet()) {
+            DiskCache.Stats stats = entry.getValue();
+            diskCache.put(entry.getKey(), new JSONObject()
+                    .element("cachedLaunches", stats.getCachedLaunches())
+                    .element("lastCacheAgeMillis", stats.getLastCacheAgeMillis())
+                    .element("meanCacheAgeMillis", stats.getMeanCacheAgeMillis())
+                    .element("warmUpSavedMillis", stats.getWarmUpSavedMillis()));
+        }
+
+        return new JSONObject()
+            .element("phases", phases)
+            .element("apiCalls", apiCalls)
+            .element("zones", zones)
+            .element("capacity", capacity)
+            .element("preemption", preemption)
+            .element("diskCache", diskCache)
+            .element("throttledRequests", cloud.getThrottledRequestCount())
+            .element("retriedRequests", cloud.getRetriedRequestCount())
+            .element("metadataSkippedWrites", cloud.getMetadataSkippedWriteCount())
+            .element("metadataConflicts", cloud.getMetadataConflictCount())
+            .element("executorQueueDepth", cloud.getExecutorQueueDepth())
+            .element("executorActive", cloud.getExecutorActiveCount())
+            .element("connectWaiting", cloud.getConnectWaitingCount())
+            .element("circuitBreaker", cloud.getCircuitBreakerState())
+            .element("pendingStops", cloud.getPendingStopCount());
+    }
+
+    /**
+     * Returns the latency stats in JSON.
+     */
+    private static JSONObject toJson(LatencyRecorder.Stats stats) {
+        return new JSONObject()
+            .element("count", stats.getCount())
+            .element("meanMillis", stats.getMeanMillis())
+            .element("p50Millis", stats.getPercentileMillis(50))
+            .element("p99Millis", stats.getPercentileMillis(99))
+            .element("maxMillis", stats.getMaxMillis());
+    }
+
+    /**
+     * Prints the latency stats as a Prometheus histogram in seconds.
+     */
+    private static void printHistogram(PrintWriter out, String name, String labels, LatencyRecorder.Stats stats) {
+        String prefix = labels.substring(0, labels.length() - 1) + ",le=\"";
+        long[] bounds = LatencyRecorder.Stats.getBucketBoundsMillis();
+        long[] counts = stats.getBucketCounts();
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; ++ i) {
+            cumulative += counts[i];
+            out.println(name + "_bucket" + prefix + (bounds[i] / 1000.0) + "\"} " + cumulative);
+        }
+        out.println(name + "_bucket" + prefix + "+Inf\"} " + stats.getCount());
+        out.println(name + "_sum" + labels + " " + (stats.getTotalMillis() / 1000.0));
+        out.println(name + "_count" + labels + " " + stats.getCount());
+    }
+
+    /**
+     * Returns the Prometheus label set of the names and the values.
+     */
+    private static String labels(String... namesAndValues) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String value = namesAndValues[i + 1]
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n");
+            sb.append(namesAndValues[i]).append("=\"").append(value).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,115 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.RetentionStrategy;
+
+/**
+ * Retention strategy of the slaves of GoogleClouds, which keeps an idle slave for the idle minutes.
+ *
+ * The strategy does not terminate idle slaves one by one.
+ * The cloud collects them in the periodic maintenance, and terminates them in batch requests,
+ * keeping the minimum # of idle slaves per label.
+ * If the cloud of the slave is removed, the strategy removes the idle slave by itself,
+ * but cannot terminate its instance without the cloud, so the instance is logged to be deleted by hand.
+ *
+ * The descriptor is not registered as an extension,
+ * so that the strategy is not offered as the availability of other slaves.
+ */
+public class IdleRetentionStrategy extends RetentionStrategy<AbstractCloudComputer> {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(IdleRetentionStrategy.class.getName());
+
+    /** The descriptor, which is not registered. */
+    private static final DescriptorImpl DESCRIPTOR = new DescriptorImpl();
+
+    /** The minutes to keep an idle slave. */
+    private final int idleMinutes;
+
+    public IdleRetentionStrategy(int idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    /**
+     * Returns the minutes to keep an idle slave.
+     */
+    public int getIdleMinutes() {
+        return this.idleMinutes;
+    }
+
+    /**
+     * Returns true if the computer has been idle longer than the idle minutes.
+     *
+     * The idle time of a slave of a GoogleCloud is measured from the first connection at the earliest,
+     * so a slave whose agent has never connected, such as a booting one, is not idle.
+     */
+    boolean isIdleTooLong(Computer computer, long nowMillis) {
+        if (! computer.isIdle()) {
+            return false;
+        }
+        long idleStartMillis = computer.getIdleStartMilliseconds();
+        if (computer instanceof GoogleCloudComputer) {
+            long connectedMillis = ((GoogleCloudComputer<?>) computer).getFirstConnectedMillis();
+            if (connectedMillis < 0) {
+                return false;
+            }
+            idleStartMillis = Math.max(idleStartMillis, connectedMillis);
+        }
+        return nowMillis - idleStartMillis > TimeUnit.MINUTES.toMillis(this.idleMinutes);
+    }
+
+    @Override
+    public long check(AbstractCloudComputer c) {
+        if (c instanceof GoogleCloudComputer && ((GoogleCloudComputer<?>) c).getCloud() != null) {
+            return 1;
+        }
+
+        Node node = c.getNode();
+        if (node != null && isIdleTooLong(c, System.currentTimeMillis())) {
+            LOGGER.info("remove the idle slave of a removed cloud: " + node.getNodeName());
+            String zone = node instanceof PersistentSlave ? ((PersistentSlave) node).getZone()
+                : node instanceof EphemeralSlave ? ((EphemeralSlave) node).getZone()
+                : null;
+            LOGGER.warning(String.format("the instance %s in the zone %s is left running; delete or stop it by hand",
+                        node.getNodeName(), zone));
+            try {
+                Jenkins.getInstance().removeNode(node);
+            } catch (IOException ioex) {
+                LOGGER.log(Level.WARNING, "failed to remove the idle slave " + node.getNodeName(), ioex);
+            }
+        }
+        return 1;
+    }
+
+    @Override
+    public void start(AbstractCloudComputer c) {
+        c.connect(false);
+    }
+
+    @Override
+    public Descriptor<RetentionStrategy<?>> getDescriptor() {
+        return DESCRIPTOR;
+    }
+
+    public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+
+        @Override
+        public String getDisplayName() {
+            return "Google Compute Engine idle timeout";
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,328 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceList;
+import com.google.api.services.compute.model.Scheduling;
+
+/**
+ * In-memory inventory of the states, the zones and the scheduling of the spec instances of a cloud.
+ *
+ * The inventory is refreshed by instances().list calls per zone
+ * when it is older than the refresh interval.
+ * The names are split into chunks whose filters fit in MAX_FILTER_LENGTH,
+ * so a refresh makes a few calls per zone even for thousands of specs.
+ * Instance names are assumed to be unique across the zones;
+ * if not, the instance in the first zone wins.
+ *
+ * The instances are listed without holding the lock of the readers,
+ * and the result is swapped in as an immutable snapshot, so reads never wait for the API.
+ * States recorded while a refresh is listing are applied again to its result.
+ */
+class InstanceInventory {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(InstanceInventory.class.getName());
+
+    /** The maximum length of a name filter; longer name lists are split into chunks. */
+    static final int MAX_FILTER_LENGTH = 2000;
+
+    /** The states in which the instance cannot be started. */
+    private static final Set<String> UNSTARTABLE_STATES
+        = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("STOPPING", "SUSPENDING")));
+
+    /** The current snapshot, replaced as a whole. */
+    private volatile Snapshot snapshot = new Snapshot(
+            Collections.<String, String>emptyMap(),
+            Collections.<String, String>emptyMap(),
+            Collections.<String, Boolean>emptyMap(),
+            false,
+            System.nanoTime());
+
+    /** The lock serializing refreshes, which is never taken by readers. */
+    private final Object refreshLock = new Object();
+
+    /** Whether an asynchronous refresh is queued or running. */
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+
+    /** The states recorded during the current refresh; or null if no refresh is listing; guarded by this. */
+    private Map<String, String> stateOverrides;
+
+    /** The preemptibility recorded during the current refresh; or null if no refresh is listing; guarded by this. */
+    private Map<String, Boolean> preemptibleOverrides;
+
+    /** # of refresh calls. */
+    private volatile long refreshCount;
+
+    /**
+     * Returns true if the inventory is older than the interval, or has never been refreshed.
+     */
+    boolean isStale(long intervalMillis) {
+        Snapshot current = this.snapshot;
+        return ! current.known || (System.nanoTime() - current.refreshedNanos) / 1000000 >= intervalMillis;
+    }
+
+    /**
+     * Refreshes the inventory on the executor if it is older than the interval,
+     * unless a refresh is already queued; the caller does not wait.
+     */
+    void refreshAsync(Executor executor,
+            final List<ComputeClient> clients, final Collection<String> names, final long intervalMillis) {
+        if (! isStale(intervalMillis) || ! this.refreshQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        refreshIfStale(clients, names, intervalMillis);
+                    } finally {
+                        refreshQueued.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException rex) {
+            this.refreshQueued.set(false);
+            LOGGER.log(Level.WARNING, "cannot refresh the instance inventory", rex);
+        }
+    }
+
+    /**
+     * Refreshes the inventory if it is older than the interval.
+     *
+     * A failure of refreshing is logged, and the old states are kept.
+     */
+    void refreshIfStale(List<ComputeClient> clients, Collection<String> names, long intervalMillis) {
+        synchronized (this.refreshLock) {
+            if (! isStale(intervalMillis)) {
+                return;
+            }
+            long now = System.nanoTime();
+            synchronized (this) {
+                this.stateOverrides = new HashMap<String, String>();
+                this.preemptibleOverrides = new HashMap<String, Boolean>();
+            }
+
+            Map<String, String> newStates = new HashMap<String, String>();
+            Map<String, String> newZones = new HashMap<String, String>();
+            Map<String, Boolean> newPreemptibles = new HashMap<String, Boolean>();
+            boolean listed = false;
+            try {
+                for (ComputeClient client : clients) {
+                    for (Map.Entry<String, Instance> entry : list(client, names).entrySet()) {
+                        if (! newStates.containsKey(entry.getKey())) {
+                            Scheduling scheduling = entry.getValue().getScheduling();
+                            newStates.put(entry.getKey(), entry.getValue().getStatus());
+                            newZones.put(entry.getKey(), client.getZone());
+                            newPreemptibles.put(entry.getKey(),
+                                    scheduling != null && Boolean.TRUE.equals(scheduling.getPreemptible()));
+                        }
+                    }
+                }
+                listed = true;
+            } catch (IOException ioex) {
+                LOGGER.log(Level.WARNING, "failed to refresh the instance inventory", ioex);
+            }
+
+            synchronized (this) {
+                Snapshot current = this.snapshot;
+                if (listed) {
+                    newStates.putAll(this.stateOverrides);
+                    newPreemptibles.putAll(this.preemptibleOverrides);
+                    this.snapshot = new Snapshot(Collections.unmodifiableMap(newStates),
+                            Collections.unmodifiableMap(newZones), Collections.unmodifiableMap(newPreemptibles),
+                            true, now);
+                    ++ this.refreshCount;
+                } else {
+                    this.snapshot = new Snapshot(current.states, current.zones, current.preemptibles,
+                            current.known, now);
+                }
+                this.stateOverrides = null;
+                this.preemptibleOverrides = null;
+            }
+        }
+    }
+
+    /**
+     * Lists the named instances in the zone of the client, making a list call per chunk of the names.
+     */
+    private static Map<String, Instance> list(ComputeClient client, Collection<String> names) throws IOException {
+        Set<String> nameSet = new HashSet<String>(names);
+        Map<String, Instance> result = new HashMap<String, Instance>();
+        for (String filter : nameFilters(names)) {
+            Compute.Instances.List request = client.getCompute().instances()
+                .list(client.getProject(), client.getZone())
+                .setMaxResults(500L)
+                .setFilter(filter);
+            String pageToken = null;
+            do {
+                InstanceList list = client.execute(request.setPageToken(pageToken));
+                if (list.getItems() != null) {
+                    for (Instance instance : list.getItems()) {
+                        if (nameSet.contains(instance.getName())) {
+                            result.put(instance.getName(), instance);
+                        }
+                    }
+                }
+                pageToken = list.getNextPageToken();
+            } while (pageToken != null);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the filter expressions matching the names,
+     * each of which is at most MAX_FILTER_LENGTH unless a single name exceeds it.
+     */
+    static List<String> nameFilters(Collection<String> names) {
+        String head = "name eq '(";
+        String tail = ")'";
+        List<String> filters = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder(head);
+        for (String name : names) {
+            if (sb.length() > head.length()
+                    && sb.length() + 1 + name.length() + tail.length() > MAX_FILTER_LENGTH) {
+                filters.add(sb.append(tail).toString());
+                sb = new StringBuilder(head);
+            }
+            if (sb.length() > head.length()) {
+                sb.append('|');
+            }
+            sb.append(name);
+        }
+        if (sb.length() > head.length()) {
+            filters.add(sb.append(tail).toString());
+        }
+        return filters;
+    }
+
+    /**
+     * Returns the last known state of the instance;
+     * or null if the instance is missing, or the inventory is not refreshed yet.
+     */
+    String getState(String name) {
+        return this.snapshot.states.get(name);
+    }
+
+    /**
+     * Returns the zone of the instance;
+     * or null if the instance is missing, or the inventory is not refreshed yet.
+     */
+    String getZone(String name) {
+        return this.snapshot.zones.get(name);
+    }
+
+    /**
+     * Returns true if the instance is preemptible, false if standard;
+     * or null if the instance is missing, or the inventory is not refreshed yet.
+     */
+    Boolean isPreemptible(String name) {
+        return this.snapshot.preemptibles.get(name);
+    }
+
+    /**
+     * Records whether the instance is preemptible, known without listing.
+     */
+    synchronized void putPreemptible(String name, boolean preemptible) {
+        Snapshot current = this.snapshot;
+        Map<String, Boolean> newPreemptibles = new HashMap<String, Boolean>(current.preemptibles);
+        newPreemptibles.put(name, preemptible);
+        this.snapshot = new Snapshot(current.states, current.zones, Collections.unmodifiableMap(newPreemptibles),
+                current.known, current.refreshedNanos);
+        if (this.preemptibleOverrides != null) {
+            this.preemptibleOverrides.put(name, preemptible);
+        }
+    }
+
+    /**
+     * Records the state of the instance, known without listing.
+     */
+    synchronized void putState(String name, String state) {
+        Snapshot current = this.snapshot;
+        Map<String, String> newStates = new HashMap<String, String>(current.states);
+        newStates.put(name, state);
+        this.snapshot = new Snapshot(Collections.unmodifiableMap(newStates), current.zones, current.preemptibles,
+                current.known, current.refreshedNanos);
+        if (this.stateOverrides != null) {
+            this.stateOverrides.put(name, state);
+        }
+    }
+
+    /**
+     * Returns true unless the instance is known to be missing or in an unstartable state.
+     *
+     * If the inventory has never been refreshed successfully, the instance is considered startable.
+     */
+    boolean isStartable(String name) {
+        Snapshot current = this.snapshot;
+        if (! current.known) {
+            return true;
+        }
+        String state = current.states.get(name);
+        return state != null && ! UNSTARTABLE_STATES.contains(state);
+    }
+
+    /**
+     * Returns # of refresh calls.
+     */
+    long getRefreshCount() {
+        return this.refreshCount;
+    }
+
+    /**
+     * Returns a snapshot of the states.
+     */
+    Map<String, String> snapshot() {
+        return this.snapshot.states;
+    }
+
+    /**
+     * Unmodifiable maps of an inventory at a time.
+     */
+    private static class Snapshot {
+
+        /** The states of the instances keyed by the names. */
+        final Map<String, String> states;
+
+        /** The zones of the instances keyed by the names. */
+        final Map<String, String> zones;
+
+        /** Whether the instances are preemptible keyed by the names. */
+        final Map<String, Boolean> preemptibles;
+
+        /** Whether the inventory has been refreshed successfully. */
+        final boolean known;
+
+        /** When the inventory was refreshed last. */
+        final long refreshedNanos;
+
+        Snapshot(Map<String, String> states, Map<String, String> zones, Map<String, Boolean> preemptibles,
+                boolean known, long refreshedNanos) {
+            this.states = states;
+            this.zones = zones;
+            this.preemptibles = preemptibles;
+            this.known = known;
+            this.refreshedNanos = refreshedNanos;
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
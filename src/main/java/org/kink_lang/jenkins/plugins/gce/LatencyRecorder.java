@@ -0,0 +1,169 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records latencies keyed by the kind of the measured thing, such as an operation type.
+ *
+ * The latencies of each key are aggregated into a histogram of fixed buckets,
+ * which can be exported as a Prometheus histogram.
+ */
+public class LatencyRecorder {
+
+    /** Stats for each key. */
+    private final ConcurrentMap<String, Stats> statsMap = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Records a latency for the key.
+     */
+    void record(String key, long millis) {
+        Stats stats = this.statsMap.get(key);
+        if (stats == null) {
+            Stats newStats = new Stats();
+            stats = this.statsMap.putIfAbsent(key, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        stats.add(millis);
+    }
+
+    /**
+     * Returns a snapshot of the stats, sorted by the keys.
+     */
+    Map<String, Stats> snapshot() {
+        Map<String, Stats> result = new TreeMap<String, Stats>();
+        for (Map.Entry<String, Stats> entry : this.statsMap.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().copy());
+        }
+        return result;
+    }
+
+    /**
+     * Aggregated latencies of a key.
+     */
+    public static class Stats {
+
+        /** The upper bounds of the histogram buckets in milliseconds, except the last unbounded bucket. */
+        private static final long[] BUCKET_BOUNDS_MILLIS = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000,
+        };
+
+        /** # of recorded latencies per bucket; the last bucket is unbounded. */
+        private long[] bucketCounts = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+
+        /** # of recorded latencies. */
+        private long count;
+
+        /** The sum of recorded latencies in milliseconds. */
+        private long totalMillis;
+
+        /** The maximum recorded latency in milliseconds. */
+        private long maxMillis;
+
+        /**
+         * Adds a latency.
+         */
+        synchronized void add(long millis) {
+            ++ this.bucketCounts[bucketOf(millis)];
+            ++ this.count;
+            this.totalMillis += millis;
+            this.maxMillis = Math.max(this.maxMillis, millis);
+        }
+
+        /**
+         * Returns a copy of the stats.
+         */
+        synchronized Stats copy() {
+            Stats result = new Stats();
+            result.count = this.count;
+            result.totalMillis = this.totalMillis;
+            result.maxMillis = this.maxMillis;
+            result.bucketCounts = this.bucketCounts.clone();
+            return result;
+        }
+
+        /**
+         * Returns the index of the bucket for the latency.
+         */
+        private static int bucketOf(long millis) {
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; ++ i) {
+                if (millis <= BUCKET_BOUNDS_MILLIS[i]) {
+                    return i;
+                }
+            }
+            return BUCKET_BOUNDS_MILLIS.length;
+        }
+
+        /**
+         * Returns the upper bounds of the buckets in milliseconds, except the last unbounded bucket.
+         */
+        public static long[] getBucketBoundsMillis() {
+            return BUCKET_BOUNDS_MILLIS.clone();
+        }
+
+        /**
+         * Returns # of recorded latencies per bucket; the last bucket is unbounded.
+         */
+        public synchronized long[] getBucketCounts() {
+            return this.bucketCounts.clone();
+        }
+
+        /**
+         * Returns the upper bound of the bucket which contains the percentile;
+         * or the maximum latency if the percentile is in the unbounded bucket.
+         */
+        public synchronized long getPercentileMillis(double percentile) {
+            long rank = (long) Math.ceil(this.count * percentile / 100);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; ++ i) {
+                cumulative += this.bucketCounts[i];
+                if (cumulative >= rank) {
+                    return Math.min(BUCKET_BOUNDS_MILLIS[i], this.maxMillis);
+                }
+            }
+            return this.maxMillis;
+        }
+
+        /**
+         * Returns the sum of the latencies in milliseconds.
+         */
+        public synchronized long getTotalMillis() {
+            return this.totalMillis;
+        }
+
+        /**
+         * Returns # of recorded latencies.
+         */
+        public synchronized long getCount() {
+            return this.count;
+        }
+
+        /**
+         * Returns the mean latency in milliseconds; or 0 if nothing is recorded.
+         */
+        public synchronized long getMeanMillis() {
+            return this.count == 0 ? 0 : this.totalMillis / this.count;
+        }
+
+        /**
+         * Returns the maximum latency in milliseconds.
+         */
+        public synchronized long getMaxMillis() {
+            return this.maxMillis;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("count=%d mean=%dms p99<=%dms max=%dms",
+                    this.count, getMeanMillis(), getPercentileMillis(99), this.maxMillis);
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
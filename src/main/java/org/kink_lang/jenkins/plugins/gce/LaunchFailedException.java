@@ -0,0 +1,33 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+
+/**
+ * Failure of launching the instance of a slave, with which the launch future fails.
+ *
+ * A stockout is a shortage of the resources of the zone rather than a failure of the API,
+ * so it does not count against the circuit breaker.
+ */
+class LaunchFailedException extends IOException {
+
+    /** The version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /** Whether the launch failed by a stockout. */
+    private final boolean stockout;
+
+    LaunchFailedException(String message, boolean stockout) {
+        super(message);
+        this.stockout = stockout;
+    }
+
+    /**
+     * Returns true if the launch failed by a stockout of the zone.
+     */
+    boolean isStockout() {
+        return this.stockout;
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,191 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Metadata;
+import com.google.api.services.compute.model.Operation;
+
+/**
+ * Updates the Jenkins items of instance metadata, such as the JNLP secret, writing only what changed.
+ *
+ * The items confirmed on each instance are cached,
+ * so a launch whose items are unchanged skips both reading and writing the metadata.
+ * A write replaces only the changed items of the metadata read last,
+ * keeping the other items such as startup scripts in their order,
+ * and carries the fingerprint of the read metadata.
+ * A write rejected by a fingerprint conflict is retried on freshly read metadata.
+ */
+class MetadataUpdater {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(MetadataUpdater.class.getName());
+
+    /** The maximum # of attempts of writing metadata against fingerprint conflicts. */
+    static final int MAX_ATTEMPTS = 3;
+
+    /** The HTTP status of a fingerprint conflict. */
+    private static final int CONFLICT_STATUS = 412;
+
+    /** The Jenkins items confirmed on the instances, keyed by the instance names. */
+    private final ConcurrentMap<String, Map<String, String>> confirmed
+        = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /** # of writes skipped because the items were unchanged. */
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /** # of writes retried because of fingerprint conflicts. */
+    private final AtomicLong conflictCount = new AtomicLong();
+
+    /**
+     * Returns true if the items are known to be on the instance, without counting a skipped write.
+     */
+    boolean isConfirmed(String name, Map<String, String> items) {
+        Map<String, String> known = this.confirmed.get(name);
+        return known != null && known.entrySet().containsAll(items.entrySet());
+    }
+
+    /**
+     * Returns true if the items are known to be on the instance, so that nothing has to be read or written.
+     */
+    boolean isCurrent(String name, Map<String, String> items) {
+        if (! isConfirmed(name, items)) {
+            return false;
+        }
+        this.skippedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records that the items are on the instance.
+     */
+    void confirm(String name, Map<String, String> items) {
+        this.confirmed.put(name, new HashMap<String, String>(items));
+    }
+
+    /**
+     * Forgets the items of the instance, so that the metadata is read on the next update.
+     */
+    void invalidate(String name) {
+        this.confirmed.remove(name);
+    }
+
+    /**
+     * Records that a write is skipped, because the read metadata already had the items.
+     */
+    void onUnchanged(String name, Map<String, String> items) {
+        this.skippedCount.incrementAndGet();
+        confirm(name, items);
+    }
+
+    /**
+     * Records that a write is rejected by a fingerprint conflict.
+     */
+    void onConflict(String name) {
+        LOGGER.fine("metadata fingerprint of " + name + " conflicted");
+        this.conflictCount.incrementAndGet();
+    }
+
+    /**
+     * Writes the items to the metadata of the instance in the zone of the client,
+     * without waiting for the operation.
+     *
+     * Returns null if the items are already on the instance.
+     */
+    Operation update(ComputeClient client, String name, Map<String, String> items) throws IOException {
+        if (isCurrent(name, items)) {
+            return null;
+        }
+
+        for (int attempt = 1; ; ++ attempt) {
+            Instance instance = client.execute(client.getCompute().instances()
+                    .get(client.getProject(), client.getZone(), name));
+            Metadata metadata = diff(instance.getMetadata(), items);
+            if (metadata == null) {
+                onUnchanged(name, items);
+                return null;
+            }
+
+            try {
+                return client.execute(client.getCompute().instances()
+                        .setMetadata(client.getProject(), client.getZone(), name, metadata));
+            } catch (GoogleJsonResponseException gjrex) {
+                if (gjrex.getStatusCode() != CONFLICT_STATUS || attempt >= MAX_ATTEMPTS) {
+                    throw gjrex;
+                }
+                onConflict(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the metadata to write, whose items are the current items with the given items replaced or added;
+     * or null if the current metadata already has the items.
+     *
+     * The current metadata is not modified.
+     */
+    static Metadata diff(Metadata current, Map<String, String> items) {
+        List<Metadata.Items> newItems = current == null || current.getItems() == null
+            ? new ArrayList<Metadata.Items>()
+            : new ArrayList<Metadata.Items>(current.getItems());
+        Map<String, String> missing = new LinkedHashMap<String, String>(items);
+        boolean changed = false;
+        for (int i = 0; i < newItems.size(); ++ i) {
+            String key = newItems.get(i).getKey();
+            if (! missing.containsKey(key)) {
+                continue;
+            }
+            String value = missing.remove(key);
+            if (! value.equals(newItems.get(i).getValue())) {
+                newItems.set(i, new Metadata.Items().setKey(key).setValue(value));
+                changed = true;
+            }
+        }
+        for (Map.Entry<String, String> entry : missing.entrySet()) {
+            newItems.add(new Metadata.Items().setKey(entry.getKey()).setValue(entry.getValue()));
+            changed = true;
+        }
+
+        if (! changed) {
+            return null;
+        }
+        return new Metadata()
+            .setFingerprint(current == null ? null : current.getFingerprint())
+            .setItems(newItems);
+    }
+
+    /**
+     * Returns true if the error is a fingerprint conflict.
+     */
+    static boolean isConflict(GoogleJsonError error) {
+        return error.getCode() == CONFLICT_STATUS;
+    }
+
+    /**
+     * Returns # of writes skipped because the items were unchanged.
+     */
+    long getSkippedCount() {
+        return this.skippedCount.get();
+    }
+
+    /**
+     * Returns # of writes retried because of fingerprint conflicts.
+     */
+    long getConflictCount() {
+        return this.conflictCount.get();
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
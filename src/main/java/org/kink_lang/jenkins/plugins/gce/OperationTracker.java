@@ -0,0 +1,118 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.compute.model.Operation;
+
+/**
+ * Waits for completion of zone operations.
+ *
+ * The tracker uses the long-poll "wait" endpoint of zone operations.
+ * If the endpoint is not available, it falls back to polling with adaptive backoff:
+ * the first polls are made quickly, then the interval grows exponentially.
+ */
+class OperationTracker {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(OperationTracker.class.getName());
+
+    /** The first interval of fallback polling. */
+    private static final long FIRST_POLL_INTERVAL_MILLIS = 250;
+
+    /** The maximum interval of fallback polling. */
+    private static final long MAX_POLL_INTERVAL_MILLIS = 5000;
+
+    /** The read timeout of a long-poll request; the server returns within about 2 minutes. */
+    private static final int WAIT_READ_TIMEOUT_MILLIS = 150 * 1000;
+
+    /** Completion latencies per operation type. */
+    private final LatencyRecorder latencies;
+
+    /** Whether the long-poll endpoint is considered available. */
+    private volatile boolean waitSupported = true;
+
+    OperationTracker(LatencyRecorder latencies) {
+        this.latencies = latencies;
+    }
+
+    /**
+     * Waits until the operation is DONE, and returns the final state of the operation.
+     */
+    Operation waitFor(ComputeClient client, Operation op) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        long intervalMillis = FIRST_POLL_INTERVAL_MILLIS;
+        while (true) {
+            LOGGER.log(Level.FINE, "Operation result: {0}", op);
+            if ("DONE".equals(op.getStatus())) {
+                long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+                this.latencies.record("operation." + op.getOperationType(), elapsedMillis);
+                return op;
+            }
+
+            Operation waited = this.waitSupported ? longPoll(client, op) : null;
+            if (waited != null) {
+                op = waited;
+            } else {
+                Thread.sleep(intervalMillis);
+                intervalMillis = Math.min(intervalMillis * 2, MAX_POLL_INTERVAL_MILLIS);
+                op = poll(client, op);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the operation is DONE without errors.
+     */
+    static boolean isSuccessful(Operation op) {
+        return op.getError() == null
+            || op.getError().getErrors() == null
+            || op.getError().getErrors().isEmpty();
+    }
+
+    /**
+     * Fetches the current state of the operation.
+     */
+    static Operation poll(ComputeClient client, Operation op) throws IOException {
+        return client.execute(client.getCompute().zoneOperations()
+                .get(client.getProject(), lastSegment(op.getZone()), op.getName()));
+    }
+
+    /**
+     * Waits for the operation using the long-poll endpoint;
+     * or returns null if the endpoint is not available.
+     */
+    private Operation longPoll(ComputeClient client, Operation op) throws IOException {
+        GenericUrl url = new GenericUrl(op.getSelfLink() + "/wait");
+        HttpRequest request = client.getCompute().getRequestFactory()
+            .buildPostRequest(url, new EmptyContent())
+            .setParser(client.getJsonFactory().createJsonObjectParser())
+            .setReadTimeout(WAIT_READ_TIMEOUT_MILLIS);
+        try {
+            return client.execute(request).parseAs(Operation.class);
+        } catch (HttpResponseException hrex) {
+            int status = hrex.getStatusCode();
+            if (status == 400 || status == 404 || status == 405 || status == 501) {
+                LOGGER.log(Level.INFO, "operation wait endpoint is not available; fall back to polling", hrex);
+                this.waitSupported = false;
+                return null;
+            }
+            throw hrex;
+        }
+    }
+
+    /**
+     * Returns the last segment of the resource URL such as a zone URL.
+     */
+    static String lastSegment(String url) {
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,284 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Watches all the in-flight zone operations of a cloud without parking a thread per operation.
+ *
+ * A single task on the shared Jenkins timer schedules checking rounds,
+ * which check the pending operations which are due in batch requests on the executor of the cloud,
+ * and complete the futures of finished operations.
+ * Each operation is checked with its own backoff: quickly at first, then exponentially slower.
+ * A check failed by the rate limit or a server error is made again after the backoff of the operation.
+ * An operation not finished within DEADLINE_MINUTES fails, so that no future is left pending.
+ */
+class OperationWatcher {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(OperationWatcher.class.getName());
+
+    /** The interval of checking rounds. */
+    private static final long TICK_MILLIS = 250;
+
+    /** The first interval of checks of an operation. */
+    private static final long FIRST_CHECK_INTERVAL_MILLIS = 500;
+
+    /** The maximum interval of checks of an operation. */
+    private static final long MAX_CHECK_INTERVAL_MILLIS = 5000;
+
+    /** The minutes after which an operation being watched fails. */
+    static final long DEADLINE_MINUTES = 15;
+
+    /** Completion latencies per operation type. */
+    private final LatencyRecorder latencies;
+
+    /** The executor of the checks. */
+    private final Executor executor;
+
+    /** Pending operations keyed by the self links; guarded by this. */
+    private final Map<String, Pending> pendings = new LinkedHashMap<String, Pending>();
+
+    /** Whether a checking round is scheduled; guarded by this. */
+    private boolean scheduled;
+
+    OperationWatcher(LatencyRecorder latencies, Executor executor) {
+        this.latencies = latencies;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts watching the operation, and returns the future of the DONE operation.
+     */
+    ListenableFuture<Operation> watch(ComputeClient client, Operation op) {
+        Pending pending = new Pending(client, op);
+        if ("DONE".equals(op.getStatus())) {
+            complete(pending, op);
+            return pending.future;
+        }
+
+        synchronized (this) {
+            this.pendings.put(op.getSelfLink(), pending);
+            scheduleIfNeeded();
+        }
+        return pending.future;
+    }
+
+    /**
+     * Returns # of operations being watched.
+     */
+    synchronized int getPendingCount() {
+        return this.pendings.size();
+    }
+
+    /**
+     * Schedules a checking round unless it is already scheduled; called holding the lock.
+     *
+     * The timer task only fails the overdue operations and hands the round to the executor,
+     * so that no HTTP request blocks the shared timer.
+     */
+    private void scheduleIfNeeded() {
+        if (this.scheduled || this.pendings.isEmpty()) {
+            return;
+        }
+        this.scheduled = true;
+        Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                failOverdue();
+                try {
+                    executor.execute(new Runnable() {
+                        @Override public void run() {
+                            try {
+                                checkDuePendings();
+                            } catch (RuntimeException rex) {
+                                LOGGER.log(Level.WARNING, "failed to check operations", rex);
+                            } finally {
+                                endRound();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException rex) {
+                    LOGGER.log(Level.WARNING, "cannot check operations", rex);
+                    endRound();
+                }
+            }
+        }, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ends the checking round, and schedules the next one if needed.
+     */
+    private synchronized void endRound() {
+        this.scheduled = false;
+        scheduleIfNeeded();
+    }
+
+    /**
+     * Fails the operations which are not finished before the deadline.
+     */
+    private void failOverdue() {
+        long now = System.nanoTime();
+        List<Pending> overdue = new ArrayList<Pending>();
+        synchronized (this) {
+            for (Pending pending : this.pendings.values()) {
+                if (now - pending.deadlineNanos >= 0) {
+                    overdue.add(pending);
+                }
+            }
+            for (Pending pending : overdue) {
+                this.pendings.remove(pending.op.getSelfLink());
+            }
+        }
+        for (Pending pending : overdue) {
+            pending.future.setException(new IOException(String.format(
+                            "operation %s did not finish in %d minutes", pending.op.getName(), DEADLINE_MINUTES)));
+        }
+    }
+
+    /**
+     * Checks the operations which are due, grouping them by the clients.
+     */
+    private void checkDuePendings() {
+        long now = System.nanoTime();
+        Map<ComputeClient, List<Pending>> dueMap = new IdentityHashMap<ComputeClient, List<Pending>>();
+        synchronized (this) {
+            for (Pending pending : this.pendings.values()) {
+                if (now - pending.nextCheckNanos >= 0) {
+                    List<Pending> due = dueMap.get(pending.client);
+                    if (due == null) {
+                        due = new ArrayList<Pending>();
+                        dueMap.put(pending.client, due);
+                    }
+                    due.add(pending);
+                }
+            }
+        }
+
+        for (Map.Entry<ComputeClient, List<Pending>> entry : dueMap.entrySet()) {
+            List<Pending> due = entry.getValue();
+            for (int i = 0; i < due.size(); i += Batches.MAX_BATCH_SIZE) {
+                checkBatch(entry.getKey(), due.subList(i, Math.min(i + Batches.MAX_BATCH_SIZE, due.size())));
+            }
+        }
+    }
+
+    /**
+     * Checks the operations by a batch request.
+     */
+    private void checkBatch(ComputeClient client, List<Pending> due) {
+        try {
+            BatchRequest batch = client.getCompute().batch();
+            for (final Pending pending : due) {
+                pending.backOff();
+                client.getCompute().zoneOperations()
+                    .get(client.getProject(),
+                            OperationTracker.lastSegment(pending.op.getZone()),
+                            pending.op.getName())
+                    .queue(batch, new JsonBatchCallback<Operation>() {
+                        @Override public void onSuccess(Operation op, HttpHeaders headers) {
+                            LOGGER.log(Level.FINE, "Operation result: {0}", op);
+                            if ("DONE".equals(op.getStatus())) {
+                                remove(pending);
+                                complete(pending, op);
+                            }
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            if (ApiThrottle.isRetryable(error)) {
+                                LOGGER.fine("check of operation " + pending.op.getName()
+                                        + " failed; will retry: " + error.getMessage());
+                                return;
+                            }
+                            remove(pending);
+                            pending.future.setException(new IOException(
+                                        "failed to get operation " + pending.op.getName()
+                                        + ": " + error.getMessage()));
+                        }
+                    });
+            }
+            batch.execute();
+        } catch (IOException ioex) {
+            LOGGER.log(Level.WARNING, "failed to check operations; will retry", ioex);
+        }
+    }
+
+    /**
+     * Stops watching the operation.
+     */
+    private synchronized void remove(Pending pending) {
+        this.pendings.remove(pending.op.getSelfLink());
+    }
+
+    /**
+     * Records the latency and completes the future.
+     */
+    private void complete(Pending pending, Operation op) {
+        long elapsedMillis = (System.nanoTime() - pending.startNanos) / 1000000;
+        this.latencies.record("operation." + op.getOperationType(), elapsedMillis);
+        pending.future.set(op);
+    }
+
+    /**
+     * An operation being watched.
+     */
+    private static class Pending {
+
+        /** The client which issued the operation. */
+        final ComputeClient client;
+
+        /** The operation as it was issued. */
+        final Operation op;
+
+        /** The future of the DONE operation. */
+        final SettableFuture<Operation> future = SettableFuture.create();
+
+        /** When the watch started. */
+        final long startNanos = System.nanoTime();
+
+        /** When the operation fails unless it is finished. */
+        final long deadlineNanos = this.startNanos + TimeUnit.MINUTES.toNanos(DEADLINE_MINUTES);
+
+        /** When the operation should be checked next. */
+        long nextCheckNanos;
+
+        /** The current interval of checks. */
+        long intervalMillis = FIRST_CHECK_INTERVAL_MILLIS;
+
+        Pending(ComputeClient client, Operation op) {
+            this.client = client;
+            this.op = op;
+            this.nextCheckNanos = this.startNanos + TimeUnit.MILLISECONDS.toNanos(this.intervalMillis);
+        }
+
+        /**
+         * Postpones the next check of the operation.
+         */
+        void backOff() {
+            this.intervalMillis = Math.min(this.intervalMillis * 2, MAX_CHECK_INTERVAL_MILLIS);
+            this.nextCheckNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.intervalMillis);
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,81 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Instances being stopped or suspended in the background.
+ *
+ * The spec of a pending instance is not provisioned again until the stop is confirmed,
+ * either by the operation watcher, or by the reconciliation with the instance inventory.
+ */
+class PendingStops {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(PendingStops.class.getName());
+
+    /** The states of stopped instances. */
+    private static final Set<String> STOPPED_STATES = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("TERMINATED", "STOPPED", "SUSPENDED")));
+
+    /** The time after which a pending stop is given up. */
+    private static final long EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** The times of issuing the stops keyed by the instance names. */
+    private final Map<String, Long> pendings = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Records that the stop of the instance is issued.
+     */
+    void begin(String name) {
+        this.pendings.put(name, System.currentTimeMillis());
+    }
+
+    /**
+     * Records that the stop of the instance is finished, successfully or not.
+     */
+    void finish(String name) {
+        this.pendings.remove(name);
+    }
+
+    /**
+     * Returns true if the stop of the instance is not confirmed yet.
+     */
+    boolean contains(String name) {
+        return this.pendings.containsKey(name);
+    }
+
+    /**
+     * Returns # of pending stops.
+     */
+    int size() {
+        return this.pendings.size();
+    }
+
+    /**
+     * Finishes the stops of the instances which the inventory shows stopped,
+     * and the stops which are pending too long.
+     */
+    void reconcile(InstanceInventory inventory) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : this.pendings.entrySet()) {
+            String name = entry.getKey();
+            if (STOPPED_STATES.contains(inventory.getState(name))) {
+                LOGGER.fine("stop of " + name + " is confirmed by the inventory");
+                this.pendings.remove(name);
+            } else if (now - entry.getValue() >= EXPIRY_MILLIS) {
+                LOGGER.warning("stop of " + name + " is not confirmed; give up waiting");
+                this.pendings.remove(name);
+            }
+        }
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
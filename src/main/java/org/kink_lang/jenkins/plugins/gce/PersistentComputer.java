@@ -1,13 +1,38 @@
 package org.kink_lang.jenkins.plugins.gce;
 
-import hudson.slaves.AbstractCloudComputer;
+import hudson.model.Executor;
+import hudson.model.Queue;
 
-public class PersistentComputer extends AbstractCloudComputer<PersistentSlave> {
+public class PersistentComputer extends GoogleCloudComputer<PersistentSlave> {
 
     public PersistentComputer(PersistentSlave slave) {
         super(slave);
     }
 
+    @Override
+    public void taskAccepted(Executor executor, Queue.Task task) {
+        super.taskAccepted(executor, task);
+        GoogleCloud cloud = getCloud();
+        if (cloud != null) {
+            cloud.getDemandPredictor().onUsed(getName());
+        }
+    }
+
+    @Override
+    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        super.taskCompleted(executor, task, durationMS);
+        GoogleCloud cloud = getCloud();
+        PersistentSlave slave = getNode();
+        if (cloud != null && slave != null) {
+            cloud.getDiskCache().onBuildCompleted(getName(), slave.getLabelString(), durationMS);
+        }
+    }
+
+    @Override
+    String getCloudName(PersistentSlave slave) {
+        return slave.getCloudName();
+    }
+
 }
 
 // vim: et sw=4 sts=4 fdm=marker
@@ -17,6 +17,7 @@ import hudson.slaves.AbstractCloudComputer;
 import hudson.slaves.Cloud;
 import hudson.slaves.JNLPLauncher;
 import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
 import hudson.util.FormValidation;
 
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -37,6 +38,12 @@ public class PersistentSlave extends AbstractCloudSlave {
     /** Cloud name. */
     private String cloudName;
 
+    /** The zone of the instance. */
+    private String zone;
+
+    /** Whether the instance runs on preemptible capacity; or null if the scheduling is not managed. */
+    private Boolean preemptible;
+
     @DataBoundConstructor
     public PersistentSlave(
             String name,
@@ -47,9 +54,26 @@ public class PersistentSlave extends AbstractCloudSlave {
             String cloudName,
             List<NodeProperty<PersistentSlave>> nodeProperties
             ) throws Descriptor.FormException, IOException{
+        this(name, nodeDescription, remoteFS, numExecutors, labelString, cloudName, nodeProperties,
+                getCloud(cloudName).getRetentionStrategy());
+    }
+
+    /**
+     * Makes a slave with the retention strategy.
+     */
+    PersistentSlave(
+            String name,
+            String nodeDescription,
+            String remoteFS,
+            String numExecutors,
+            String labelString,
+            String cloudName,
+            List<NodeProperty<PersistentSlave>> nodeProperties,
+            RetentionStrategy retentionStrategy
+            ) throws Descriptor.FormException, IOException {
         super(name, nodeDescription, remoteFS, numExecutors, Mode.NORMAL, labelString,
                 new JNLPLauncher(),
-                getCloud(cloudName).getRetentionStrategy(),
+                retentionStrategy,
                 nodeProperties == null ? Collections.<NodeProperty<PersistentSlave>>emptyList() : nodeProperties);
         this.cloudName = cloudName;
     }
@@ -69,6 +93,36 @@ public class PersistentSlave extends AbstractCloudSlave {
         return this.cloudName;
     }
 
+    /**
+     * Stores the zone of the instance.
+     */
+    @DataBoundSetter
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Returns the zone of the instance; or null if the slave was made before zones were recorded.
+     */
+    public String getZone() {
+        return this.zone;
+    }
+
+    /**
+     * Stores whether the instance runs on preemptible capacity.
+     */
+    @DataBoundSetter
+    public void setPreemptible(Boolean preemptible) {
+        this.preemptible = preemptible;
+    }
+
+    /**
+     * Returns whether the instance runs on preemptible capacity; or null if the scheduling is not managed.
+     */
+    public Boolean getPreemptible() {
+        return this.preemptible;
+    }
+
     @Override
     public AbstractCloudComputer<PersistentSlave> createComputer() {
         return new PersistentComputer(this);
@@ -77,7 +131,7 @@ public class PersistentSlave extends AbstractCloudSlave {
     /**
      * Returns the cloud for the name.
      */
-    private static GoogleCloud getCloud(String cloudName) {
+    static GoogleCloud getCloud(String cloudName) {
         Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
         if (cloud == null) {
             String msg = String.format(
@@ -104,7 +158,7 @@ public class PersistentSlave extends AbstractCloudSlave {
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
         GoogleCloud cloud = getCloud();
-        cloud.terminate(this.name);
+        cloud.terminate(this.name, this.zone);
     }
 
     @Extension
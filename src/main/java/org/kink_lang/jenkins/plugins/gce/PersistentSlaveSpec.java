@@ -2,12 +2,13 @@ package org.kink_lang.jenkins.plugins.gce;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
@@ -16,13 +17,10 @@ import jenkins.model.Jenkins;
 
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
-import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
-import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
 import hudson.slaves.NodeProperty;
-import hudson.slaves.NodeProvisioner;
 import hudson.tools.ToolLocationNodeProperty;
 import hudson.util.FormValidation;
 
@@ -36,10 +34,19 @@ public class PersistentSlaveSpec
 
     private static Logger LOGGER = Logger.getLogger(PersistentSlaveSpec.class.getName());
 
+    /** Pattern of instance names with a numeric range, such as "build-agent-[001-500]". */
+    private static final Pattern RANGE_PATTERN = Pattern.compile("(.*)\\[([0-9]{1,9})-([0-9]{1,9})\\](.*)");
+
+    /** The maximum # of instances of a range. */
+    static final int MAX_RANGE_SIZE = 10000;
+
     private String instanceName;
 
     private String label;
 
+    /** The parsed label atoms; lazily made. */
+    private transient Set<LabelAtom> labelAtoms;
+
     /** # of executors. */
     private String numExecutors;
 
@@ -52,10 +59,69 @@ public class PersistentSlaveSpec
     /** The list of node properties. */
     private List<NodeProperty<PersistentSlave>> nodeProperties;
 
+    /** The minutes to keep an idle slave; or empty to use the timeout minutes of the cloud. */
+    private String idleMinutes;
+
+    /** Whether the instance runs on preemptible capacity, falling back to standard capacity. */
+    private boolean preemptible;
+
+    /** The source disk of the cache snapshots, as "DISK" or "ZONE/DISK"; or empty to attach no cache disk. */
+    private String cacheSourceDisk;
+
+    /** The interval hours of taking the cache snapshots. */
+    private String cacheRefreshHours;
+
+    /** The maximum age hours of the cache disk of the instance. */
+    private String cacheMaxAgeHours;
+
     @DataBoundConstructor
     public PersistentSlaveSpec() {
     }
 
+    /**
+     * Returns a copy of the spec for the instance.
+     */
+    private PersistentSlaveSpec withInstanceName(String name) {
+        PersistentSlaveSpec spec = new PersistentSlaveSpec();
+        spec.instanceName = name;
+        spec.label = this.label;
+        spec.labelAtoms = getLabelAtoms();
+        spec.numExecutors = this.numExecutors;
+        spec.nodeDescription = this.nodeDescription;
+        spec.remoteFS = this.remoteFS;
+        spec.nodeProperties = this.nodeProperties;
+        spec.idleMinutes = this.idleMinutes;
+        spec.preemptible = this.preemptible;
+        spec.cacheSourceDisk = this.cacheSourceDisk;
+        spec.cacheRefreshHours = this.cacheRefreshHours;
+        spec.cacheMaxAgeHours = this.cacheMaxAgeHours;
+        return spec;
+    }
+
+    /**
+     * Returns the specs of the concrete instances.
+     *
+     * If the instance name has a range such as "build-agent-[001-500]",
+     * the range is expanded to the specs of "build-agent-001" to "build-agent-500",
+     * padding the numbers with zeros to the width of the first number.
+     * Otherwise the list contains only this spec.
+     */
+    List<PersistentSlaveSpec> expand() {
+        Matcher matcher = RANGE_PATTERN.matcher(getInstanceName());
+        if (! matcher.matches()) {
+            return Collections.singletonList(this);
+        }
+
+        String format = "%s%0" + matcher.group(2).length() + "d%s";
+        int first = Integer.parseInt(matcher.group(2));
+        int last = Math.min(Integer.parseInt(matcher.group(3)), first + MAX_RANGE_SIZE - 1);
+        List<PersistentSlaveSpec> result = new ArrayList<PersistentSlaveSpec>();
+        for (int i = first; i <= last; ++ i) {
+            result.add(withInstanceName(String.format(format, matcher.group(1), i, matcher.group(4))));
+        }
+        return result;
+    }
+
     @DataBoundSetter
     public void setInstanceName(String instanceName) {
         this.instanceName = instanceName.trim();
@@ -68,14 +134,23 @@ public class PersistentSlaveSpec
     @DataBoundSetter
     public void setLabel(String label) {
         this.label = label;
+        this.labelAtoms = null;
     }
 
     public String getLabel() {
         return this.label;
     }
 
+    /**
+     * Returns the label atoms, parsed once per label string.
+     */
     public Set<LabelAtom> getLabelAtoms() {
-        return Label.parse(this.label);
+        Set<LabelAtom> atoms = this.labelAtoms;
+        if (atoms == null) {
+            atoms = Collections.unmodifiableSet(Label.parse(this.label));
+            this.labelAtoms = atoms;
+        }
+        return atoms;
     }
 
     /**
@@ -138,44 +213,154 @@ public class PersistentSlaveSpec
         return this.nodeProperties;
     }
 
+    /**
+     * Stores the minutes to keep an idle slave.
+     */
+    @DataBoundSetter
+    public void setIdleMinutes(String idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    /**
+     * Returns the minutes to keep an idle slave; or empty to use the timeout minutes of the cloud.
+     */
+    public String getIdleMinutes() {
+        return this.idleMinutes;
+    }
+
+    /**
+     * Stores whether the instance runs on preemptible capacity.
+     */
+    @DataBoundSetter
+    public void setPreemptible(boolean preemptible) {
+        this.preemptible = preemptible;
+    }
+
+    /**
+     * Returns whether the instance runs on preemptible capacity, falling back to standard capacity.
+     */
+    public boolean isPreemptible() {
+        return this.preemptible;
+    }
+
+    /**
+     * Stores the source disk of the cache snapshots.
+     */
+    @DataBoundSetter
+    public void setCacheSourceDisk(String cacheSourceDisk) {
+        this.cacheSourceDisk = cacheSourceDisk == null ? null : cacheSourceDisk.trim();
+    }
+
+    /**
+     * Returns the source disk of the cache snapshots, as "DISK" or "ZONE/DISK"; or empty to attach no cache disk.
+     */
+    public String getCacheSourceDisk() {
+        return this.cacheSourceDisk;
+    }
+
+    /**
+     * Stores the interval hours of taking the cache snapshots.
+     */
+    @DataBoundSetter
+    public void setCacheRefreshHours(String cacheRefreshHours) {
+        this.cacheRefreshHours = cacheRefreshHours;
+    }
+
+    /**
+     * Returns the interval hours of taking the cache snapshots.
+     */
+    public String getCacheRefreshHours() {
+        return this.cacheRefreshHours;
+    }
+
+    /**
+     * Stores the maximum age hours of the cache disk.
+     */
+    @DataBoundSetter
+    public void setCacheMaxAgeHours(String cacheMaxAgeHours) {
+        this.cacheMaxAgeHours = cacheMaxAgeHours;
+    }
+
+    /**
+     * Returns the maximum age hours of the cache disk.
+     */
+    public String getCacheMaxAgeHours() {
+        return this.cacheMaxAgeHours;
+    }
+
+    /**
+     * Returns true if the instance has a cache disk.
+     */
+    boolean hasCache() {
+        return this.cacheSourceDisk != null && ! this.cacheSourceDisk.isEmpty();
+    }
+
+    /**
+     * Returns the interval hours of taking the cache snapshots; 24 by default.
+     */
+    int getCacheRefreshHoursNumber() {
+        return parseHours(this.cacheRefreshHours, 24);
+    }
+
+    /**
+     * Returns the maximum age hours of the cache disk; 72 by default.
+     */
+    int getCacheMaxAgeHoursNumber() {
+        return parseHours(this.cacheMaxAgeHours, 72);
+    }
+
+    /**
+     * Parses the hours; or returns the default if empty.
+     */
+    private static int parseHours(String hours, int defaultHours) {
+        return hours == null || hours.trim().isEmpty() ? defaultHours : Integer.parseInt(hours.trim());
+    }
+
     /**
      * Returns true if the slave can be provisioned.
+     *
+     * The slave cannot be provisioned if the instance is known to be missing or stopping,
+     * or its cache disk is being replaced.
      */
-    public boolean canProvision(Label label) {
-        boolean result = label.matches(getLabelAtoms())
-            && Jenkins.getInstance().getNodesObject().getNode(this.getInstanceName()) == null;
-        LOGGER.info("canProvision => " + result);
+    public boolean canProvision(GoogleCloud cloud, Label label) {
+        boolean result = (label == null || label.matches(getLabelAtoms()))
+            && Jenkins.getInstance().getNodesObject().getNode(this.getInstanceName()) == null
+            && cloud.getInventory().isStartable(this.getInstanceName())
+            && ! cloud.getPendingStops().contains(this.getInstanceName())
+            && ! cloud.getDiskCache().isRefreshing(this.getInstanceName())
+            && cloud.getPlacementEngine().isAvailable(cloud.zoneOf(this.getInstanceName()));
+        LOGGER.fine("canProvision => " + result);
         return result;
     }
 
     /**
-     * Provisions the specified instance.
+     * Adds the slave node of the specified instance; the cloud launches the instance.
+     *
+     * Returns null if the slave cannot be provisioned.
      */
-    public NodeProvisioner.PlannedNode provision(
-            final GoogleCloud cloud, Label label) {
-        if (! canProvision(label)) {
-            LOGGER.info("provision: cannot provision");
+    public PersistentSlave provision(GoogleCloud cloud, Label label) {
+        if (! canProvision(cloud, label)) {
+            LOGGER.fine("provision: cannot provision");
             return null;
         }
 
-        LOGGER.info("provision: try provisioning!");
+        LOGGER.fine("provision: try provisioning!");
         try {
-            final PersistentSlave slave = new PersistentSlave(
+            PersistentSlave slave = new PersistentSlave(
                     getInstanceName(),
                     this.nodeDescription,
                     this.remoteFS,
                     this.numExecutors,
                     this.label,
                     cloud.name,
-                    this.nodeProperties);
+                    this.nodeProperties,
+                    cloud.getRetentionStrategy(this.idleMinutes));
+            slave.setZone(cloud.zoneOf(getInstanceName()));
+            if (this.preemptible) {
+                slave.setPreemptible(cloud.getPreemptionTracker().usePreemptible(getInstanceName()));
+            }
             Jenkins.getInstance().addNode(slave);
-
-            Future<Node> future = Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                @Override public Node call() throws Exception {
-                    return cloud.setupAndLaunch(slave);
-                }
-            });
-            return new NodeProvisioner.PlannedNode(getInstanceName(), future, slave.getComputer().getNumExecutors());
+            return slave;
         } catch (IOException ioex) {
             LOGGER.log(Level.WARNING, "provision: failed provisioning of " + getInstanceName(), ioex);
             return null;
@@ -199,9 +384,22 @@ public class PersistentSlaveSpec
          * See https://wiki.jenkins.io/display/JENKINS/Form+Validation .
          */
         public FormValidation doCheckInstanceName(@QueryParameter String instanceName) {
-            return instanceName.trim().isEmpty()
-                ? FormValidation.error("Instance name must be filled")
-                : FormValidation.ok();
+            if (instanceName.trim().isEmpty()) {
+                return FormValidation.error("Instance name must be filled");
+            }
+
+            Matcher matcher = RANGE_PATTERN.matcher(instanceName.trim());
+            if (! matcher.matches()) {
+                return FormValidation.ok();
+            }
+            long first = Long.parseLong(matcher.group(2));
+            long last = Long.parseLong(matcher.group(3));
+            if (first > last) {
+                return FormValidation.error("The first number of the range must not exceed the last number");
+            }
+            return last - first + 1 <= MAX_RANGE_SIZE
+                ? FormValidation.ok()
+                : FormValidation.error("A range can contain at most " + MAX_RANGE_SIZE + " instances");
         }
 
         /** Pattern of decimal numbers. */
@@ -216,6 +414,51 @@ public class PersistentSlaveSpec
                 : FormValidation.error("# of executors must be an integer");
         }
 
+        /**
+         * Checks the minutes to keep an idle slave.
+         */
+        public FormValidation doCheckIdleMinutes(@QueryParameter String idleMinutes) {
+            return idleMinutes.trim().isEmpty() || idleMinutes.trim().matches("[0-9]{1,5}")
+                ? FormValidation.ok()
+                : FormValidation.error("Idle minutes must be 0-99999");
+        }
+
+        /** Pattern of cache source disks. */
+        private static final Pattern CACHE_SOURCE_DISK_PATTERN
+            = Pattern.compile("([a-z][-a-z0-9]*/)?[a-z]([-a-z0-9]{0,61}[a-z0-9])?");
+
+        /**
+         * Checks the source disk of the cache snapshots.
+         */
+        public FormValidation doCheckCacheSourceDisk(@QueryParameter String cacheSourceDisk) {
+            return cacheSourceDisk.trim().isEmpty() || CACHE_SOURCE_DISK_PATTERN.matcher(cacheSourceDisk.trim()).matches()
+                ? FormValidation.ok()
+                : FormValidation.error("Cache source disk must be DISK or ZONE/DISK");
+        }
+
+        /**
+         * Checks the interval hours of taking the cache snapshots.
+         */
+        public FormValidation doCheckCacheRefreshHours(@QueryParameter String cacheRefreshHours) {
+            return checkHours(cacheRefreshHours, "Cache refresh hours");
+        }
+
+        /**
+         * Checks the maximum age hours of the cache disk.
+         */
+        public FormValidation doCheckCacheMaxAgeHours(@QueryParameter String cacheMaxAgeHours) {
+            return checkHours(cacheMaxAgeHours, "Cache max age hours");
+        }
+
+        /**
+         * Checks that the hours are empty or 1-9999.
+         */
+        private static FormValidation checkHours(String hours, String title) {
+            return hours.trim().isEmpty() || hours.trim().matches("0*[1-9][0-9]{0,3}")
+                ? FormValidation.ok()
+                : FormValidation.error(title + " must be 1-9999");
+        }
+
         /**
          * Checks remoteFS.
          */
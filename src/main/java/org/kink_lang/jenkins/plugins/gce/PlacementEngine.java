@@ -0,0 +1,234 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.services.compute.model.Operation;
+
+/**
+ * Chooses zones for launching slaves, from the start results of the zones.
+ *
+ * The success rate and the latency of starts are tracked per zone
+ * as exponentially weighted moving averages.
+ * Healthy zones are preferred to unhealthy ones, and faster zones to slower ones.
+ * A zone which returned a stockout is skipped until the cooldown period passes.
+ */
+class PlacementEngine {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(PlacementEngine.class.getName());
+
+    /** The weight of the latest result in the moving averages. */
+    private static final double WEIGHT = 0.2;
+
+    /** The minimum success rate of healthy zones. */
+    private static final double HEALTHY_SUCCESS_RATE = 0.5;
+
+    /** The error code of stockouts. */
+    private static final String STOCKOUT_CODE = "ZONE_RESOURCE_POOL_EXHAUSTED";
+
+    /** The cooldown period after a stockout; guarded by this. */
+    private long cooldownMillis;
+
+    /** Stats keyed by the zones; guarded by this. */
+    private final Map<String, ZoneStats> statsByZone = new HashMap<String, ZoneStats>();
+
+    PlacementEngine(long cooldownMillis) {
+        this.cooldownMillis = cooldownMillis;
+    }
+
+    /**
+     * Changes the cooldown period after a stockout, keeping the stats and the cooldowns in progress.
+     */
+    synchronized void setCooldownMillis(long cooldownMillis) {
+        this.cooldownMillis = cooldownMillis;
+    }
+
+    /**
+     * Records a start or a creation of an instance in the zone.
+     */
+    synchronized void onStart(String zone, boolean success, long latencyMillis) {
+        ZoneStats stats = statsOf(zone);
+        stats.successRate += WEIGHT * ((success ? 1.0 : 0.0) - stats.successRate);
+        if (success) {
+            stats.latencyMillis = stats.successCount == 0
+                ? latencyMillis
+                : stats.latencyMillis + WEIGHT * (latencyMillis - stats.latencyMillis);
+            ++ stats.successCount;
+        }
+    }
+
+    /**
+     * Records a failed start in the zone; a stockout starts the cooldown.
+     */
+    synchronized void onFailure(String zone, boolean stockout) {
+        if (stockout) {
+            LOGGER.warning(String.format("stockout in zone %s; skip the zone for %d ms", zone, this.cooldownMillis));
+            statsOf(zone).cooldownUntilMillis = now() + this.cooldownMillis;
+        }
+        onStart(zone, false, 0);
+    }
+
+    /**
+     * Returns true unless the zone is in the cooldown after a stockout.
+     */
+    synchronized boolean isAvailable(String zone) {
+        ZoneStats stats = this.statsByZone.get(zone);
+        return stats == null || now() >= stats.cooldownUntilMillis;
+    }
+
+    /**
+     * Returns the available zones, the most preferable first.
+     */
+    synchronized List<String> rank(List<String> zones) {
+        List<String> result = new ArrayList<String>();
+        for (String zone : zones) {
+            if (isAvailable(zone)) {
+                result.add(zone);
+            }
+        }
+        Collections.sort(result, new Comparator<String>() {
+            @Override public int compare(String x, String y) {
+                ZoneStats xs = statsOf(x);
+                ZoneStats ys = statsOf(y);
+                boolean xHealthy = xs.successRate >= HEALTHY_SUCCESS_RATE;
+                boolean yHealthy = ys.successRate >= HEALTHY_SUCCESS_RATE;
+                if (xHealthy != yHealthy) {
+                    return xHealthy ? -1 : 1;
+                }
+                return Double.compare(xs.latencyMillis, ys.latencyMillis);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the most preferable available zone; or null if all the zones are in the cooldown.
+     */
+    String choose(List<String> zones) {
+        List<String> ranked = rank(zones);
+        return ranked.isEmpty() ? null : ranked.get(0);
+    }
+
+    /**
+     * Returns a snapshot of the stats keyed by the zones.
+     */
+    synchronized Map<String, ZoneStats> snapshot() {
+        Map<String, ZoneStats> result = new TreeMap<String, ZoneStats>();
+        for (Map.Entry<String, ZoneStats> entry : this.statsByZone.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().copy());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the current time in millis; overridden by tests.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the stats of the zone; called holding the lock.
+     */
+    private ZoneStats statsOf(String zone) {
+        ZoneStats stats = this.statsByZone.get(zone);
+        if (stats == null) {
+            stats = new ZoneStats();
+            this.statsByZone.put(zone, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns true if the operation failed because of a stockout.
+     */
+    static boolean isStockout(Operation op) {
+        if (op.getError() == null || op.getError().getErrors() == null) {
+            return false;
+        }
+        for (Operation.Error.Errors error : op.getError().getErrors()) {
+            if (error.getCode() != null && error.getCode().startsWith(STOCKOUT_CODE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the request failed because of a stockout, judging from the reasons of the errors.
+     */
+    static boolean isStockout(GoogleJsonError error) {
+        if (error.getErrors() == null) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+            if (info.getReason() != null && info.getReason().startsWith(STOCKOUT_CODE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start stats of a zone.
+     */
+    static class ZoneStats {
+
+        /** The moving average of the success rate; unknown zones are considered healthy. */
+        double successRate = 1.0;
+
+        /** The moving average of the latency of successful starts; unknown zones are considered fastest. */
+        double latencyMillis;
+
+        /** # of successful starts. */
+        long successCount;
+
+        /** When the cooldown after a stockout ends. */
+        long cooldownUntilMillis;
+
+        /**
+         * Returns the success rate.
+         */
+        public double getSuccessRate() {
+            return this.successRate;
+        }
+
+        /**
+         * Returns the average start latency in milliseconds.
+         */
+        public long getLatencyMillis() {
+            return Math.round(this.latencyMillis);
+        }
+
+        /**
+         * Returns true if the zone is in the cooldown after a stockout.
+         */
+        public boolean isCoolingDown() {
+            return System.currentTimeMillis() < this.cooldownUntilMillis;
+        }
+
+        /**
+         * Returns a copy of the stats.
+         */
+        ZoneStats copy() {
+            ZoneStats copy = new ZoneStats();
+            copy.successRate = this.successRate;
+            copy.latencyMillis = this.latencyMillis;
+            copy.successCount = this.successCount;
+            copy.cooldownUntilMillis = this.cooldownUntilMillis;
+            return copy;
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
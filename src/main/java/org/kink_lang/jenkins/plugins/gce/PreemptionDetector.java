@@ -0,0 +1,262 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.CauseOfInterruption;
+import jenkins.model.Jenkins;
+
+import hudson.model.Action;
+import hudson.model.Actionable;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.slaves.OfflineCause;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.OperationList;
+
+/**
+ * Detects the preemptions of the instances of the slaves of a cloud,
+ * from the "compute.instances.preempted" operations of the zones.
+ *
+ * A preempted slave is taken offline at once, its running builds are aborted and scheduled again,
+ * and the node is removed, instead of waiting for the agent connection to time out.
+ * The instance of a persistent slave is left stopped, and the instance of an ephemeral slave is deleted.
+ */
+class PreemptionDetector {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(PreemptionDetector.class.getName());
+
+    /** The filter of preemption operations. */
+    private static final String PREEMPTED_FILTER = "operationType eq 'compute\\.instances\\.preempted'";
+
+    /** The time to remember handled operations. */
+    private static final long HANDLED_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** The cloud whose slaves are watched; replaced when the cloud is reconfigured. */
+    private volatile GoogleCloud cloud;
+
+    /** The times of handling the operations keyed by the operation names. */
+    private final ConcurrentMap<String, Long> handled = new ConcurrentHashMap<String, Long>();
+
+    PreemptionDetector(GoogleCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Replaces the cloud by the reconfigured one.
+     */
+    void setCloud(GoogleCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Lists the preemption operations in the zones of the clients, handles the preempted slaves,
+     * and returns # of the handled slaves.
+     *
+     * Nothing is listed if the cloud has no slave.
+     */
+    int poll(List<ComputeClient> clients) {
+        Map<String, Node> slaves = new HashMap<String, Node>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (this.cloud.isSlaveOf(node)) {
+                slaves.put(node.getNodeName(), node);
+            }
+        }
+        if (slaves.isEmpty()) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : this.handled.entrySet()) {
+            if (now - entry.getValue() > HANDLED_EXPIRY_MILLIS) {
+                this.handled.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        int count = 0;
+        for (ComputeClient client : clients) {
+            try {
+                for (Node node : listPreempted(client, slaves)) {
+                    onPreempted(node);
+                    ++ count;
+                }
+            } catch (IOException ioex) {
+                LOGGER.log(Level.WARNING, "failed to list the preemptions in " + client.getZone(), ioex);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the slaves whose instances are preempted in the zone of the client after they were added.
+     */
+    private List<Node> listPreempted(ComputeClient client, Map<String, Node> slaves) throws IOException {
+        Compute.ZoneOperations.List request = client.getCompute().zoneOperations()
+            .list(client.getProject(), client.getZone())
+            .setFilter(PREEMPTED_FILTER)
+            .setMaxResults(500L);
+        List<Node> result = new ArrayList<Node>();
+        String pageToken = null;
+        do {
+            OperationList list = client.execute(request.setPageToken(pageToken));
+            if (list.getItems() != null) {
+                for (Operation op : list.getItems()) {
+                    Node node = slaves.get(instanceName(op.getTargetLink()));
+                    if (node != null && isAfterAdded(op, node)
+                            && this.handled.putIfAbsent(op.getName(), System.currentTimeMillis()) == null) {
+                        result.add(node);
+                    }
+                }
+            }
+            pageToken = list.getNextPageToken();
+        } while (pageToken != null);
+        return result;
+    }
+
+    /**
+     * Returns the last segment of the target link of an operation.
+     */
+    private static String instanceName(String targetLink) {
+        return targetLink == null ? null : targetLink.substring(targetLink.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Returns true if the operation is inserted after the slave was added,
+     * so that it is not the preemption of an earlier run of the instance.
+     */
+    private static boolean isAfterAdded(Operation op, Node node) {
+        Computer computer = node.toComputer();
+        if (op.getInsertTime() == null || ! (computer instanceof GoogleCloudComputer)) {
+            return false;
+        }
+        return DateTime.parseRfc3339(op.getInsertTime()).getValue()
+            >= ((GoogleCloudComputer<?>) computer).getCreatedMillis();
+    }
+
+    /**
+     * Takes the preempted slave offline, schedules its running builds again, and removes the node.
+     */
+    void onPreempted(final Node node) {
+        final String name = node.getNodeName();
+        LOGGER.info("the instance of " + name + " is preempted");
+        final long[] lostBuildMillis = { 0 };
+        Queue.withLock(new Runnable() {
+            @Override public void run() {
+                Computer computer = node.toComputer();
+                if (computer != null) {
+                    computer.setTemporarilyOffline(true, new PreemptedOfflineCause());
+                    lostBuildMillis[0] = requeueBuilds(computer, name);
+                }
+                try {
+                    Jenkins.getInstance().removeNode(node);
+                } catch (IOException ioex) {
+                    LOGGER.log(Level.WARNING, "failed to remove the preempted slave " + name, ioex);
+                }
+            }
+        });
+
+        this.cloud.getPreemptionTracker().onPreempted(node.getLabelString(), lostBuildMillis[0]);
+        this.cloud.getCapacityLedger().remove(name);
+        if (node instanceof PersistentSlave) {
+            this.cloud.getDemandPredictor().onTerminated(name);
+            this.cloud.getInventory().putState(name, "TERMINATED");
+        } else if (node instanceof EphemeralSlave) {
+            this.cloud.deleteInstance(name, ((EphemeralSlave) node).getZone());
+        }
+    }
+
+    /**
+     * Aborts the running builds on the computer, schedules them again with their parameters,
+     * and returns the millis for which the aborted builds ran in total.
+     */
+    private static long requeueBuilds(Computer computer, String name) {
+        long lostBuildMillis = 0;
+        for (Executor executor : computer.getExecutors()) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable == null) {
+                continue;
+            }
+            lostBuildMillis += executor.getElapsedTime();
+
+            List<Action> actions = new ArrayList<Action>();
+            if (executable instanceof Actionable) {
+                actions.addAll(((Actionable) executable).getActions(ParametersAction.class));
+            }
+            actions.add(new CauseAction(new PreemptionCause(name)));
+            executor.interrupt(Result.ABORTED, new PreemptionInterruption(name));
+            Queue.getInstance().schedule2(executable.getParent().getOwnerTask(), 0, actions);
+        }
+        return lostBuildMillis;
+    }
+
+    /**
+     * Offline cause of a preempted slave.
+     */
+    static class PreemptedOfflineCause extends OfflineCause {
+
+        @Override
+        public String toString() {
+            return "The instance was preempted";
+        }
+
+    }
+
+    /**
+     * Cause of a build aborted by a preemption.
+     */
+    static class PreemptionInterruption extends CauseOfInterruption {
+
+        /** The name of the preempted slave. */
+        private final String slaveName;
+
+        PreemptionInterruption(String slaveName) {
+            this.slaveName = slaveName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Aborted because the instance of " + this.slaveName + " was preempted";
+        }
+
+    }
+
+    /**
+     * Cause of a build scheduled again after a preemption.
+     */
+    static class PreemptionCause extends Cause {
+
+        /** The name of the preempted slave. */
+        private final String slaveName;
+
+        PreemptionCause(String slaveName) {
+            this.slaveName = slaveName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Scheduled again because the instance of " + this.slaveName + " was preempted";
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,150 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Statistics of preemptible slaves per label, and the fallback of instances to standard capacity.
+ *
+ * When a preemptible start of an instance fails by a stockout,
+ * the instance is started on standard capacity for the fallback minutes,
+ * then tried on preemptible capacity again.
+ */
+class PreemptionTracker {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(PreemptionTracker.class.getName());
+
+    /** The minutes to use standard capacity after a preemptible start fails. */
+    static final int FALLBACK_MINUTES = 30;
+
+    /** The stats keyed by the labels. */
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /** The times until which the instances use standard capacity, keyed by the instance names. */
+    private final ConcurrentMap<String, Long> fallbacks = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Returns true if the instance of a preemptible spec should be started on preemptible capacity.
+     */
+    boolean usePreemptible(String name) {
+        Long until = this.fallbacks.get(name);
+        if (until == null) {
+            return true;
+        }
+        if (System.currentTimeMillis() < until) {
+            return false;
+        }
+        this.fallbacks.remove(name, until);
+        return true;
+    }
+
+    /**
+     * Records that a preemptible start of the instance failed by a stockout,
+     * so that the instance falls back to standard capacity.
+     */
+    void onStockout(String name, String label) {
+        LOGGER.info("preemptible capacity of " + name + " is out; fall back to standard capacity");
+        this.fallbacks.put(name, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(FALLBACK_MINUTES));
+        statsOf(label).fallbacks.incrementAndGet();
+    }
+
+    /**
+     * Records that a preemptible instance of the label is launched.
+     */
+    void onLaunched(String label) {
+        statsOf(label).launches.incrementAndGet();
+    }
+
+    /**
+     * Records that an instance of the label is preempted, losing the builds which ran for the millis in total.
+     */
+    void onPreempted(String label, long lostBuildMillis) {
+        Stats labelStats = statsOf(label);
+        labelStats.preemptions.incrementAndGet();
+        labelStats.lostBuildMillis.addAndGet(lostBuildMillis);
+    }
+
+    /**
+     * Returns the stats of the label, making it if missing.
+     */
+    private Stats statsOf(String label) {
+        String key = label == null || label.trim().isEmpty() ? CapacityLedger.UNLABELED : label.trim();
+        Stats labelStats = this.stats.get(key);
+        if (labelStats == null) {
+            this.stats.putIfAbsent(key, new Stats());
+            labelStats = this.stats.get(key);
+        }
+        return labelStats;
+    }
+
+    /**
+     * Returns the stats keyed by the labels, sorted.
+     */
+    Map<String, Stats> snapshot() {
+        return new TreeMap<String, Stats>(this.stats);
+    }
+
+    /**
+     * Preemption stats of a label.
+     */
+    static class Stats {
+
+        /** # of launches of preemptible instances. */
+        private final AtomicLong launches = new AtomicLong();
+
+        /** # of preemptions. */
+        private final AtomicLong preemptions = new AtomicLong();
+
+        /** # of fallbacks to standard capacity. */
+        private final AtomicLong fallbacks = new AtomicLong();
+
+        /** The millis of the builds lost by preemptions. */
+        private final AtomicLong lostBuildMillis = new AtomicLong();
+
+        /**
+         * Returns # of launches of preemptible instances.
+         */
+        long getLaunches() {
+            return this.launches.get();
+        }
+
+        /**
+         * Returns # of preemptions.
+         */
+        long getPreemptions() {
+            return this.preemptions.get();
+        }
+
+        /**
+         * Returns # of fallbacks to standard capacity.
+         */
+        long getFallbacks() {
+            return this.fallbacks.get();
+        }
+
+        /**
+         * Returns the minutes of the builds lost by preemptions.
+         */
+        double getLostBuildMinutes() {
+            return this.lostBuildMillis.get() / 60000.0;
+        }
+
+        /**
+         * Returns # of preemptions per launch of a preemptible instance; or 0 if nothing is launched.
+         */
+        double getPreemptionRate() {
+            long launchCount = this.launches.get();
+            return launchCount == 0 ? 0 : (double) this.preemptions.get() / launchCount;
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,301 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.SlaveComputer;
+
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.compute.model.SerialPortOutput;
+
+/**
+ * Streams the serial port output of started instances into the logs of their computers
+ * until the agents connect.
+ *
+ * A single task on the shared Jenkins timer schedules fetching rounds on the executor of the cloud,
+ * which fetch the output of all the streams in batch requests per zone.
+ * Each fetch starts at the offset returned by the previous one, so only new bytes are downloaded.
+ * The output is written line by line; a fetch writes at most MAX_CHUNK_CHARS,
+ * and a stream writes at most MAX_STREAM_CHARS in total, skipping the excess.
+ * A stream ends when the computer gets online, the node is removed, or MAX_STREAM_MINUTES pass.
+ */
+class SerialPortStreamer {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(SerialPortStreamer.class.getName());
+
+    /** The interval of fetching rounds. */
+    private static final long TICK_MILLIS = 5000;
+
+    /** The maximum # of chars written per fetch. */
+    static final int MAX_CHUNK_CHARS = 64 * 1024;
+
+    /** The maximum # of chars written per stream. */
+    static final int MAX_STREAM_CHARS = 1024 * 1024;
+
+    /** The maximum length of an unterminated line kept until the next fetch. */
+    static final int MAX_PARTIAL_LINE_CHARS = 8 * 1024;
+
+    /** The maximum minutes of a stream. */
+    private static final long MAX_STREAM_MINUTES = 30;
+
+    /** The prefix of the lines written to the logs. */
+    static final String LINE_PREFIX = "[serial] ";
+
+    /** The recorder of batch latencies. */
+    private final LatencyRecorder latencies;
+
+    /** The executor of the fetches. */
+    private final Executor executor;
+
+    /** The streams keyed by the instance names; guarded by this. */
+    private final Map<String, Stream> streams = new LinkedHashMap<String, Stream>();
+
+    /** Whether a fetching round is scheduled; guarded by this. */
+    private boolean scheduled;
+
+    SerialPortStreamer(LatencyRecorder latencies, Executor executor) {
+        this.latencies = latencies;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts streaming the serial port output of the instance of the slave into the log of its computer.
+     */
+    void stream(ComputeClient client, Node slave) {
+        synchronized (this) {
+            this.streams.put(slave.getNodeName(), new Stream(client, slave));
+            scheduleIfNeeded();
+        }
+    }
+
+    /**
+     * Returns # of streams.
+     */
+    synchronized int size() {
+        return this.streams.size();
+    }
+
+    /**
+     * Schedules a fetching round unless it is already scheduled; called holding the lock.
+     */
+    private void scheduleIfNeeded() {
+        if (this.scheduled || this.streams.isEmpty()) {
+            return;
+        }
+        this.scheduled = true;
+        Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override public void run() {
+                            try {
+                                fetchAll();
+                            } catch (RuntimeException rex) {
+                                LOGGER.log(Level.WARNING, "failed to fetch serial port output", rex);
+                            } finally {
+                                endRound();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException rex) {
+                    LOGGER.log(Level.WARNING, "cannot fetch serial port output", rex);
+                    endRound();
+                }
+            }
+        }, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ends the fetching round, and schedules the next one if needed.
+     */
+    private synchronized void endRound() {
+        this.scheduled = false;
+        scheduleIfNeeded();
+    }
+
+    /**
+     * Ends the finished streams, and fetches the output of the others, grouping them by the zones.
+     */
+    private void fetchAll() {
+        Map<String, List<Stream>> streamsByZone = new LinkedHashMap<String, List<Stream>>();
+        synchronized (this) {
+            for (Stream stream : new ArrayList<Stream>(this.streams.values())) {
+                String reason = stream.getEndReason();
+                if (reason != null) {
+                    this.streams.remove(stream.name);
+                    stream.println("-- serial port streaming ended: " + reason);
+                    continue;
+                }
+                List<Stream> zoneStreams = streamsByZone.get(stream.client.getZone());
+                if (zoneStreams == null) {
+                    zoneStreams = new ArrayList<Stream>();
+                    streamsByZone.put(stream.client.getZone(), zoneStreams);
+                }
+                zoneStreams.add(stream);
+            }
+        }
+
+        for (Map.Entry<String, List<Stream>> entry : streamsByZone.entrySet()) {
+            try {
+                fetch(entry.getValue().get(0).client, entry.getValue());
+            } catch (IOException ioex) {
+                LOGGER.log(Level.FINE, "failed to fetch serial port output in " + entry.getKey(), ioex);
+            }
+        }
+    }
+
+    /**
+     * Fetches the new output of the streams in the zone of the client in batch requests.
+     */
+    private void fetch(ComputeClient client, List<Stream> clientStreams) throws IOException {
+        Batches batches = new Batches(client, this.latencies);
+        for (final Stream stream : clientStreams) {
+            batches.queue(client.getCompute().instances()
+                    .getSerialPortOutput(client.getProject(), client.getZone(), stream.name)
+                    .setStart(stream.offset),
+                    new JsonBatchCallback<SerialPortOutput>() {
+                        @Override public void onSuccess(SerialPortOutput output, HttpHeaders headers) {
+                            stream.append(output);
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            LOGGER.fine("failed to get serial port output of " + stream.name + ": " + error.getMessage());
+                        }
+                    });
+        }
+        batches.execute("serialPort");
+    }
+
+    /**
+     * Serial port output streamed into the log of a computer.
+     */
+    static class Stream {
+
+        /** The client of the zone of the instance. */
+        final ComputeClient client;
+
+        /** The slave. */
+        final Node slave;
+
+        /** The name of the instance. */
+        final String name;
+
+        /** When the stream began. */
+        final long startedNanos = System.nanoTime();
+
+        /** The offset of the next fetch; or null to fetch from the beginning of the buffered output. */
+        volatile Long offset;
+
+        /** The unterminated last line of the output. */
+        private final StringBuilder partialLine = new StringBuilder();
+
+        /** # of chars written. */
+        private long writtenChars;
+
+        Stream(ComputeClient client, Node slave) {
+            this(client, slave, slave.getNodeName());
+        }
+
+        Stream(ComputeClient client, Node slave, String name) {
+            this.client = client;
+            this.slave = slave;
+            this.name = name;
+        }
+
+        /**
+         * Returns the reason to end the stream; or null if the stream continues.
+         */
+        String getEndReason() {
+            Computer computer = this.slave.toComputer();
+            if (computer == null) {
+                return "the node is removed";
+            }
+            if (computer.isOnline()) {
+                return "the agent is connected";
+            }
+            if (System.nanoTime() - this.startedNanos > TimeUnit.MINUTES.toNanos(MAX_STREAM_MINUTES)) {
+                return "timed out";
+            }
+            return null;
+        }
+
+        /**
+         * Writes the complete lines of the output, and advances the offset.
+         */
+        synchronized void append(SerialPortOutput output) {
+            if (output.getNext() != null) {
+                this.offset = output.getNext();
+            }
+            String contents = output.getContents();
+            if (contents == null || contents.isEmpty() || this.writtenChars >= MAX_STREAM_CHARS) {
+                return;
+            }
+            if (contents.length() > MAX_CHUNK_CHARS) {
+                println("-- skipped " + (contents.length() - MAX_CHUNK_CHARS) + " chars of serial port output");
+                contents = contents.substring(contents.length() - MAX_CHUNK_CHARS);
+                this.partialLine.setLength(0);
+            }
+
+            this.partialLine.append(contents);
+            int end = this.partialLine.lastIndexOf("\n");
+            if (end >= 0) {
+                for (String line : this.partialLine.substring(0, end).split("\r?\n", -1)) {
+                    println(LINE_PREFIX + line);
+                }
+                this.partialLine.delete(0, end + 1);
+            }
+            if (this.partialLine.length() > MAX_PARTIAL_LINE_CHARS) {
+                println(LINE_PREFIX + this.partialLine);
+                this.partialLine.setLength(0);
+            }
+            if (this.writtenChars >= MAX_STREAM_CHARS) {
+                println("-- serial port output exceeds " + MAX_STREAM_CHARS + " chars; the rest is not written");
+            }
+        }
+
+        /**
+         * Writes the line to the log of the computer, if the log is open.
+         */
+        synchronized void println(String line) {
+            if (write(line)) {
+                this.writtenChars += line.length() + 1;
+            }
+        }
+
+        /**
+         * Writes the line to the log of the computer, and returns true; or returns false if the log is not open.
+         * Overridden by tests.
+         */
+        boolean write(String line) {
+            Computer computer = this.slave.toComputer();
+            TaskListener listener = computer instanceof SlaveComputer ? ((SlaveComputer) computer).getListener() : null;
+            if (listener == null) {
+                return false;
+            }
+            PrintStream logger = listener.getLogger();
+            logger.println(line);
+            return true;
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,113 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+
+/**
+ * Immutable index from labels to the slave specs which match them.
+ *
+ * Specs of instance name ranges are expanded to the specs of the concrete instances
+ * when the index is made, so the configured list keeps one entry per range.
+ *
+ * A label which is a single atom is looked up in the atom table built up front.
+ * The result for any other label expression is computed once by a scan, then memoized.
+ */
+class SpecIndex {
+
+    /** All the concrete specs in the configured order. */
+    private final List<PersistentSlaveSpec> specs;
+
+    /** The instance names of the specs. */
+    private final List<String> instanceNames;
+
+    /** The specs keyed by each of their label atoms. */
+    private final Map<LabelAtom, List<PersistentSlaveSpec>> specsByAtom;
+
+    /** Memoized specs matching label expressions. */
+    private final ConcurrentMap<Label, List<PersistentSlaveSpec>> specsByLabel
+        = new ConcurrentHashMap<Label, List<PersistentSlaveSpec>>();
+
+    SpecIndex(List<PersistentSlaveSpec> specs) {
+        List<PersistentSlaveSpec> expanded = new ArrayList<PersistentSlaveSpec>();
+        List<String> names = new ArrayList<String>();
+        if (specs != null) {
+            for (PersistentSlaveSpec spec : specs) {
+                for (PersistentSlaveSpec concrete : spec.expand()) {
+                    expanded.add(concrete);
+                    names.add(concrete.getInstanceName());
+                }
+            }
+        }
+        this.specs = Collections.unmodifiableList(expanded);
+        this.instanceNames = Collections.unmodifiableList(names);
+
+        Map<LabelAtom, List<PersistentSlaveSpec>> byAtom = new HashMap<LabelAtom, List<PersistentSlaveSpec>>();
+        for (PersistentSlaveSpec spec : this.specs) {
+            for (LabelAtom atom : spec.getLabelAtoms()) {
+                List<PersistentSlaveSpec> list = byAtom.get(atom);
+                if (list == null) {
+                    list = new ArrayList<PersistentSlaveSpec>();
+                    byAtom.put(atom, list);
+                }
+                list.add(spec);
+            }
+        }
+        this.specsByAtom = byAtom;
+    }
+
+    /**
+     * Returns all the concrete specs.
+     */
+    List<PersistentSlaveSpec> getSpecs() {
+        return this.specs;
+    }
+
+    /**
+     * Returns the instance names of all the concrete specs.
+     */
+    List<String> getInstanceNames() {
+        return this.instanceNames;
+    }
+
+    /**
+     * Returns the specs whose labels match the label, in the configured order.
+     *
+     * A null label, which is required by unlabeled tasks, matches all the specs.
+     */
+    List<PersistentSlaveSpec> getCandidates(Label label) {
+        if (label == null) {
+            return this.specs;
+        }
+
+        if (label instanceof LabelAtom) {
+            List<PersistentSlaveSpec> list = this.specsByAtom.get(label);
+            return list == null ? Collections.<PersistentSlaveSpec>emptyList() : list;
+        }
+
+        List<PersistentSlaveSpec> memo = this.specsByLabel.get(label);
+        if (memo != null) {
+            return memo;
+        }
+
+        List<PersistentSlaveSpec> result = new ArrayList<PersistentSlaveSpec>();
+        for (PersistentSlaveSpec spec : this.specs) {
+            if (label.matches(spec.getLabelAtoms())) {
+                result.add(spec);
+            }
+        }
+        result = Collections.unmodifiableList(result);
+        this.specsByLabel.putIfAbsent(label, result);
+        return result;
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,210 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Node;
+
+/**
+ * Reconciles the slave nodes restored from the config with the instances, after a restart.
+ *
+ * The instances are listed by one refresh of the inventory, then:
+ * live instances with nodes are re-attached to the nodes;
+ * live spec instances without nodes are orphans, and stopped in batch requests;
+ * offline nodes whose instances are missing or stopped are removed.
+ * Each cloud is reconciled on its own executor, so the startup is not delayed.
+ */
+public class StartupReconciler {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(StartupReconciler.class.getName());
+
+    /** The states in which the instance is running or going to run. */
+    private static final Set<String> LIVE_STATES = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("PROVISIONING", "STAGING", "RUNNING")));
+
+    /** The cloud to reconcile. */
+    private final GoogleCloud cloud;
+
+    StartupReconciler(GoogleCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Schedules the reconciliation of all the GoogleClouds, after the nodes are loaded.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void reconcileAll() {
+        for (final GoogleCloud cloud : Jenkins.getInstance().clouds.getAll(GoogleCloud.class)) {
+            final List<Node> restored = restoredNodes(cloud);
+            cloud.getExecutor().execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        new StartupReconciler(cloud).reconcile(restored);
+                    } catch (RuntimeException rex) {
+                        LOGGER.log(Level.WARNING, "failed startup reconciliation of cloud " + cloud.name, rex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the slave nodes of the cloud.
+     */
+    private static List<Node> restoredNodes(GoogleCloud cloud) {
+        List<Node> result = new ArrayList<Node>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if ((node instanceof PersistentSlave && cloud.name.equals(((PersistentSlave) node).getCloudName()))
+                    || (node instanceof EphemeralSlave && cloud.name.equals(((EphemeralSlave) node).getCloudName()))) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reconciles the restored nodes and the spec instances with the listed instances.
+     *
+     * Nothing is changed if the instances cannot be listed.
+     */
+    void reconcile(List<Node> restored) {
+        Set<String> names = new LinkedHashSet<String>(this.cloud.getSpecIndex().getInstanceNames());
+        Map<String, Node> nodes = new HashMap<String, Node>();
+        for (Node node : restored) {
+            nodes.put(node.getNodeName(), node);
+            names.add(node.getNodeName());
+        }
+
+        InstanceInventory inventory = this.cloud.getInventory();
+        long refreshCount = inventory.getRefreshCount();
+        try {
+            inventory.refreshIfStale(this.cloud.getComputeClients(), names, 0);
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, "cannot make the compute client of cloud " + this.cloud.name, ex);
+            return;
+        }
+        if (inventory.getRefreshCount() == refreshCount) {
+            LOGGER.warning("cannot list the instances; skip the startup reconciliation of cloud " + this.cloud.name);
+            return;
+        }
+
+        int attached = 0;
+        int removed = 0;
+        Map<String, List<String>> orphansByZone = new LinkedHashMap<String, List<String>>();
+        for (String name : names) {
+            String state = inventory.getState(name);
+            String zone = inventory.getZone(name);
+            Node node = nodes.get(name);
+            if (node == null) {
+                if (LIVE_STATES.contains(state)) {
+                    List<String> orphans = orphansByZone.get(zone);
+                    if (orphans == null) {
+                        orphans = new ArrayList<String>();
+                        orphansByZone.put(zone, orphans);
+                    }
+                    orphans.add(name);
+                }
+            } else if (LIVE_STATES.contains(state)) {
+                reattach(node, zone);
+                ++ attached;
+            } else if (isOffline(node) && remove(node, state, zone)) {
+                ++ removed;
+            }
+        }
+
+        int stopped = 0;
+        for (Map.Entry<String, List<String>> entry : orphansByZone.entrySet()) {
+            stopped += stopOrphans(entry.getKey(), entry.getValue());
+        }
+        LOGGER.info(String.format(
+                    "startup reconciliation of cloud %s: %d nodes re-attached, %d orphans stopped, %d stale nodes removed",
+                    this.cloud.name, attached, stopped, removed));
+    }
+
+    /**
+     * Re-attaches the restored node to the live instance in the zone.
+     *
+     * The agent on the instance reconnects by itself,
+     * so only the zone of the node is recorded, if it was not recorded yet.
+     */
+    private void reattach(Node node, String zone) {
+        LOGGER.fine("re-attach the node " + node.getNodeName() + " in " + zone);
+        if (node instanceof PersistentSlave && ((PersistentSlave) node).getZone() == null) {
+            ((PersistentSlave) node).setZone(zone);
+        } else if (node instanceof EphemeralSlave && ((EphemeralSlave) node).getZone() == null) {
+            ((EphemeralSlave) node).setZone(zone);
+        }
+    }
+
+    /**
+     * Returns true if the node is not connected.
+     */
+    private static boolean isOffline(Node node) {
+        Computer computer = node.toComputer();
+        return computer == null || computer.isOffline();
+    }
+
+    /**
+     * Removes the stale node without stopping the instance, and returns true if removed.
+     *
+     * The stopped instance of an ephemeral slave is deleted.
+     */
+    private boolean remove(Node node, String state, String zone) {
+        LOGGER.info("remove the stale node " + node.getNodeName() + " whose instance is " + state);
+        try {
+            Jenkins.getInstance().removeNode(node);
+        } catch (IOException ioex) {
+            LOGGER.log(Level.WARNING, "failed to remove the stale node " + node.getNodeName(), ioex);
+            return false;
+        }
+        if (node instanceof EphemeralSlave && state != null) {
+            this.cloud.deleteInstance(node.getNodeName(), zone);
+        }
+        return true;
+    }
+
+    /**
+     * Stops or suspends the orphan instances in the zone in batch requests, and returns # of issued stops.
+     *
+     * The stops are registered as pending before checking the nodes,
+     * so that the instances are not provisioned concurrently.
+     */
+    private int stopOrphans(String zone, List<String> names) {
+        PendingStops stops = this.cloud.getPendingStops();
+        List<String> orphans = new ArrayList<String>();
+        for (String name : names) {
+            stops.begin(name);
+            if (Jenkins.getInstance().getNode(name) != null) {
+                stops.finish(name);
+            } else {
+                LOGGER.info("stop the orphan instance " + name);
+                orphans.add(name);
+            }
+        }
+        if (! orphans.isEmpty()) {
+            this.cloud.stopAll(zone, orphans);
+        }
+        return orphans.size();
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
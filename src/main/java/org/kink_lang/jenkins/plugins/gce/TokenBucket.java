@@ -0,0 +1,63 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket which limits the rate of requests.
+ *
+ * A caller reserves a token even if the bucket is empty, and sleeps until the token is refilled,
+ * so the callers are served in the order of arrival.
+ */
+class TokenBucket {
+
+    /** Tokens refilled per nanosecond; or 0 if the rate is unlimited. */
+    private final double tokensPerNano;
+
+    /** The maximum # of tokens, which is the burst size. */
+    private final double capacity;
+
+    /** The current # of tokens; negative if tokens are reserved in advance. Guarded by this. */
+    private double tokens;
+
+    /** When the tokens were refilled last. Guarded by this. */
+    private long refilledNanos;
+
+    /**
+     * Makes a bucket refilled by the rate; 0 means unlimited.
+     */
+    TokenBucket(double tokensPerSecond) {
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, tokensPerSecond);
+        this.tokens = this.capacity;
+        this.refilledNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a token, sleeping until it is available.
+     *
+     * Returns true if the caller had to wait.
+     */
+    boolean acquire() throws InterruptedException {
+        if (this.tokensPerNano <= 0) {
+            return false;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.refilledNanos) * this.tokensPerNano);
+            this.refilledNanos = now;
+            this.tokens -= 1;
+            waitNanos = this.tokens >= 0 ? 0 : (long) (- this.tokens / this.tokensPerNano);
+        }
+
+        if (waitNanos <= 0) {
+            return false;
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+        return true;
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,295 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jenkins.slaves.JnlpSlaveAgentProtocol;
+
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Metadata;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Pool of stopped instances whose metadata is already prepared for launching.
+ *
+ * The JNLP secret of a slave is derived from the node name,
+ * so it can be attached to the instance metadata before the node is added.
+ * Launching a pooled instance takes only a start call.
+ *
+ * The pool holds the names of its instances explicitly.
+ * An instance joins the pool when the secret is confirmed on it, and leaves the pool when it is launched,
+ * when it is used or started otherwise, or when the metadata updater invalidates it.
+ * The secrets of the instances joining the pool are written in one batch request per zone,
+ * and the operations are confirmed by the operation watcher, so replenishing does not wait for them.
+ * An instance whose secret is already confirmed, such as one launched before, joins the pool without any call.
+ */
+class WarmPool {
+
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(WarmPool.class.getName());
+
+    /** The metadata key of the JNLP secret. */
+    static final String SECRET_KEY = "jenkinsSecret";
+
+    /** The updater of the metadata. */
+    private final MetadataUpdater metadataUpdater;
+
+    /** The names of the instances in the pool; guarded by this. */
+    private final Set<String> pooled = new LinkedHashSet<String>();
+
+    /** The names of the instances whose secrets are being written; guarded by this. */
+    private final Set<String> preparing = new HashSet<String>();
+
+    WarmPool(MetadataUpdater metadataUpdater) {
+        this.metadataUpdater = metadataUpdater;
+    }
+
+    /**
+     * Returns true if the instance is in the pool.
+     */
+    synchronized boolean isPooled(String name) {
+        return this.pooled.contains(name);
+    }
+
+    /**
+     * Takes the instance out of the pool for launching, and returns true if it was in the pool.
+     */
+    synchronized boolean take(String name) {
+        return this.pooled.remove(name);
+    }
+
+    /**
+     * Returns the metadata items which prepare the instance.
+     */
+    private static Map<String, String> itemsOf(String name) {
+        return Collections.singletonMap(SECRET_KEY, secretOf(name));
+    }
+
+    /**
+     * Returns the JNLP secret of the slave named as the instance.
+     */
+    static String secretOf(String name) {
+        return JnlpSlaveAgentProtocol.SLAVE_SECRET.mac(name);
+    }
+
+    /**
+     * Returns # of pooled instances which are not used as nodes.
+     */
+    synchronized int countIdle(List<PersistentSlaveSpec> specs) {
+        int count = 0;
+        for (PersistentSlaveSpec spec : specs) {
+            String name = spec.getInstanceName();
+            if (this.pooled.contains(name) && Jenkins.getInstance().getNode(name) == null) {
+                ++ count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes the instances which are no longer idle, stopped and prepared from the pool,
+     * then prepares stopped instances which are not used as nodes, until the pool and the preparing instances have the size.
+     *
+     * The secrets are written without waiting for the operations.
+     */
+    void replenish(ComputeClient client, OperationWatcher watcher, LatencyRecorder latencies,
+            List<PersistentSlaveSpec> specs, InstanceInventory inventory, int size) {
+        Map<String, Map<String, String>> targetsByZone = new LinkedHashMap<String, Map<String, String>>();
+        synchronized (this) {
+            Set<String> names = new HashSet<String>();
+            for (PersistentSlaveSpec spec : specs) {
+                String name = spec.getInstanceName();
+                names.add(name);
+                if (this.pooled.contains(name) && ! isIdle(name, inventory)) {
+                    this.pooled.remove(name);
+                }
+            }
+            this.pooled.retainAll(names);
+
+            int count = this.pooled.size() + this.preparing.size();
+            for (PersistentSlaveSpec spec : specs) {
+                if (count >= size) {
+                    break;
+                }
+
+                String name = spec.getInstanceName();
+                if (this.pooled.contains(name) || this.preparing.contains(name)
+                        || Jenkins.getInstance().getNode(name) != null
+                        || ! isStopped(inventory.getState(name))) {
+                    continue;
+                }
+
+                ++ count;
+                Map<String, String> items = itemsOf(name);
+                if (this.metadataUpdater.isConfirmed(name, items)) {
+                    this.pooled.add(name);
+                    continue;
+                }
+                this.preparing.add(name);
+                String zone = inventory.getZone(name);
+                Map<String, String> targets = targetsByZone.get(zone);
+                if (targets == null) {
+                    targets = new LinkedHashMap<String, String>();
+                    targetsByZone.put(zone, targets);
+                }
+                targets.put(name, items.get(SECRET_KEY));
+            }
+        }
+
+        for (Map.Entry<String, Map<String, String>> entry : targetsByZone.entrySet()) {
+            Map<String, String> targets = entry.getValue();
+            try {
+                prepareAll(client.withZone(entry.getKey()), watcher, latencies, targets);
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "failed to prepare " + targets.keySet() + " for the warm pool", ex);
+                synchronized (this) {
+                    this.preparing.removeAll(targets.keySet());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the instance is stopped, not used as a node, and its secret is still confirmed.
+     */
+    private boolean isIdle(String name, InstanceInventory inventory) {
+        return Jenkins.getInstance().getNode(name) == null
+            && isStopped(inventory.getState(name))
+            && this.metadataUpdater.isConfirmed(name, itemsOf(name));
+    }
+
+    /**
+     * Returns true if the state is of a stopped instance.
+     */
+    private static boolean isStopped(String state) {
+        return "TERMINATED".equals(state) || "STOPPED".equals(state);
+    }
+
+    /**
+     * Gets the instances in one batch request and writes the secrets in another,
+     * then lets the watcher confirm the operations.
+     *
+     * An instance whose write fails, including by a fingerprint conflict, is left to the next replenishment.
+     */
+    private void prepareAll(final ComputeClient client, OperationWatcher watcher, LatencyRecorder latencies,
+            Map<String, String> secrets) throws IOException {
+        final Compute compute = client.getCompute();
+        final Map<String, Instance> instances = new HashMap<String, Instance>();
+        Batches gets = new Batches(client, latencies);
+        for (final String name : secrets.keySet()) {
+            gets.queue(compute.instances().get(client.getProject(), client.getZone(), name),
+                    new JsonBatchCallback<Instance>() {
+                        @Override public void onSuccess(Instance instance, HttpHeaders headers) {
+                            instances.put(name, instance);
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            onFailed(name, "failed to get the instance: " + error.getMessage());
+                        }
+                    });
+        }
+        gets.execute("pool.get");
+
+        final Map<String, Operation> metadataOps = new LinkedHashMap<String, Operation>();
+        Batches setMetadatas = new Batches(client, latencies);
+        for (Map.Entry<String, String> entry : secrets.entrySet()) {
+            final String name = entry.getKey();
+            Instance instance = instances.get(name);
+            if (instance == null) {
+                continue;
+            }
+
+            Map<String, String> items = Collections.singletonMap(SECRET_KEY, entry.getValue());
+            Metadata metadata = MetadataUpdater.diff(instance.getMetadata(), items);
+            if (metadata == null) {
+                this.metadataUpdater.onUnchanged(name, items);
+                onPrepared(name);
+                continue;
+            }
+            setMetadatas.queue(compute.instances().setMetadata(client.getProject(), client.getZone(), name, metadata),
+                    new JsonBatchCallback<Operation>() {
+                        @Override public void onSuccess(Operation op, HttpHeaders headers) {
+                            metadataOps.put(name, op);
+                        }
+
+                        @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            if (MetadataUpdater.isConflict(error)) {
+                                metadataUpdater.onConflict(name);
+                            }
+                            onFailed(name, "failed to add metadata: " + error.getMessage());
+                        }
+                    });
+        }
+        setMetadatas.execute("pool.setMetadata");
+
+        for (Map.Entry<String, Operation> entry : metadataOps.entrySet()) {
+            final String name = entry.getKey();
+            final Map<String, String> items = Collections.singletonMap(SECRET_KEY, secrets.get(name));
+            final ListenableFuture<Operation> done = watcher.watch(client, entry.getValue());
+            done.addListener(new Runnable() {
+                @Override public void run() {
+                    Operation op = getDone(done);
+                    if (op != null && OperationTracker.isSuccessful(op)) {
+                        metadataUpdater.confirm(name, items);
+                        onPrepared(name);
+                    } else {
+                        metadataUpdater.invalidate(name);
+                        onFailed(name, "failed to add metadata");
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+
+    /**
+     * Moves the prepared instance into the pool.
+     */
+    private synchronized void onPrepared(String name) {
+        if (this.preparing.remove(name)) {
+            this.pooled.add(name);
+        }
+    }
+
+    /**
+     * Gives up preparing the instance in this replenishment.
+     */
+    private synchronized void onFailed(String name, String reason) {
+        LOGGER.warning("warm pool: " + reason + " for " + name);
+        this.preparing.remove(name);
+    }
+
+    /**
+     * Returns the result of the done future; or null if the future failed.
+     */
+    private static Operation getDone(ListenableFuture<Operation> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException eex) {
+            LOGGER.log(Level.WARNING, "operation failed", eex.getCause());
+            return null;
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,141 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the state transitions of CircuitBreaker.
+ */
+public class CircuitBreakerTest {
+
+    /** The first open window. */
+    private static final long MIN_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** The current time of the breaker. */
+    private long nowMillis;
+
+    /** The breaker whose clock is nowMillis. */
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        this.nowMillis = 1000000;
+        this.breaker = new CircuitBreaker("test") {
+            @Override long now() {
+                return nowMillis;
+            }
+        };
+    }
+
+    /**
+     * Fails the breaker the times.
+     */
+    private void fail(int times) {
+        for (int i = 0; i < times; ++ i) {
+            this.breaker.onFailure("failure " + i);
+        }
+    }
+
+    @Test
+    public void closedAllowsUnlimitedLaunches() {
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+        assertTrue(this.breaker.allowsLaunch());
+        assertEquals(-1, this.breaker.beginProvision());
+    }
+
+    @Test
+    public void opensAtThreshold() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+
+        fail(1);
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        assertFalse(this.breaker.allowsLaunch());
+        assertEquals(0, this.breaker.beginProvision());
+    }
+
+    @Test
+    public void successResetsFailures() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        this.breaker.onSuccess();
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+    }
+
+    @Test
+    public void halfOpenAfterWindow() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        this.nowMillis += MIN_OPEN_MILLIS - 1;
+        assertFalse(this.breaker.allowsLaunch());
+
+        this.nowMillis += 1;
+        assertTrue(this.breaker.allowsLaunch());
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        assertEquals(1, this.breaker.beginProvision());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+        assertFalse(this.breaker.allowsLaunch());
+        assertEquals(0, this.breaker.beginProvision());
+    }
+
+    @Test
+    public void successfulProbeCloses() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        this.nowMillis += MIN_OPEN_MILLIS;
+        this.breaker.beginProvision();
+        this.breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+        assertEquals(-1, this.breaker.beginProvision());
+    }
+
+    @Test
+    public void failedProbeDoublesWindow() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        this.nowMillis += MIN_OPEN_MILLIS;
+        this.breaker.beginProvision();
+        fail(1);
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+
+        this.nowMillis += MIN_OPEN_MILLIS;
+        assertFalse(this.breaker.allowsLaunch());
+        this.nowMillis += MIN_OPEN_MILLIS;
+        assertTrue(this.breaker.allowsLaunch());
+    }
+
+    @Test
+    public void windowIsCapped() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        for (int i = 0; i < 10; ++ i) {
+            this.nowMillis += TimeUnit.MINUTES.toMillis(30);
+            assertEquals(1, this.breaker.beginProvision());
+            fail(1);
+        }
+        this.nowMillis += TimeUnit.MINUTES.toMillis(30);
+        assertTrue(this.breaker.allowsLaunch());
+    }
+
+    @Test
+    public void cancelledProbeReopensWithoutDoubling() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        this.nowMillis += MIN_OPEN_MILLIS;
+        assertEquals(1, this.breaker.beginProvision());
+        this.breaker.cancelProbe();
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        assertTrue(this.breaker.allowsLaunch());
+        assertEquals(1, this.breaker.beginProvision());
+    }
+
+    @Test
+    public void cancelProbeIgnoredWhenClosed() {
+        this.breaker.cancelProbe();
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,410 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceList;
+import com.google.api.services.compute.model.Metadata;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.OperationList;
+import com.google.api.services.compute.model.SerialPortOutput;
+
+/**
+ * Stub of the Compute API served from memory through MockHttpTransport, for tests and benchmarks.
+ *
+ * Instances are made on demand in the TERMINATED state, and actions such as start and stop change the state.
+ * Writes return RUNNING operations which get DONE after the simulated operation duration,
+ * so that launches go through the operation watcher as on GCE;
+ * the operations are DONE at the first check if the duration is 0.
+ * Operation gets return the current status, and the wait endpoint blocks until the operation is DONE,
+ * or at most MAX_WAIT_MILLIS as GCE does.
+ * Batch requests are split into the parts, and answered by multipart responses.
+ * Each HTTP request, not each part, sleeps for the simulated latency.
+ */
+class ComputeStub extends MockHttpTransport {
+
+    /** The root URL of the stub API, passed as {@link ComputeClient#ROOT_URL_PROPERTY}. */
+    static final String ROOT_URL = "https://compute.stub/";
+
+    /** The path prefix of the resources of projects. */
+    private static final String PROJECTS_PATH = "/compute/v1/projects/";
+
+    /** The boundary of multipart responses. */
+    private static final String BOUNDARY = "stub_boundary";
+
+    /** The CRLF of HTTP messages. */
+    private static final String CRLF = "\r\n";
+
+    /** Pattern of the name filter of instance lists. */
+    private static final Pattern NAME_FILTER_PATTERN = Pattern.compile("name eq '\\((.*)\\)'");
+
+    /** The JSON factory of the responses. */
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    /** The maximum time for which the wait endpoint blocks. */
+    private static final long MAX_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    /** The simulated latency of each HTTP request. */
+    private final long latencyMillis;
+
+    /** The simulated duration of each operation. */
+    private final long operationMillis;
+
+    /** When the operations get DONE in System.nanoTime, keyed by the operation names. */
+    private final ConcurrentMap<String, Long> operationDoneNanos = new ConcurrentHashMap<String, Long>();
+
+    /** The states of the instances keyed by "zone/name". */
+    private final ConcurrentMap<String, String> states = new ConcurrentHashMap<String, String>();
+
+    /** The sequence of operation names. */
+    private final AtomicLong operationSeq = new AtomicLong();
+
+    /** # of HTTP requests. */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /** # of batch requests. */
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /** # of API calls, counting each part of batch requests. */
+    private final AtomicLong callCount = new AtomicLong();
+
+    /** Whether instance lists fail. */
+    private volatile boolean listFailing;
+
+    ComputeStub(long latencyMillis) {
+        this(latencyMillis, 0);
+    }
+
+    ComputeStub(long latencyMillis, long operationMillis) {
+        this.latencyMillis = latencyMillis;
+        this.operationMillis = operationMillis;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(final String method, final String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override public LowLevelHttpResponse execute() throws IOException {
+                requestCount.incrementAndGet();
+                simulateLatency();
+                if (new GenericUrl(url).getRawPath().endsWith("/batch")) {
+                    batchCount.incrementAndGet();
+                    return respondBatch(getContentType(), getContentAsString());
+                }
+                Reply reply = handle(method, url, getContentAsString());
+                return new MockLowLevelHttpResponse()
+                    .setStatusCode(reply.status)
+                    .setContentType(Json.MEDIA_TYPE)
+                    .setContent(reply.body);
+            }
+        };
+    }
+
+    /**
+     * Sleeps for the simulated latency.
+     */
+    private void simulateLatency() throws IOException {
+        sleep(this.latencyMillis);
+    }
+
+    /**
+     * Sleeps for the millis.
+     */
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", iex);
+        }
+    }
+
+    /**
+     * Answers the parts of the batch request by a multipart response.
+     */
+    private LowLevelHttpResponse respondBatch(String contentType, String content) throws IOException {
+        String delimiter = "--" + new HttpMediaType(contentType).getParameter("boundary");
+        StringBuilder sb = new StringBuilder();
+        int partCount = 0;
+        for (String part : content.split(Pattern.quote(delimiter))) {
+            int headerEnd = part.indexOf(CRLF + CRLF);
+            if (headerEnd < 0) {
+                continue;
+            }
+            String request = part.substring(headerEnd + 4);
+            int requestLineEnd = request.indexOf(CRLF);
+            String[] requestLine = request.substring(0, requestLineEnd).split(" ");
+            int requestHeaderEnd = request.indexOf(CRLF + CRLF);
+            String body = requestHeaderEnd < 0 ? "" : request.substring(requestHeaderEnd + 4).trim();
+
+            Reply reply = handle(requestLine[0], requestLine[1], body);
+            ++ partCount;
+            sb.append("--").append(BOUNDARY).append(CRLF)
+                .append("Content-Type: application/http").append(CRLF)
+                .append("Content-ID: response-").append(partCount).append(CRLF)
+                .append(CRLF)
+                .append("HTTP/1.1 ").append(reply.status).append(reply.status == 200 ? " OK" : " Error").append(CRLF)
+                .append("Content-Type: application/json; charset=UTF-8").append(CRLF)
+                .append("Content-Length: ").append(reply.body.getBytes("UTF-8").length).append(CRLF)
+                .append(CRLF)
+                .append(reply.body).append(CRLF);
+        }
+        sb.append("--").append(BOUNDARY).append("--").append(CRLF);
+        return new MockLowLevelHttpResponse()
+            .setStatusCode(200)
+            .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+            .setContent(sb.toString());
+    }
+
+    /**
+     * Handles an API call.
+     */
+    private Reply handle(String method, String url, String body) throws IOException {
+        this.callCount.incrementAndGet();
+        GenericUrl parsed = new GenericUrl(url);
+        String path = parsed.getRawPath();
+        if (! path.startsWith(PROJECTS_PATH)) {
+            return error(404, "notFound", "no such resource: " + path);
+        }
+
+        // project / "zones" / zone / collection [ / resource [ / action ] ]
+        String[] segments = path.substring(PROJECTS_PATH.length()).split("/");
+        if (segments.length < 4 || ! "zones".equals(segments[1])) {
+            return error(404, "notFound", "no such resource: " + path);
+        }
+        String project = segments[0];
+        String zone = segments[2];
+        String collection = segments[3];
+        String resource = segments.length >= 5 ? segments[4] : null;
+        String action = segments.length >= 6 ? segments[5] : null;
+
+        if ("operations".equals(collection)) {
+            if (resource == null) {
+                return ok(new OperationList().setItems(Collections.<Operation>emptyList()));
+            }
+            if ("wait".equals(action)) {
+                sleep(Math.min(remainingMillis(resource), MAX_WAIT_MILLIS));
+            }
+            return ok(operation(project, zone, resource, remainingMillis(resource) > 0 ? "RUNNING" : "DONE", null));
+        }
+        if (! "instances".equals(collection)) {
+            return error(404, "notFound", "no such collection: " + collection);
+        }
+
+        if (resource == null) {
+            if ("POST".equals(method)) {
+                Instance instance = JSON_FACTORY.fromString(body, Instance.class);
+                this.states.put(zone + "/" + instance.getName(), "RUNNING");
+                return ok(operation(project, zone, null, "RUNNING", instance.getName()));
+            }
+            onList(zone);
+            if (this.listFailing) {
+                return error(503, "backendError", "the list is failing");
+            }
+            return ok(list(project, zone, (String) parsed.getFirst("filter")));
+        }
+        if (action == null) {
+            if ("DELETE".equals(method)) {
+                this.states.remove(zone + "/" + resource);
+                return ok(operation(project, zone, null, "RUNNING", resource));
+            }
+            return ok(instance(project, zone, resource));
+        }
+        switch (action) {
+            case "serialPort":
+                return ok(new SerialPortOutput().setContents("").setNext(0L));
+            case "start":
+            case "resume":
+                this.states.put(zone + "/" + resource, "RUNNING");
+                break;
+            case "stop":
+                this.states.put(zone + "/" + resource, "TERMINATED");
+                break;
+            case "suspend":
+                this.states.put(zone + "/" + resource, "SUSPENDED");
+                break;
+            default:
+                break;
+        }
+        return ok(operation(project, zone, null, "RUNNING", resource));
+    }
+
+    /**
+     * Returns the instances in the zone matching the name filter; all the known instances if the filter is null.
+     */
+    private InstanceList list(String project, String zone, String filter) {
+        List<String> names = new ArrayList<String>();
+        Matcher matcher = filter == null ? null : NAME_FILTER_PATTERN.matcher(filter);
+        if (matcher != null && matcher.matches()) {
+            Collections.addAll(names, matcher.group(1).split("\\|"));
+        } else {
+            for (String key : this.states.keySet()) {
+                if (key.startsWith(zone + "/")) {
+                    names.add(key.substring(zone.length() + 1));
+                }
+            }
+        }
+        List<Instance> items = new ArrayList<Instance>();
+        for (String name : names) {
+            items.add(instance(project, zone, name));
+        }
+        return new InstanceList().setItems(items);
+    }
+
+    /**
+     * Returns the instance, making it in the TERMINATED state if missing.
+     */
+    private Instance instance(String project, String zone, String name) {
+        String key = zone + "/" + name;
+        this.states.putIfAbsent(key, "TERMINATED");
+        return new Instance()
+            .setName(name)
+            .setZone(zoneUrl(project, zone))
+            .setSelfLink(zoneUrl(project, zone) + "/instances/" + name)
+            .setStatus(this.states.get(key))
+            .setScheduling(BatchLauncher.scheduling(false))
+            .setMetadata(new Metadata().setFingerprint("stub"));
+    }
+
+    /**
+     * Returns the millis until the operation gets DONE; 0 or less if it is DONE or unknown.
+     */
+    private long remainingMillis(String opName) {
+        Long doneNanos = this.operationDoneNanos.get(opName);
+        return doneNanos == null ? 0 : TimeUnit.NANOSECONDS.toMillis(doneNanos - System.nanoTime());
+    }
+
+    /**
+     * Returns the operation; a new one is named and scheduled to get DONE after the duration if the name is null.
+     */
+    private Operation operation(String project, String zone, String name, String status, String target) {
+        String opName = name;
+        if (opName == null) {
+            opName = "operation-" + this.operationSeq.incrementAndGet();
+            if (this.operationMillis > 0) {
+                this.operationDoneNanos.put(opName,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.operationMillis));
+            }
+        }
+        return new Operation()
+            .setName(opName)
+            .setZone(zoneUrl(project, zone))
+            .setSelfLink(zoneUrl(project, zone) + "/operations/" + opName)
+            .setTargetLink(target == null ? null : zoneUrl(project, zone) + "/instances/" + target)
+            .setOperationType("stub")
+            .setStatus(status);
+    }
+
+    /**
+     * Returns the URL of the zone.
+     */
+    private static String zoneUrl(String project, String zone) {
+        return ROOT_URL + "compute/v1/projects/" + project + "/zones/" + zone;
+    }
+
+    /**
+     * Returns the successful reply of the resource.
+     */
+    private static Reply ok(Object resource) throws IOException {
+        return new Reply(200, JSON_FACTORY.toString(resource));
+    }
+
+    /**
+     * Returns the error reply.
+     */
+    private static Reply error(int status, String reason, String message) {
+        return new Reply(status, String.format(
+                    "{\"error\":{\"code\":%d,\"message\":\"%s\",\"errors\":[{\"reason\":\"%s\",\"message\":\"%s\"}]}}",
+                    status, message, reason, message));
+    }
+
+    /**
+     * Called when the instances in the zone are listed; overridden by tests.
+     */
+    void onList(String zone) {
+    }
+
+    /**
+     * Makes instance lists fail or succeed.
+     */
+    void setListFailing(boolean listFailing) {
+        this.listFailing = listFailing;
+    }
+
+    /**
+     * Sets the state of the instance, making it if missing.
+     */
+    void setState(String zone, String name, String state) {
+        this.states.put(zone + "/" + name, state);
+    }
+
+    /**
+     * Returns the state of the instance; or null if it is unknown.
+     */
+    String getState(String zone, String name) {
+        return this.states.get(zone + "/" + name);
+    }
+
+    /**
+     * Returns # of HTTP requests.
+     */
+    long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Returns # of batch requests.
+     */
+    long getBatchCount() {
+        return this.batchCount.get();
+    }
+
+    /**
+     * Returns # of API calls, counting each part of batch requests.
+     */
+    long getCallCount() {
+        return this.callCount.get();
+    }
+
+    /**
+     * Status and body of a reply.
+     */
+    private static class Reply {
+
+        /** The HTTP status. */
+        final int status;
+
+        /** The JSON body. */
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
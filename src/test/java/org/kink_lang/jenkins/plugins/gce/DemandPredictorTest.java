@@ -0,0 +1,144 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the smoothing and the decay of DemandPredictor.
+ */
+public class DemandPredictorTest {
+
+    /** The directory of the history file. */
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
+    /** The current time of the predictor. */
+    private Calendar now;
+
+    /** The predictor whose clock is now. */
+    private DemandPredictor predictor;
+
+    @Before
+    public void setUp() throws IOException {
+        this.predictor = newPredictor();
+    }
+
+    /**
+     * Makes a predictor whose clock is now, which reads the history file in rootDir.
+     */
+    private DemandPredictor newPredictor() throws IOException {
+        return new DemandPredictor(this.rootDir.getRoot(), "test") {
+            @Override Calendar now() {
+                return (Calendar) DemandPredictorTest.this.now.clone();
+            }
+        };
+    }
+
+    /**
+     * Sets the clock to the hour of Sunday.
+     */
+    private void setSundayHour(int hour) {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(2026, Calendar.JANUARY, 4, hour, 30);
+        this.now = cal;
+    }
+
+    /**
+     * Records the excess workload of the label at the hour of Sunday,
+     * and commits it moving the clock to the next hour.
+     */
+    private void recordHour(int hour, String label, int excessWorkload) {
+        setSundayHour(hour);
+        this.predictor.record(label, excessWorkload);
+        setSundayHour(hour + 1);
+        this.predictor.predictNextHour();
+    }
+
+    /**
+     * Returns the prediction for 10 o'clock of Sunday.
+     */
+    private Map<String, Integer> predictTen(DemandPredictor pred) {
+        setSundayHour(9);
+        return pred.predictNextHour();
+    }
+
+    @Test
+    public void emptyHistoryPredictsNothing() {
+        assertEquals(Collections.emptyMap(), predictTen(this.predictor));
+    }
+
+    @Test
+    public void peakIsSmoothedWithHistory() {
+        setSundayHour(10);
+        this.predictor.record("linux", 3);
+        this.predictor.record("linux", 8);
+        this.predictor.record("linux", 5);
+        setSundayHour(11);
+        this.predictor.predictNextHour();
+        assertEquals(Collections.singletonMap("linux", 4), predictTen(this.predictor));
+
+        recordHour(10, "linux", 12);
+        assertEquals(Collections.singletonMap("linux", 8), predictTen(this.predictor));
+    }
+
+    @Test
+    public void unseenLabelDecays() {
+        recordHour(10, "linux", 8);
+        recordHour(10, "mac", 1);
+        Map<String, Integer> prediction = predictTen(this.predictor);
+        assertEquals(Integer.valueOf(2), prediction.get("linux"));
+        assertEquals(Integer.valueOf(1), prediction.get("mac"));
+    }
+
+    @Test
+    public void decayedLabelIsRemoved() {
+        recordHour(10, "linux", 2);
+        recordHour(10, "mac", 2);
+        assertEquals(Collections.singletonMap("mac", 1), predictTen(this.predictor));
+    }
+
+    @Test
+    public void otherSlotsAreNotDecayed() {
+        recordHour(10, "linux", 8);
+        for (int hour = 11; hour < 20; ++ hour) {
+            setSundayHour(hour);
+            this.predictor.predictNextHour();
+        }
+        assertEquals(Collections.singletonMap("linux", 4), predictTen(this.predictor));
+    }
+
+    @Test
+    public void provisionedExecutorsAreCountedUntilSlotRollsOver() {
+        setSundayHour(9);
+        this.predictor.onPredicted("linux-1", "linux", 2);
+        this.predictor.onPredicted("linux-2", "linux", 1);
+        assertEquals(3, this.predictor.getProvisionedForNextHour("linux"));
+        assertEquals(0, this.predictor.getProvisionedForNextHour("mac"));
+
+        this.now.add(Calendar.MINUTE, 20);
+        assertEquals(3, this.predictor.getProvisionedForNextHour("linux"));
+
+        setSundayHour(10);
+        assertEquals(0, this.predictor.getProvisionedForNextHour("linux"));
+        assertEquals(2, this.predictor.getPredictedCount());
+    }
+
+    @Test
+    public void historyIsPersisted() throws IOException {
+        recordHour(10, "linux", 8);
+        assertEquals(Collections.singletonMap("linux", 4), predictTen(newPredictor()));
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,283 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the name filters of InstanceInventory, and its refreshes against ComputeStub.
+ */
+public class InstanceInventoryTest {
+
+    /** The project of the clients. */
+    private static final String PROJECT = "test-project";
+
+    /** The first zone. */
+    private static final String ZONE = "zone-a";
+
+    /** The second zone. */
+    private static final String OTHER_ZONE = "zone-b";
+
+    /** An interval longer than the tests. */
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /** The head of a name filter. */
+    private static final String HEAD = "name eq '(";
+
+    /** The tail of a name filter. */
+    private static final String TAIL = ")'";
+
+    /** The inventory under test. */
+    private InstanceInventory inventory;
+
+    /** The stub of the API, which overrides the listed states by listOverrides. */
+    private ComputeStub stub;
+
+    /** States recorded to the inventory while the stub lists instances. */
+    private final Map<String, String> listOverrides = new HashMap<String, String>();
+
+    /** The client of the first zone. */
+    private ComputeClient client;
+
+    @Before
+    public void setUp() {
+        this.inventory = new InstanceInventory();
+        this.stub = new ComputeStub(0) {
+            @Override void onList(String zone) {
+                for (Map.Entry<String, String> entry : listOverrides.entrySet()) {
+                    inventory.putState(entry.getKey(), entry.getValue());
+                }
+            }
+        };
+        this.client = ComputeClient.create(PROJECT, ZONE, this.stub, ComputeStub.ROOT_URL,
+                new ApiThrottle(0, 0), new ApiMetrics());
+    }
+
+    /**
+     * Refreshes the inventory of the names in the first zone if it is older than the interval.
+     */
+    private void refresh(long intervalMillis, String... names) {
+        this.inventory.refreshIfStale(Collections.singletonList(this.client), Arrays.asList(names), intervalMillis);
+    }
+
+    /**
+     * Returns the map of the pairs of names and states.
+     */
+    private static Map<String, String> states(String... pairs) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            result.put(pairs[i], pairs[i + 1]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names matched by the filter.
+     */
+    private static List<String> namesOf(String filter) {
+        assertTrue(filter, filter.startsWith(HEAD) && filter.endsWith(TAIL));
+        return Arrays.asList(filter.substring(HEAD.length(), filter.length() - TAIL.length()).split("\\|"));
+    }
+
+    /**
+     * Returns the names of the specs "build-agent-0000" and so on.
+     */
+    private static List<String> agentNames(int count) {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; ++ i) {
+            names.add(String.format("build-agent-%04d", i));
+        }
+        return names;
+    }
+
+    @Test
+    public void noNamesMakeNoFilter() {
+        assertEquals(Collections.emptyList(), InstanceInventory.nameFilters(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void fewNamesMakeOneFilter() {
+        assertEquals(Arrays.asList("name eq '(a|b|c)'"), InstanceInventory.nameFilters(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void manyNamesAreChunked() {
+        List<String> names = agentNames(1000);
+        List<String> filters = InstanceInventory.nameFilters(names);
+        assertTrue(filters.size() > 1);
+
+        List<String> matched = new ArrayList<String>();
+        for (String filter : filters) {
+            assertTrue(filter.length() <= InstanceInventory.MAX_FILTER_LENGTH);
+            matched.addAll(namesOf(filter));
+        }
+        assertEquals(names, matched);
+    }
+
+    @Test
+    public void chunksAreFilled() {
+        List<String> filters = InstanceInventory.nameFilters(agentNames(1000));
+        int nameChars = "build-agent-0000".length() + 1;
+        for (String filter : filters.subList(0, filters.size() - 1)) {
+            assertTrue(filter.length() + nameChars > InstanceInventory.MAX_FILTER_LENGTH);
+        }
+    }
+
+    @Test
+    public void filterOfExactLimitIsNotSplit() {
+        String longName = repeat("n", InstanceInventory.MAX_FILTER_LENGTH - HEAD.length() - TAIL.length() - 2);
+        List<String> filters = InstanceInventory.nameFilters(Arrays.asList("a", longName));
+        assertEquals(1, filters.size());
+        assertEquals(InstanceInventory.MAX_FILTER_LENGTH, filters.get(0).length());
+
+        assertEquals(2, InstanceInventory.nameFilters(Arrays.asList("ab", longName)).size());
+    }
+
+    @Test
+    public void tooLongNameGetsItsOwnFilter() {
+        String longName = repeat("n", InstanceInventory.MAX_FILTER_LENGTH);
+        List<String> filters = InstanceInventory.nameFilters(Arrays.asList("a", longName, "b"));
+        assertEquals(Arrays.asList("name eq '(a)'", HEAD + longName + TAIL, "name eq '(b)'"), filters);
+    }
+
+    @Test
+    public void unrefreshedInventoryAssumesStartable() {
+        assertTrue(this.inventory.isStale(HOUR_MILLIS));
+        assertTrue(this.inventory.isStartable("a"));
+        assertNull(this.inventory.getState("a"));
+        assertNull(this.inventory.getZone("a"));
+    }
+
+    @Test
+    public void refreshReplacesSnapshot() {
+        this.stub.setState(ZONE, "a", "RUNNING");
+        refresh(0, "a", "b");
+        assertEquals(states("a", "RUNNING", "b", "TERMINATED"), this.inventory.snapshot());
+        assertEquals(ZONE, this.inventory.getZone("a"));
+        assertEquals(Boolean.FALSE, this.inventory.isPreemptible("a"));
+
+        Map<String, String> old = this.inventory.snapshot();
+        this.stub.setState(ZONE, "b", "STOPPING");
+        refresh(0, "b", "c");
+        assertEquals(states("b", "STOPPING", "c", "TERMINATED"), this.inventory.snapshot());
+        assertNull(this.inventory.getZone("a"));
+        assertEquals(states("a", "RUNNING", "b", "TERMINATED"), old);
+        assertEquals(2, this.inventory.getRefreshCount());
+    }
+
+    @Test
+    public void startableByState() {
+        this.stub.setState(ZONE, "running", "RUNNING");
+        this.stub.setState(ZONE, "stopping", "STOPPING");
+        this.stub.setState(ZONE, "suspending", "SUSPENDING");
+        this.stub.setState(ZONE, "suspended", "SUSPENDED");
+        refresh(0, "running", "stopping", "suspending", "suspended", "terminated");
+
+        assertTrue(this.inventory.isStartable("terminated"));
+        assertTrue(this.inventory.isStartable("suspended"));
+        assertTrue(this.inventory.isStartable("running"));
+        assertFalse(this.inventory.isStartable("stopping"));
+        assertFalse(this.inventory.isStartable("suspending"));
+        assertFalse(this.inventory.isStartable("unknown"));
+    }
+
+    @Test
+    public void putStateChangesSnapshotUntilNextRefresh() {
+        refresh(0, "a");
+        this.inventory.putState("a", "STOPPING");
+        assertEquals("STOPPING", this.inventory.getState("a"));
+        assertFalse(this.inventory.isStartable("a"));
+
+        refresh(0, "a");
+        assertEquals("TERMINATED", this.inventory.getState("a"));
+        assertTrue(this.inventory.isStartable("a"));
+    }
+
+    @Test
+    public void putStateDuringRefreshOverridesListedState() {
+        this.listOverrides.put("a", "STOPPING");
+        refresh(0, "a", "b");
+        assertEquals(states("a", "STOPPING", "b", "TERMINATED"), this.inventory.snapshot());
+
+        this.listOverrides.clear();
+        refresh(0, "a", "b");
+        assertEquals(states("a", "TERMINATED", "b", "TERMINATED"), this.inventory.snapshot());
+    }
+
+    @Test
+    public void freshInventoryIsNotRefreshed() {
+        refresh(HOUR_MILLIS, "a");
+        long calls = this.stub.getCallCount();
+        assertFalse(this.inventory.isStale(HOUR_MILLIS));
+
+        this.stub.setState(ZONE, "a", "RUNNING");
+        refresh(HOUR_MILLIS, "a");
+        assertEquals(calls, this.stub.getCallCount());
+        assertEquals(1, this.inventory.getRefreshCount());
+        assertEquals("TERMINATED", this.inventory.getState("a"));
+
+        assertTrue(this.inventory.isStale(0));
+        refresh(0, "a");
+        assertEquals(2, this.inventory.getRefreshCount());
+        assertEquals("RUNNING", this.inventory.getState("a"));
+    }
+
+    @Test
+    public void failedRefreshKeepsStatesAndDefersRetry() {
+        this.stub.setState(ZONE, "a", "RUNNING");
+        refresh(0, "a");
+        this.stub.setListFailing(true);
+        this.stub.setState(ZONE, "a", "STOPPING");
+        refresh(0, "a");
+
+        assertEquals("RUNNING", this.inventory.getState("a"));
+        assertEquals(1, this.inventory.getRefreshCount());
+        assertFalse(this.inventory.isStale(HOUR_MILLIS));
+    }
+
+    @Test
+    public void failedFirstRefreshKeepsInventoryUnknown() {
+        this.stub.setListFailing(true);
+        refresh(0, "a");
+        assertTrue(this.inventory.isStale(HOUR_MILLIS));
+        assertTrue(this.inventory.isStartable("a"));
+        assertEquals(0, this.inventory.getRefreshCount());
+    }
+
+    @Test
+    public void firstZoneWins() {
+        this.stub.setState(ZONE, "a", "RUNNING");
+        this.stub.setState(OTHER_ZONE, "a", "TERMINATED");
+        this.stub.setState(OTHER_ZONE, "b", "RUNNING");
+        this.inventory.refreshIfStale(Arrays.asList(this.client, this.client.withZone(OTHER_ZONE)),
+                Arrays.asList("a", "b"), 0);
+        assertEquals("RUNNING", this.inventory.getState("a"));
+        assertEquals(ZONE, this.inventory.getZone("a"));
+    }
+
+    /**
+     * Returns the string repeated the times.
+     */
+    private static String repeat(String str, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; ++ i) {
+            sb.append(str);
+        }
+        return sb.toString();
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,101 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the range expansion of PersistentSlaveSpec.
+ */
+public class PersistentSlaveSpecTest {
+
+    /**
+     * Makes a spec of the instance name.
+     */
+    private static PersistentSlaveSpec spec(String instanceName) {
+        PersistentSlaveSpec spec = new PersistentSlaveSpec();
+        spec.setInstanceName(instanceName);
+        spec.setNumExecutors("2");
+        spec.setRemoteFS("/var/jenkins");
+        return spec;
+    }
+
+    /**
+     * Returns the instance names of the specs.
+     */
+    private static List<String> namesOf(List<PersistentSlaveSpec> specs) {
+        List<String> names = new ArrayList<String>();
+        for (PersistentSlaveSpec spec : specs) {
+            names.add(spec.getInstanceName());
+        }
+        return names;
+    }
+
+    @Test
+    public void plainNameIsNotExpanded() {
+        PersistentSlaveSpec spec = spec("build-agent");
+        List<PersistentSlaveSpec> specs = spec.expand();
+        assertEquals(1, specs.size());
+        assertSame(spec, specs.get(0));
+    }
+
+    @Test
+    public void rangeIsPaddedToWidthOfFirstNumber() {
+        assertEquals(Arrays.asList("build-agent-008", "build-agent-009", "build-agent-010", "build-agent-011"),
+                namesOf(spec("build-agent-[008-011]").expand()));
+    }
+
+    @Test
+    public void unpaddedRangeGrowsWidth() {
+        assertEquals(Arrays.asList("a9", "a10", "a11"), namesOf(spec("a[9-11]").expand()));
+    }
+
+    @Test
+    public void suffixIsKept() {
+        assertEquals(Arrays.asList("a1-ci", "a2-ci"), namesOf(spec("a[1-2]-ci").expand()));
+    }
+
+    @Test
+    public void surroundingSpacesAreTrimmed() {
+        assertEquals(Arrays.asList("a1", "a2"), namesOf(spec("  a[1-2]  ").expand()));
+    }
+
+    @Test
+    public void reversedRangeIsEmpty() {
+        assertEquals(0, spec("a[5-3]").expand().size());
+    }
+
+    @Test
+    public void rangeIsCapped() {
+        List<PersistentSlaveSpec> specs = spec("a[1-999999]").expand();
+        assertEquals(PersistentSlaveSpec.MAX_RANGE_SIZE, specs.size());
+        assertEquals("a1", specs.get(0).getInstanceName());
+        assertEquals("a" + PersistentSlaveSpec.MAX_RANGE_SIZE, specs.get(specs.size() - 1).getInstanceName());
+    }
+
+    @Test
+    public void expandedSpecsCopyFields() {
+        PersistentSlaveSpec spec = spec("a[1-2]");
+        spec.setIdleMinutes("15");
+        spec.setPreemptible(true);
+        for (PersistentSlaveSpec expanded : spec.expand()) {
+            assertEquals("2", expanded.getNumExecutors());
+            assertEquals("/var/jenkins", expanded.getRemoteFS());
+            assertEquals("15", expanded.getIdleMinutes());
+            assertEquals(true, expanded.isPreemptible());
+        }
+    }
+
+    @Test
+    public void malformedRangeIsAName() {
+        assertEquals(Arrays.asList("a[1-]"), namesOf(spec("a[1-]").expand()));
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,161 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.services.compute.model.Operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the moving averages, the ranking and the stockout cooldown of PlacementEngine.
+ */
+public class PlacementEngineTest {
+
+    /** The cooldown period after a stockout. */
+    private static final long COOLDOWN_MILLIS = 60000;
+
+    /** The tolerance of comparing averages. */
+    private static final double DELTA = 1e-9;
+
+    /** The current time of the engine. */
+    private long nowMillis;
+
+    /** The engine whose clock is nowMillis. */
+    private PlacementEngine engine;
+
+    @Before
+    public void setUp() {
+        this.nowMillis = 1000000;
+        this.engine = new PlacementEngine(COOLDOWN_MILLIS) {
+            @Override long now() {
+                return nowMillis;
+            }
+        };
+    }
+
+    /**
+     * Returns the stats of the zone.
+     */
+    private PlacementEngine.ZoneStats stats(String zone) {
+        return this.engine.snapshot().get(zone);
+    }
+
+    @Test
+    public void successRateIsMovingAverage() {
+        this.engine.onStart("a", false, 0);
+        assertEquals(0.8, stats("a").getSuccessRate(), DELTA);
+        this.engine.onStart("a", false, 0);
+        assertEquals(0.64, stats("a").getSuccessRate(), DELTA);
+        this.engine.onStart("a", true, 100);
+        assertEquals(0.712, stats("a").getSuccessRate(), DELTA);
+    }
+
+    @Test
+    public void firstLatencyIsTakenAsIs() {
+        this.engine.onStart("a", false, 0);
+        this.engine.onStart("a", true, 1000);
+        assertEquals(1000, stats("a").getLatencyMillis());
+        assertEquals(1, stats("a").successCount);
+    }
+
+    @Test
+    public void latencyIsMovingAverageOfSuccesses() {
+        this.engine.onStart("a", true, 1000);
+        this.engine.onStart("a", true, 2000);
+        assertEquals(1200, stats("a").latencyMillis, DELTA);
+        this.engine.onStart("a", false, 50000);
+        assertEquals(1200, stats("a").latencyMillis, DELTA);
+        this.engine.onStart("a", true, 200);
+        assertEquals(1000, stats("a").latencyMillis, DELTA);
+    }
+
+    @Test
+    public void snapshotIsCopy() {
+        this.engine.onStart("a", true, 1000);
+        PlacementEngine.ZoneStats snapshot = stats("a");
+        this.engine.onStart("a", true, 2000);
+        assertEquals(1000, snapshot.getLatencyMillis());
+    }
+
+    @Test
+    public void healthyFasterZonesRankFirst() {
+        this.engine.onStart("slow", true, 3000);
+        this.engine.onStart("fast", true, 1000);
+        this.engine.onStart("sick", true, 10);
+        for (int i = 0; i < 4; ++ i) {
+            this.engine.onStart("sick", false, 0);
+        }
+        assertTrue(stats("sick").getSuccessRate() < 0.5);
+
+        assertEquals(Arrays.asList("new", "fast", "slow", "sick"),
+                this.engine.rank(Arrays.asList("sick", "slow", "fast", "new")));
+        assertEquals("new", this.engine.choose(Arrays.asList("sick", "slow", "new")));
+    }
+
+    @Test
+    public void stockoutSkipsZoneUntilCooldownPasses() {
+        this.engine.onFailure("a", true);
+        assertFalse(this.engine.isAvailable("a"));
+        assertEquals(Arrays.asList("b"), this.engine.rank(Arrays.asList("a", "b")));
+        assertNull(this.engine.choose(Collections.singletonList("a")));
+
+        this.nowMillis += COOLDOWN_MILLIS;
+        assertTrue(this.engine.isAvailable("a"));
+        assertEquals(0.8, stats("a").getSuccessRate(), DELTA);
+    }
+
+    @Test
+    public void cooldownChangeKeepsStatsAndCooldowns() {
+        this.engine.onStart("a", true, 1000);
+        this.engine.onFailure("a", true);
+        this.engine.setCooldownMillis(COOLDOWN_MILLIS * 2);
+        assertFalse(this.engine.isAvailable("a"));
+        assertEquals(1000, stats("a").getLatencyMillis());
+        assertEquals(0.8, stats("a").getSuccessRate(), DELTA);
+
+        this.nowMillis += COOLDOWN_MILLIS;
+        assertTrue(this.engine.isAvailable("a"));
+        this.engine.onFailure("a", true);
+        this.nowMillis += COOLDOWN_MILLIS;
+        assertFalse(this.engine.isAvailable("a"));
+    }
+
+    @Test
+    public void otherFailureDoesNotCoolDown() {
+        this.engine.onFailure("a", false);
+        assertTrue(this.engine.isAvailable("a"));
+        assertEquals(0.8, stats("a").getSuccessRate(), DELTA);
+    }
+
+    @Test
+    public void stockoutOfRequest() {
+        GoogleJsonError.ErrorInfo info = new GoogleJsonError.ErrorInfo();
+        info.setReason("ZONE_RESOURCE_POOL_EXHAUSTED_WITH_DETAILS");
+        GoogleJsonError error = new GoogleJsonError();
+        error.setErrors(Collections.singletonList(info));
+        assertTrue(PlacementEngine.isStockout(error));
+
+        info.setReason("QUOTA_EXCEEDED");
+        assertFalse(PlacementEngine.isStockout(error));
+        assertFalse(PlacementEngine.isStockout(new GoogleJsonError()));
+    }
+
+    @Test
+    public void stockoutOfOperation() {
+        Operation op = new Operation().setError(new Operation.Error().setErrors(Collections.singletonList(
+                        new Operation.Error.Errors().setCode("ZONE_RESOURCE_POOL_EXHAUSTED"))));
+        assertTrue(PlacementEngine.isStockout(op));
+        assertFalse(PlacementEngine.isStockout(new Operation()));
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,544 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import jenkins.model.Jenkins;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Benchmark of the provisioning hot path against ComputeStub, which serves the Compute API from memory.
+ *
+ * This is not a unit test, so surefire does not run it by default. Run it by:
+ *
+ * <pre>
+ * mvn test -Dtest=ProvisioningBenchmark
+ * </pre>
+ *
+ * For each # of specs, a cloud of the specs goes through passes of
+ * GoogleCloud.provision (until all the instances are started), launchAll, setupAndLaunch, and terminate
+ * (until all the stops are confirmed).
+ * The report has the throughput, the latency percentiles, the bytes allocated per instance,
+ * the peak # of threads, and # of HTTP requests and API calls per pass.
+ *
+ * The API throttle is configured not to limit the requests, so the numbers show the cost of the plugin itself.
+ * Operations take gce.benchmark.operationMillis to get DONE, so that the operation watcher polls pending operations,
+ * and the long-poll path of OperationTracker waits for them.
+ * With the default 0, operations are DONE at their first check,
+ * so the launch latencies are bounded by the cadence of the operation watcher.
+ * The allocation is the sum over the live threads of the JVM, including the stub and Jenkins,
+ * and misses the threads which ended during the phase.
+ *
+ * The label lookup of canProvision and provision is measured separately at 10, 100 and 1000 specs,
+ * comparing SpecIndex with the linear scan of label.matches,
+ * with and without parsing the labels of the specs as it was done before the index.
+ *
+ * System properties:
+ * gce.benchmark.iterations (measured passes per # of specs; default 10),
+ * gce.benchmark.warmups (warm-up passes; default 2),
+ * gce.benchmark.apiLatencyMillis (simulated latency of each HTTP request; default 0),
+ * gce.benchmark.operationMillis (simulated duration of each operation; default 0), and
+ * gce.benchmark.lookupMillis (measured time per label lookup method; default 500).
+ */
+public class ProvisioningBenchmark {
+
+    /** # of specs of the clouds. */
+    private static final int[] SPEC_COUNTS = { 1, 10, 100, 500 };
+
+    /** Measured passes per # of specs. */
+    private static final int ITERATIONS = Integer.getInteger("gce.benchmark.iterations", 10);
+
+    /** Warm-up passes per # of specs. */
+    private static final int WARMUPS = Integer.getInteger("gce.benchmark.warmups", 2);
+
+    /** The simulated latency of each HTTP request. */
+    private static final long API_LATENCY_MILLIS = Long.getLong("gce.benchmark.apiLatencyMillis", 0L);
+
+    /** The simulated duration of each operation. */
+    private static final long OPERATION_MILLIS = Long.getLong("gce.benchmark.operationMillis", 0L);
+
+    /** # of specs of the label lookup measurement. */
+    private static final int[] LOOKUP_SPEC_COUNTS = { 10, 100, 1000 };
+
+    /** The measured time per label lookup method. */
+    private static final long LOOKUP_MILLIS = Long.getLong("gce.benchmark.lookupMillis", 500L);
+
+    /** The maximum time to wait for a phase. */
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    /** The label of the specs. */
+    private static final String LABEL = "bench";
+
+    /** The zone of the clouds. */
+    private static final String ZONE = "bench-zone-a";
+
+    /** Jenkins, which the slaves are added to. */
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    /** The stub of the Compute API. */
+    private ComputeStub stub;
+
+    @Before
+    public void setUp() {
+        this.stub = new ComputeStub(API_LATENCY_MILLIS, OPERATION_MILLIS);
+        ComputeClient.stubTransport = this.stub;
+        System.setProperty(ComputeClient.ROOT_URL_PROPERTY, ComputeStub.ROOT_URL);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(ComputeClient.ROOT_URL_PROPERTY);
+        ComputeClient.stubTransport = null;
+    }
+
+    @Test
+    public void provisioningHotPath() throws Exception {
+        List<String> report = new ArrayList<String>();
+        report.add(String.format("%5s  %-22s %6s %10s %9s %9s %9s %10s %8s %8s %8s",
+                    "specs", "phase", "passes", "inst/s", "p50 ms", "p99 ms", "max ms",
+                    "KB/inst", "threads", "http/p", "calls/p"));
+        for (int specCount : SPEC_COUNTS) {
+            GoogleCloud cloud = newCloud(specCount);
+            this.jenkinsRule.jenkins.clouds.add(cloud);
+            cloud.getInventory().refreshIfStale(cloud.getComputeClients(), cloud.getSpecIndex().getInstanceNames(), 0);
+
+            Map<String, Phase> phases = new HashMap<String, Phase>();
+            for (int i = 0; i < WARMUPS; ++ i) {
+                runPass(cloud, specCount, new HashMap<String, Phase>());
+            }
+            for (int i = 0; i < ITERATIONS; ++ i) {
+                runPass(cloud, specCount, phases);
+            }
+            for (String name : new String[] {
+                "provision.call", "provision.started", "launchAll", "setupAndLaunch",
+                "terminate.call", "terminate.stopped" }) {
+                report.add(phases.get(name).format(specCount));
+            }
+            report.add(String.format("%5d  cloud executor: largest pool %d threads; compute client misses %d",
+                        specCount, cloud.getExecutor().getLargestPoolSize(), cloud.getComputeClientMissCount()));
+
+            this.jenkinsRule.jenkins.clouds.remove(cloud);
+        }
+
+        System.out.println("== provisioning benchmark (API latency " + API_LATENCY_MILLIS
+                + " ms, operation duration " + OPERATION_MILLIS + " ms) ==");
+        for (String line : report) {
+            System.out.println(line);
+        }
+    }
+
+    @Test
+    public void labelLookup() throws Exception {
+        List<String> report = new ArrayList<String>();
+        report.add(String.format("%5s  %-30s %12s %12s %12s",
+                    "specs", "label", "parse ns/op", "scan ns/op", "index ns/op"));
+        for (int specCount : LOOKUP_SPEC_COUNTS) {
+            final List<PersistentSlaveSpec> specs = lookupSpecs(specCount);
+            final SpecIndex index = new SpecIndex(specs);
+            double buildNanos = nanosPerOp(new Lookup() {
+                @Override int run() {
+                    return new SpecIndex(specs).getSpecs().size();
+                }
+            });
+            report.add(String.format("%5d  %-30s %38.0f", specCount, "(build the index)", buildNanos));
+
+            for (final Label label : Arrays.asList(
+                        Jenkins.getInstance().getLabel("pool-3"),
+                        Label.parseExpression("linux && pool-3 && !size-1"),
+                        Jenkins.getInstance().getLabel("missing"),
+                        null)) {
+                assertEquals(scan(specs, label, false), index.getCandidates(label));
+                double parseNanos = nanosPerOp(new Lookup() {
+                    @Override int run() {
+                        return scan(specs, label, true).size();
+                    }
+                });
+                double scanNanos = nanosPerOp(new Lookup() {
+                    @Override int run() {
+                        return scan(specs, label, false).size();
+                    }
+                });
+                double indexNanos = nanosPerOp(new Lookup() {
+                    @Override int run() {
+                        return index.getCandidates(label).size();
+                    }
+                });
+                report.add(String.format("%5d  %-30s %12.0f %12.0f %12.0f",
+                            specCount, label == null ? "(null)" : label.getExpression(),
+                            parseNanos, scanNanos, indexNanos));
+            }
+        }
+
+        System.out.println("== label lookup benchmark ==");
+        for (String line : report) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Makes the specs of the label lookup measurement, labeled "linux pool-{0-9} size-{0-2}".
+     */
+    private static List<PersistentSlaveSpec> lookupSpecs(int specCount) {
+        List<PersistentSlaveSpec> specs = new ArrayList<PersistentSlaveSpec>();
+        for (int i = 0; i < specCount; ++ i) {
+            PersistentSlaveSpec spec = new PersistentSlaveSpec();
+            spec.setInstanceName("lookup-" + i);
+            spec.setLabel("linux pool-" + (i % 10) + " size-" + (i % 3));
+            specs.add(spec);
+        }
+        return specs;
+    }
+
+    /**
+     * Returns the specs matching the label by the linear scan;
+     * parse is true to parse the labels of the specs as it was done before SpecIndex.
+     */
+    private static List<PersistentSlaveSpec> scan(List<PersistentSlaveSpec> specs, Label label, boolean parse) {
+        List<PersistentSlaveSpec> result = new ArrayList<PersistentSlaveSpec>();
+        for (PersistentSlaveSpec spec : specs) {
+            if (label == null || label.matches(parse ? Label.parse(spec.getLabel()) : spec.getLabelAtoms())) {
+                result.add(spec);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the nanos per run of the lookup, measured for LOOKUP_MILLIS after a warm-up of the same time.
+     */
+    private static double nanosPerOp(Lookup lookup) {
+        long sink = 0;
+        for (int round = 0; round < 2; ++ round) {
+            long startNanos = System.nanoTime();
+            long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(LOOKUP_MILLIS);
+            long ops = 0;
+            long now;
+            do {
+                for (int i = 0; i < 100; ++ i) {
+                    sink += lookup.run();
+                }
+                ops += 100;
+                now = System.nanoTime();
+            } while (now < endNanos);
+            if (round == 1) {
+                assertTrue(sink >= 0);
+                return (double) (now - startNanos) / ops;
+            }
+        }
+        throw new AssertionError("unreachable");
+    }
+
+    /**
+     * A lookup measured by nanosPerOp.
+     */
+    private abstract static class Lookup {
+
+        /**
+         * Runs the lookup, and returns a number which depends on the result.
+         */
+        abstract int run();
+
+    }
+
+    /**
+     * Makes a cloud of the specs, whose throttle does not limit the requests.
+     */
+    private static GoogleCloud newCloud(int specCount) {
+        PersistentSlaveSpec spec = new PersistentSlaveSpec();
+        spec.setInstanceName("bench" + specCount + "-[1-" + specCount + "]");
+        spec.setLabel(LABEL);
+        spec.setNumExecutors("1");
+        spec.setRemoteFS("/tmp/jenkins");
+
+        GoogleCloud cloud = new GoogleCloud("bench-" + specCount);
+        cloud.setProject("bench-project");
+        cloud.setZone(ZONE);
+        cloud.setPersistentSlaveSpecs(Collections.singletonList(spec));
+        cloud.setTimeoutMinutes("60");
+        cloud.setInventoryRefreshSeconds("3600");
+        cloud.setConnectTimeoutSeconds("3600");
+        cloud.setReadRequestsPerSecond("99999");
+        cloud.setWriteRequestsPerSecond("99999");
+        return cloud;
+    }
+
+    /**
+     * Runs a pass of provisioning, launching and terminating all the specs, recording the phases.
+     */
+    private void runPass(GoogleCloud cloud, int specCount, Map<String, Phase> phases) throws Exception {
+        Label label = Jenkins.getInstance().getLabel(LABEL);
+
+        Phase provisionCall = phase(phases, "provision.call");
+        Phase provisionStarted = phase(phases, "provision.started");
+        provisionStarted.begin();
+        provisionCall.begin();
+        long startNanos = System.nanoTime();
+        assertTrue(cloud.canProvision(label));
+        List<NodeProvisioner.PlannedNode> planned = cloud.provision(label, specCount);
+        provisionCall.end(specCount, Collections.singletonList(System.nanoTime() - startNanos));
+        assertEquals(specCount, planned.size());
+        waitUntilLaunched(cloud, specCount);
+        provisionStarted.end(specCount, Collections.singletonList(System.nanoTime() - startNanos));
+
+        List<PersistentSlave> slaves = new ArrayList<PersistentSlave>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (cloud.isSlaveOf(node)) {
+                slaves.add((PersistentSlave) node);
+            }
+        }
+        assertEquals(specCount, slaves.size());
+
+        Phase launchAll = phase(phases, "launchAll");
+        launchAll.begin();
+        startNanos = System.nanoTime();
+        launchAll.end(specCount, awaitAll(cloud.launchAll(slaves), startNanos));
+
+        Phase setupAndLaunch = phase(phases, "setupAndLaunch");
+        setupAndLaunch.begin();
+        startNanos = System.nanoTime();
+        List<ListenableFuture<Node>> futures = new ArrayList<ListenableFuture<Node>>();
+        for (PersistentSlave slave : slaves) {
+            futures.add(cloud.setupAndLaunch(slave));
+        }
+        setupAndLaunch.end(specCount, awaitAll(futures, startNanos));
+
+        Phase terminateCall = phase(phases, "terminate.call");
+        Phase terminateStopped = phase(phases, "terminate.stopped");
+        terminateStopped.begin();
+        terminateCall.begin();
+        startNanos = System.nanoTime();
+        List<Long> callNanos = new ArrayList<Long>();
+        for (PersistentSlave slave : slaves) {
+            long callStartNanos = System.nanoTime();
+            cloud.terminate(slave.getNodeName(), slave.getZone());
+            callNanos.add(System.nanoTime() - callStartNanos);
+        }
+        terminateCall.end(specCount, callNanos);
+        waitUntilStopped(cloud);
+        terminateStopped.end(specCount, Collections.singletonList(System.nanoTime() - startNanos));
+
+        for (PersistentSlave slave : slaves) {
+            Jenkins.getInstance().removeNode(slave);
+        }
+    }
+
+    /**
+     * Returns the phase of the name, making it if missing.
+     */
+    private Phase phase(Map<String, Phase> phases, String name) {
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            phase = new Phase(name);
+            phases.put(name, phase);
+        }
+        return phase;
+    }
+
+    /**
+     * Waits until the instances of the slaves are started, and returns the latency of each one.
+     */
+    private static List<Long> awaitAll(List<ListenableFuture<Node>> futures, final long startNanos)
+            throws Exception {
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        for (final ListenableFuture<Node> future : futures) {
+            future.addListener(new Runnable() {
+                @Override public void run() {
+                    latencies.add(System.nanoTime() - startNanos);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+        for (ListenableFuture<Node> future : futures) {
+            future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return new ArrayList<Long>(latencies);
+    }
+
+    /**
+     * Waits until the capacity ledger has the executors launched.
+     */
+    private static void waitUntilLaunched(GoogleCloud cloud, int executors) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (sum(cloud.getLaunchedExecutors()) < executors) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("instances not started: " + cloud.getLaunchedExecutors());
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Waits until all the stops are confirmed.
+     */
+    private static void waitUntilStopped(GoogleCloud cloud) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (cloud.getPendingStopCount() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("stops not confirmed: " + cloud.getPendingStopCount());
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Returns the sum of the values.
+     */
+    private static int sum(Map<String, Integer> map) {
+        int sum = 0;
+        for (int value : map.values()) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Measurements of a phase accumulated over the passes.
+     */
+    private class Phase {
+
+        /** The name of the phase. */
+        final String name;
+
+        /** The latencies in nanos. */
+        final List<Long> latencies = new ArrayList<Long>();
+
+        /** # of passes. */
+        int passes;
+
+        /** # of instances handled. */
+        long instances;
+
+        /** The total wall time in nanos. */
+        long elapsedNanos;
+
+        /** The bytes allocated. */
+        long allocatedBytes;
+
+        /** The peak # of threads. */
+        int peakThreads;
+
+        /** # of HTTP requests. */
+        long requests;
+
+        /** # of API calls. */
+        long calls;
+
+        /** The time when the current pass began. */
+        private long beginNanos;
+
+        /** The allocated bytes of the threads when the current pass began. */
+        private Map<Long, Long> beginAllocated;
+
+        /** # of HTTP requests when the current pass began. */
+        private long beginRequests;
+
+        /** # of API calls when the current pass began. */
+        private long beginCalls;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Begins a pass of the phase.
+         */
+        void begin() {
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+            this.beginAllocated = allocatedBytesByThread();
+            this.beginRequests = stub.getRequestCount();
+            this.beginCalls = stub.getCallCount();
+            this.beginNanos = System.nanoTime();
+        }
+
+        /**
+         * Ends the pass of the phase, which handled the instances.
+         */
+        void end(int instanceCount, List<Long> passLatencies) {
+            this.elapsedNanos += System.nanoTime() - this.beginNanos;
+            this.requests += stub.getRequestCount() - this.beginRequests;
+            this.calls += stub.getCallCount() - this.beginCalls;
+            for (Map.Entry<Long, Long> entry : allocatedBytesByThread().entrySet()) {
+                Long before = this.beginAllocated.get(entry.getKey());
+                this.allocatedBytes += entry.getValue() - (before == null ? 0 : before);
+            }
+            this.peakThreads = Math.max(this.peakThreads, ManagementFactory.getThreadMXBean().getPeakThreadCount());
+            this.latencies.addAll(passLatencies);
+            this.instances += instanceCount;
+            ++ this.passes;
+        }
+
+        /**
+         * Returns the line of the report.
+         */
+        String format(int specCount) {
+            List<Long> sorted = new ArrayList<Long>(this.latencies);
+            Collections.sort(sorted);
+            return String.format("%5d  %-22s %6d %10.1f %9.1f %9.1f %9.1f %10.1f %8d %8d %8d",
+                    specCount, this.name, this.passes,
+                    this.instances / (this.elapsedNanos / 1e9),
+                    percentileMillis(sorted, 0.5), percentileMillis(sorted, 0.99),
+                    percentileMillis(sorted, 1.0),
+                    this.allocatedBytes / 1024.0 / this.instances,
+                    this.peakThreads,
+                    this.requests / this.passes, this.calls / this.passes);
+        }
+
+    }
+
+    /**
+     * Returns the allocated bytes of the live threads, keyed by the thread IDs.
+     */
+    private static Map<Long, Long> allocatedBytesByThread() {
+        Map<Long, Long> result = new HashMap<Long, Long>();
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (! (bean instanceof com.sun.management.ThreadMXBean)) {
+            return result;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        long[] ids = sunBean.getAllThreadIds();
+        long[] bytes = sunBean.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; ++ i) {
+            if (bytes[i] >= 0) {
+                result.put(ids[i], bytes[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the percentile of the sorted nanos in millis.
+     */
+    private static double percentileMillis(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
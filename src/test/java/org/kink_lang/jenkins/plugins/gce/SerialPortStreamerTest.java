@@ -0,0 +1,125 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.services.compute.model.SerialPortOutput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the line splitting and the size caps of the streams of SerialPortStreamer.
+ */
+public class SerialPortStreamerTest {
+
+    /** The lines written by the stream. */
+    private final List<String> lines = new ArrayList<String>();
+
+    /** The stream which writes to lines. */
+    private SerialPortStreamer.Stream stream;
+
+    @Before
+    public void setUp() {
+        this.stream = new SerialPortStreamer.Stream(null, null, "agent") {
+            @Override boolean write(String line) {
+                lines.add(line);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Appends the contents to the stream.
+     */
+    private void append(String contents, long next) {
+        this.stream.append(new SerialPortOutput().setContents(contents).setNext(next));
+    }
+
+    /**
+     * Returns the string repeated the times.
+     */
+    private static String repeat(String str, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; ++ i) {
+            sb.append(str);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns # of written lines of the output.
+     */
+    private int countOutputLines() {
+        int count = 0;
+        for (String line : this.lines) {
+            if (line.startsWith(SerialPortStreamer.LINE_PREFIX)) {
+                ++ count;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void linesAreSplitAcrossFetches() {
+        append("a\nb", 3);
+        assertEquals(Arrays.asList("[serial] a"), this.lines);
+        assertEquals(Long.valueOf(3), this.stream.offset);
+
+        append("c\r\n\nd\n", 9);
+        assertEquals(Arrays.asList("[serial] a", "[serial] bc", "[serial] ", "[serial] d"), this.lines);
+        assertEquals(Long.valueOf(9), this.stream.offset);
+    }
+
+    @Test
+    public void emptyOutputOnlyAdvancesOffset() {
+        append("", 5);
+        this.stream.append(new SerialPortOutput().setNext(7L));
+        assertEquals(0, this.lines.size());
+        assertEquals(Long.valueOf(7), this.stream.offset);
+    }
+
+    @Test
+    public void longPartialLineIsFlushed() {
+        String partial = repeat("p", SerialPortStreamer.MAX_PARTIAL_LINE_CHARS + 1);
+        append(partial, 1);
+        assertEquals(Arrays.asList(SerialPortStreamer.LINE_PREFIX + partial), this.lines);
+
+        append("q\n", 2);
+        assertEquals(SerialPortStreamer.LINE_PREFIX + "q", this.lines.get(1));
+    }
+
+    @Test
+    public void headOfLargeChunkIsSkipped() {
+        append("partial", 1);
+        int size = SerialPortStreamer.MAX_CHUNK_CHARS + 1000;
+        append(repeat("x\n", size / 2), 2);
+
+        assertEquals("-- skipped 1000 chars of serial port output", this.lines.get(0));
+        assertEquals(SerialPortStreamer.MAX_CHUNK_CHARS / 2, countOutputLines());
+        assertEquals(SerialPortStreamer.LINE_PREFIX + "x", this.lines.get(1));
+    }
+
+    @Test
+    public void streamIsCapped() {
+        String chunk = repeat(repeat("y", 999) + "\n", 60);
+        for (int i = 0; i < 30; ++ i) {
+            append(chunk, i);
+        }
+
+        int lineChars = SerialPortStreamer.LINE_PREFIX.length() + 1000;
+        int chunkChars = lineChars * 60;
+        int chunks = (SerialPortStreamer.MAX_STREAM_CHARS + chunkChars - 1) / chunkChars;
+        assertEquals(chunks * 60, countOutputLines());
+        assertEquals(chunks * 60 + 1, this.lines.size());
+        assertTrue(this.lines.get(this.lines.size() - 1).startsWith("-- serial port output exceeds"));
+        assertEquals(Long.valueOf(29), this.stream.offset);
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker
@@ -0,0 +1,157 @@
+package org.kink_lang.jenkins.plugins.gce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.Label;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that SpecIndex returns the same candidates as the linear scan of the specs.
+ */
+public class SpecIndexTest {
+
+    /** The atoms used in the labels of the specs and in the queried labels. */
+    private static final List<String> ATOMS = Arrays.asList("linux", "windows", "arm", "x86", "docker", "unknown");
+
+    /** Jenkins, which is required to parse labels. */
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    /**
+     * Makes a spec.
+     */
+    private static PersistentSlaveSpec spec(String instanceName, String label) {
+        PersistentSlaveSpec spec = new PersistentSlaveSpec();
+        spec.setInstanceName(instanceName);
+        spec.setLabel(label);
+        return spec;
+    }
+
+    /**
+     * Returns the configured specs.
+     */
+    private static List<PersistentSlaveSpec> configuredSpecs() {
+        return Arrays.asList(
+                spec("linux-x86", "linux x86"),
+                spec("linux-arm", "linux arm"),
+                spec("win", "windows x86"),
+                spec("docker-[1-3]", "linux docker x86"),
+                spec("empty-label", ""),
+                spec("null-label", null),
+                spec("docker-arm", "docker arm linux"));
+    }
+
+    /**
+     * Returns the specs matching the label by the linear scan.
+     */
+    private static List<PersistentSlaveSpec> scan(List<PersistentSlaveSpec> specs, Label label) {
+        List<PersistentSlaveSpec> result = new ArrayList<PersistentSlaveSpec>();
+        for (PersistentSlaveSpec spec : specs) {
+            if (label == null || label.matches(spec.getLabelAtoms())) {
+                result.add(spec);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Asserts that the index returns the same specs as the linear scan for the label.
+     */
+    private static void assertEquivalent(SpecIndex index, Label label) {
+        assertEquals(String.valueOf(label),
+                scan(index.getSpecs(), label), index.getCandidates(label));
+    }
+
+    @Test
+    public void rangesAreExpanded() {
+        SpecIndex index = new SpecIndex(configuredSpecs());
+        assertEquals(Arrays.asList("linux-x86", "linux-arm", "win", "docker-1", "docker-2", "docker-3",
+                    "empty-label", "null-label", "docker-arm"), index.getInstanceNames());
+    }
+
+    @Test
+    public void nullLabelMatchesAllSpecs() {
+        SpecIndex index = new SpecIndex(configuredSpecs());
+        assertEquals(index.getSpecs(), index.getCandidates(null));
+        assertEquivalent(index, null);
+    }
+
+    @Test
+    public void atomsMatchAsScan() {
+        SpecIndex index = new SpecIndex(configuredSpecs());
+        for (String atom : ATOMS) {
+            assertEquivalent(index, this.jenkinsRule.jenkins.getLabelAtom(atom));
+        }
+    }
+
+    @Test
+    public void unknownLabelMatchesNothing() throws Exception {
+        SpecIndex index = new SpecIndex(configuredSpecs());
+        assertTrue(index.getCandidates(this.jenkinsRule.jenkins.getLabelAtom("unknown")).isEmpty());
+        assertTrue(index.getCandidates(Label.parseExpression("unknown && linux")).isEmpty());
+        assertEquivalent(index, Label.parseExpression("!unknown"));
+    }
+
+    @Test
+    public void expressionsMatchAsScan() throws Exception {
+        SpecIndex index = new SpecIndex(configuredSpecs());
+        for (String expr : Arrays.asList(
+                    "linux && x86", "linux && !arm", "windows || arm", "docker && !linux",
+                    "!windows", "(linux || windows) && x86", "linux -> docker", "arm <-> docker")) {
+            assertEquivalent(index, Label.parseExpression(expr));
+        }
+    }
+
+    @Test
+    public void randomExpressionsMatchAsScan() throws Exception {
+        SpecIndex index = new SpecIndex(configuredSpecs());
+        Random random = new Random(42);
+        for (int i = 0; i < 200; ++ i) {
+            assertEquivalent(index, Label.parseExpression(randomExpression(random, 3)));
+        }
+    }
+
+    @Test
+    public void expressionResultIsMemoized() throws Exception {
+        SpecIndex index = new SpecIndex(configuredSpecs());
+        Label label = Label.parseExpression("linux && !arm");
+        assertSame(index.getCandidates(label), index.getCandidates(label));
+    }
+
+    @Test
+    public void noSpecsMatchNothing() {
+        SpecIndex index = new SpecIndex(null);
+        assertTrue(index.getCandidates(null).isEmpty());
+        assertTrue(index.getCandidates(this.jenkinsRule.jenkins.getLabelAtom("linux")).isEmpty());
+    }
+
+    /**
+     * Returns a random label expression of the atoms nested at most to the depth.
+     */
+    private static String randomExpression(Random random, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            return ATOMS.get(random.nextInt(ATOMS.size()));
+        }
+        switch (random.nextInt(3)) {
+            case 0:
+                return "!(" + randomExpression(random, depth - 1) + ")";
+            case 1:
+                return "(" + randomExpression(random, depth - 1) + " && " + randomExpression(random, depth - 1) + ")";
+            default:
+                return "(" + randomExpression(random, depth - 1) + " || " + randomExpression(random, depth - 1) + ")";
+        }
+    }
+
+}
+
+// vim: et sw=4 sts=4 fdm=marker